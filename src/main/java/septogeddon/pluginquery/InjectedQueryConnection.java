@@ -1,5 +1,6 @@
 package septogeddon.pluginquery;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -8,46 +9,57 @@ import septogeddon.pluginquery.netty.QueryHandshaker;
 import septogeddon.pluginquery.netty.QueryProtocol;
 import septogeddon.pluginquery.netty.QueryReadTimeout;
 import septogeddon.pluginquery.utils.Debug;
-import septogeddon.pluginquery.utils.QueryUtil;
 
 import java.net.SocketAddress;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 
 public class InjectedQueryConnection implements QueryConnection {
 
     private final QueryMetadata data = new QueryMetadataImpl();
     private final QueryEventBus events = new QueryEventBusImpl();
-    private final Queue<QueryQueue> queue = new LinkedList<>();
+    private final QueryOfflineQueue<QueryQueue> queue = new QueryOfflineQueue<>(data, query -> {
+        query.message.release();
+        query.future.completeExceptionally(new IllegalStateException("query dropped from the offline queue"));
+    });
     private final QueryMessenger messenger;
     private final Channel channel;
     private boolean handshaken;
     private final QueryProtocol protocol;
+    private final QueryPipeline pipeline;
+    private final QueryWriteBatcher batcher;
 
     public InjectedQueryConnection(QueryMessenger messenger, Channel channel) {
         this.messenger = messenger;
         this.channel = channel;
+        pipeline = new QueryPipelineImpl(messenger.getPipeline(), this);
+        batcher = new QueryWriteBatcher(channel, data);
         protocol = new QueryProtocol(messenger, this) {
             public void onHandshaken() {
                 handshaken = true;
                 connectionConnected();
             }
+
+            @Override
+            public void onWritabilityChanged() {
+                connectionWritabilityChanged();
+            }
         };
         prepareChannel();
     }
 
     protected void connectionDisconnected() {
         Debug.debug(() -> "Connection: END");
-        getMessenger().getPipeline().dispatchInactive(this);
+        getPipeline().dispatchInactive(this);
         getEventBus().dispatchConnectionState(this);
+        // an injected connection never reconnects
+        queue.clear();
         protocol.clear();
         handshaken = false;
     }
 
     protected void connectionConnected() {
         Debug.debug(() -> "Connection: DONE");
-        getMessenger().getPipeline().dispatchActive(this);
+        getPipeline().dispatchActive(this);
         getEventBus().dispatchConnectionState(this);
         flushQueue();
     }
@@ -61,20 +73,21 @@ public class InjectedQueryConnection implements QueryConnection {
         getChannel().pipeline().addFirst(QueryContext.PIPELINE_TIMEOUT, new QueryReadTimeout(this, getMessenger().getMetadata().getData(QueryContext.METAKEY_READ_TIMEOUT, 1000L * 30), TimeUnit.MILLISECONDS));
     }
 
+    protected void connectionWritabilityChanged() {
+        batcher.writabilityChanged();
+        getEventBus().dispatchConnectionWritability(this);
+        if (isWritable() && isHandshaken()) flushQueue();
+    }
+
     public void flushQueue() {
-        if (getChannel() != null && !getChannel().eventLoop().inEventLoop()) {
-            getChannel().eventLoop().submit(() -> {
-                synchronized (this.queue) {
-                    QueryQueue queue;
-                    while ((queue = this.queue.poll()) != null) sendQueryMessage(queue.message, queue.future, true);
-                }
-            });
-        } else {
-            synchronized (queue) {
-                QueryQueue queue;
-                while ((queue = this.queue.poll()) != null) sendQueryMessage(queue.message, queue.future, true);
-            }
+        if (!channel.eventLoop().inEventLoop()) {
+            // drained by the event loop only, so queued queries keep their order
+            channel.eventLoop().execute(this::flushQueue);
+            return;
         }
+        QueryQueue queue;
+        // stops while backpressured, the rest is drained once the channel is writable again
+        while (!batcher.isBackpressured() && (queue = this.queue.poll()) != null) sendQueryMessage(queue.message, queue.future, true, true);
     }
 
     @Override
@@ -97,6 +110,20 @@ public class InjectedQueryConnection implements QueryConnection {
         return handshaken;
     }
 
+    QueryWriteBatcher getWriteBatcher() {
+        return batcher;
+    }
+
+    @Override
+    public QueryFeatures getFeatures() {
+        return protocol.getFeatures();
+    }
+
+    @Override
+    public QueryPipeline getPipeline() {
+        return pipeline;
+    }
+
     @Override
     public QueryMessenger getMessenger() {
         return messenger;
@@ -134,8 +161,20 @@ public class InjectedQueryConnection implements QueryConnection {
     }
 
     public void sendQueryMessage(QueryMessage msg, QueryCompletableFuture<QueryConnection> future, boolean queue) {
+        sendQueryMessage(msg, future, queue, false);
+    }
+
+    private void sendQueryMessage(QueryMessage msg, QueryCompletableFuture<QueryConnection> future, boolean queue, boolean queued) {
         if (isHandshaken()) {
+            if (!queued && batcher.isBackpressured() && !backpressure(msg, future, queue)) {
+                return;
+            }
             if (channel.eventLoop().inEventLoop()) {
+                if (!queued && this.queue.getDepth() > 0) {
+                    // keep the order of the queries spilled into the queue
+                    spillOrReject(msg, future, queue);
+                    return;
+                }
                 ChannelFutureListener futureListener = (ChannelFuture f) -> {
                     // wrapping a listener, what a shame...
                     if (f.isSuccess()) {
@@ -144,19 +183,77 @@ public class InjectedQueryConnection implements QueryConnection {
                         future.completeExceptionally(f.cause());
                     }
                 };
-                getChannel().writeAndFlush(msg).addListener(futureListener);
+                batcher.write(msg, futureListener);
             } else {
-                channel.eventLoop().submit(() -> sendQueryMessage(msg, future, queue));
+                // the channel might have filled up since, checked again on the event loop
+                batcher.execute(() -> sendQueryMessage(msg, future, queue, queued));
             }
         } else {
             if (queue) {
-                synchronized (this.queue) {
-                    QueryUtil.illegalState(!this.queue.offer(new QueryQueue(msg, future)), "failed to offer queue");
+                if (!this.queue.offer(new QueryQueue(msg, future), !channel.eventLoop().inEventLoop())) {
+                    msg.release();
+                    future.completeExceptionally(new IllegalStateException("failed to offer queue"));
+                } else if (isHandshaken()) {
+                    // handshaken meanwhile, the queue might have been drained already
+                    flushQueue();
                 }
+            } else {
+                msg.release();
+                future.completeExceptionally(new IllegalStateException("connection is not handshaken"));
             }
         }
     }
 
+    /**
+     * Apply the backpressure policy
+     * @return true if the query must be written anyway
+     */
+    private boolean backpressure(QueryMessage msg, QueryCompletableFuture<QueryConnection> future, boolean queue) {
+        switch (batcher.getBackpressurePolicy()) {
+            case REJECT:
+                reject(msg, future);
+                return false;
+            case WAIT:
+                if (!channel.eventLoop().inEventLoop()) {
+                    if (batcher.awaitWritable()) return true;
+                    reject(msg, future);
+                    return false;
+                }
+                // never blocks the event loop, spills instead
+                spillOrReject(msg, future, queue);
+                return false;
+            default:
+                spillOrReject(msg, future, queue);
+                return false;
+        }
+    }
+
+    /**
+     * Spill the query into the queue, or fail it if it mustn't be queued
+     */
+    private void spillOrReject(QueryMessage msg, QueryCompletableFuture<QueryConnection> future, boolean queue) {
+        if (queue) {
+            spill(msg, future);
+        } else {
+            reject(msg, future);
+        }
+    }
+
+    private static void reject(QueryMessage msg, QueryCompletableFuture<QueryConnection> future) {
+        msg.release();
+        future.completeExceptionally(new IllegalStateException("connection is not writable"));
+    }
+
+    private void spill(QueryMessage msg, QueryCompletableFuture<QueryConnection> future) {
+        if (!this.queue.offer(new QueryQueue(msg, future), !channel.eventLoop().inEventLoop())) {
+            msg.release();
+            future.completeExceptionally(new IllegalStateException("failed to offer queue"));
+        } else if (!batcher.isBackpressured()) {
+            // writable meanwhile, the queue might have been drained already
+            flushQueue();
+        }
+    }
+
     @Override
     public QueryFuture<QueryConnection> sendQuery(String channel, byte[] message, boolean queue) {
         QueryCompletableFuture<QueryConnection> future = new QueryCompletableFuture<QueryConnection>();
@@ -164,6 +261,35 @@ public class InjectedQueryConnection implements QueryConnection {
         return future;
     }
 
+    @Override
+    public QueryFuture<QueryConnection> sendQuery(QueryMessage message, boolean queue) {
+        QueryCompletableFuture<QueryConnection> future = new QueryCompletableFuture<QueryConnection>();
+        sendQueryMessage(message, future, queue);
+        return future;
+    }
+
+    @Override
+    public QueryFuture<QueryConnection> sendQuery(String channel, ByteBuf message) {
+        return sendQuery(channel, message, false);
+    }
+
+    @Override
+    public QueryFuture<QueryConnection> sendQuery(String channel, ByteBuf message, boolean queue) {
+        QueryCompletableFuture<QueryConnection> future = new QueryCompletableFuture<QueryConnection>();
+        sendQueryMessage(new QueryMessage(channel, message), future, queue);
+        return future;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.getDepth();
+    }
+
+    @Override
+    public long getDroppedQueries() {
+        return queue.getDropped();
+    }
+
     static class QueryQueue {
         QueryMessage message;
         QueryCompletableFuture<QueryConnection> future;
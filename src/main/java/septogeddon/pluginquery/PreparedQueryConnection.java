@@ -9,8 +9,6 @@ import septogeddon.pluginquery.utils.Debug;
 import septogeddon.pluginquery.utils.QueryUtil;
 
 import java.net.SocketAddress;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -20,22 +18,35 @@ public class PreparedQueryConnection implements QueryConnection {
     private final QueryMessenger messenger;
     private final QueryMetadata metadata = new QueryMetadataImpl();
     private final QueryEventBus eventBus = new QueryEventBusImpl();
-    private final Queue<QueueQuery> queues = new LinkedList<>();
+    private final QueryOfflineQueue<QueueQuery> queues = new QueryOfflineQueue<>(metadata, query -> {
+        query.message.release();
+        query.future.completeExceptionally(new IllegalStateException("query dropped from the offline queue"));
+    });
     private ChannelFuture channelFuture;
     private final QueryProtocol protocol;
     private final CloseListener closeFuture = new CloseListener();
+    private volatile QueryPipeline pipeline;
+    private volatile QueryWriteBatcher batcher;
     private boolean handshaken;
 
     public PreparedQueryConnection(QueryMessenger messenger, SocketAddress address) {
         this.messenger = messenger;
         this.address = address;
+        this.pipeline = new QueryPipelineImpl(messenger.getPipeline(), this);
         this.protocol = new QueryProtocol(messenger, this) {
             @Override
             public void onHandshaken() {
                 handshaken = true;
+                // framed like any query, ahead of the queued ones
+                requestFeatures();
                 connectionConnected();
                 super.onHandshaken();
             }
+
+            @Override
+            public void onWritabilityChanged() {
+                connectionWritabilityChanged();
+            }
         };
     }
 
@@ -76,9 +87,11 @@ public class PreparedQueryConnection implements QueryConnection {
         UUID randomized = UUID.randomUUID();
         buf.writeLong(randomized.getMostSignificantBits());
         buf.writeLong(randomized.getLeastSignificantBits());
+        QueryProtocol protocol = QueryProtocol.of(conn);
+        if (protocol != null) protocol.setSessionNonce(nonce(randomized));
         // encrypt UUID
         String uuid = randomized.toString();
-        byte[] encrypted = conn.getMessenger().getPipeline().dispatchSending(conn, uuid.getBytes());
+        byte[] encrypted = conn.getPipeline().dispatchSending(conn, uuid.getBytes());
         QueryUtil.nonNull(encrypted, "encrypted token");
         QueryUtil.illegalArgument(encrypted.length > Byte.MAX_VALUE, "encrypted token too long");
         // send handshake
@@ -87,6 +100,22 @@ public class PreparedQueryConnection implements QueryConnection {
         return buf;
     }
 
+    /**
+     * The session nonce of a handshake token
+     * @param token the handshake token
+     * @return the token bytes
+     */
+    public static byte[] nonce(UUID token) {
+        byte[] nonce = new byte[16];
+        long most = token.getMostSignificantBits();
+        long least = token.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            nonce[i] = (byte) (most >>> (56 - i * 8));
+            nonce[i + 8] = (byte) (least >>> (56 - i * 8));
+        }
+        return nonce;
+    }
+
     @Override
     public boolean isHandshaken() {
         return handshaken;
@@ -98,21 +127,42 @@ public class PreparedQueryConnection implements QueryConnection {
 
     protected void connectionDisconnected() {
         Debug.debug(() -> "Connection: END");
-        getMessenger().getPipeline().dispatchInactive(this);
+        getPipeline().dispatchInactive(this);
         getEventBus().dispatchConnectionState(this);
-        queues.clear();
+        // kept for the next connect, the capacity bounds it meanwhile
         protocol.clear();
         handshaken = false;
     }
 
     protected void connectionConnected() {
-        getMessenger().getPipeline().dispatchActive(this);
+        getPipeline().dispatchActive(this);
         getEventBus().dispatchConnectionState(this);
         getChannel().closeFuture().removeListener(closeFuture);
         getChannel().closeFuture().addListener(closeFuture);
         flushQueue();
     }
 
+    protected void connectionWritabilityChanged() {
+        QueryWriteBatcher batcher = this.batcher;
+        if (batcher != null) batcher.writabilityChanged();
+        getEventBus().dispatchConnectionWritability(this);
+        if (isWritable()) flushQueue();
+    }
+
+    QueryWriteBatcher getWriteBatcher() {
+        return batcher;
+    }
+
+    @Override
+    public QueryFeatures getFeatures() {
+        return protocol.getFeatures();
+    }
+
+    @Override
+    public QueryPipeline getPipeline() {
+        return pipeline;
+    }
+
     @Override
     public QueryMessenger getMessenger() {
         return messenger;
@@ -161,6 +211,8 @@ public class PreparedQueryConnection implements QueryConnection {
 
     public QueryFuture<QueryConnection> connect(int currentTime) {
         disconnect();
+        // every channel starts with fresh handler state and the current messenger pipeline
+        pipeline = new QueryPipelineImpl(getMessenger().getPipeline(), this);
         QueryCompletableFuture<QueryConnection> fut = new QueryCompletableFuture<>();
         Bootstrap client = new Bootstrap();
         client.group(getMessenger().getEventLoopGroup());
@@ -171,6 +223,7 @@ public class PreparedQueryConnection implements QueryConnection {
         client.handler(new ChannelDuplexHandler());
         client.remoteAddress(address);
         ChannelFuture future = client.connect();
+        this.batcher = new QueryWriteBatcher(future.channel(), getMetadata());
         this.channelFuture = future;
         future.addListener((ChannelFuture f) -> {
             if (!f.isSuccess()) {
@@ -197,19 +250,16 @@ public class PreparedQueryConnection implements QueryConnection {
     }
 
     public void flushQueue() {
-        if (getChannel() != null && !getChannel().eventLoop().inEventLoop()) {
-            getChannel().eventLoop().schedule(() -> {
-                synchronized (queues) {
-                    QueueQuery queue;
-                    while ((queue = queues.poll()) != null) sendPrivately(queue);
-                }
-            }, 1, TimeUnit.MILLISECONDS);
-        } else {
-            synchronized (queues) {
-                QueueQuery queue;
-                while ((queue = queues.poll()) != null) sendPrivately(queue);
-            }
+        Channel channel = getChannel();
+        if (channel != null && !channel.eventLoop().inEventLoop()) {
+            // drained by the event loop only, so queued queries keep their order
+            channel.eventLoop().execute(this::flushQueue);
+            return;
         }
+        QueryWriteBatcher batcher = this.batcher;
+        QueueQuery queue;
+        // stops while backpressured, the rest is drained once the channel is writable again
+        while ((batcher == null || !batcher.isBackpressured()) && (queue = queues.poll()) != null) sendPrivately(queue, true);
     }
 
     @Override
@@ -254,22 +304,42 @@ public class PreparedQueryConnection implements QueryConnection {
         return sendQuery(channel, message, true);
     }
 
+    @Override
     public QueryFuture<QueryConnection> sendQuery(QueryMessage message, boolean queue) {
         QueryCompletableFuture<QueryConnection> future = new QueryCompletableFuture<>();
-        sendPrivately(new QueueQuery(message, future, queue));
+        sendPrivately(new QueueQuery(message, future, queue), false);
         return future;
     }
 
-    private void sendPrivately(QueueQuery query) {
-        if (getChannel() == null || getChannel().eventLoop().inEventLoop()) {
-            sendDirectly(query);
+    private void sendPrivately(QueueQuery query, boolean queued) {
+        if (!isConnected()) {
+            // queue on the calling thread, the only one allowed to block
+            enqueue(query, query.queue);
+            return;
+        }
+        QueryWriteBatcher batcher = this.batcher;
+        if (!queued && batcher != null && batcher.isBackpressured() && !backpressure(batcher, query)) {
+            return;
+        }
+        if (batcher == null) {
+            sendDirectly(query, queued);
         } else {
-            getChannel().eventLoop().submit(() -> sendDirectly(query));
+            batcher.execute(() -> sendDirectly(query, queued));
         }
     }
 
-    private void sendDirectly(QueueQuery a) {
+    private void sendDirectly(QueueQuery a, boolean queued) {
         if (isConnected()) {
+            if (!queued) {
+                // the channel might have filled up since the query has been handed to the event loop
+                if (batcher.isBackpressured()) {
+                    if (!backpressure(batcher, a)) return;
+                } else if (queues.getDepth() > 0) {
+                    // keep the order of the queries spilled into the queue
+                    spillOrReject(a);
+                    return;
+                }
+            }
             ChannelFutureListener futureListener = f -> {
                 // wrapping a listener, what a shame...
                 if (f.isSuccess()) {
@@ -278,21 +348,93 @@ public class PreparedQueryConnection implements QueryConnection {
                     a.future.completeExceptionally(f.cause());
                 }
             };
-            getChannel().writeAndFlush(a.message).addListener(futureListener);
-        } else if (a.queue) {
-            synchronized (queues) {
-                if (!queues.offer(a)) {
-                    a.future.completeExceptionally(new IllegalStateException("failed to queue query"));
+            batcher.write(a.message, futureListener);
+        } else {
+            enqueue(a, a.queue);
+        }
+    }
+
+    /**
+     * Apply the backpressure policy
+     * @return true if the query must be written anyway
+     */
+    private boolean backpressure(QueryWriteBatcher batcher, QueueQuery query) {
+        switch (batcher.getBackpressurePolicy()) {
+            case REJECT:
+                reject(query);
+                return false;
+            case WAIT:
+                if (!batcher.getChannel().eventLoop().inEventLoop()) {
+                    if (batcher.awaitWritable()) return true;
+                    reject(query);
+                    return false;
                 }
-            }
+                // never blocks the event loop, spills instead
+                spillOrReject(query);
+                return false;
+            default:
+                spillOrReject(query);
+                return false;
+        }
+    }
+
+    /**
+     * Spill the query into the queue, or fail it if it mustn't be queued
+     */
+    private void spillOrReject(QueueQuery query) {
+        if (query.queue) {
+            enqueue(query, true);
+        } else {
+            reject(query);
+        }
+    }
+
+    private static void reject(QueueQuery query) {
+        query.message.release();
+        query.future.completeExceptionally(new IllegalStateException("connection is not writable"));
+    }
+
+    private void enqueue(QueueQuery a, boolean queue) {
+        if (!queue) {
+            a.message.release();
+            a.future.completeExceptionally(new IllegalStateException("connection is not connected"));
+            return;
+        }
+        Channel channel = getChannel();
+        if (!queues.offer(a, channel == null || !channel.eventLoop().inEventLoop())) {
+            a.message.release();
+            a.future.completeExceptionally(new IllegalStateException("failed to queue query"));
+        } else if (isConnected()) {
+            // connected meanwhile, the queue might have been drained already
+            flushQueue();
         }
     }
 
+    @Override
+    public int getQueueDepth() {
+        return queues.getDepth();
+    }
+
+    @Override
+    public long getDroppedQueries() {
+        return queues.getDropped();
+    }
+
     @Override
     public QueryFuture<QueryConnection> sendQuery(String channel, byte[] message, boolean queue) {
         return sendQuery(new QueryMessage(channel, message), queue);
     }
 
+    @Override
+    public QueryFuture<QueryConnection> sendQuery(String channel, ByteBuf message) {
+        return sendQuery(channel, message, true);
+    }
+
+    @Override
+    public QueryFuture<QueryConnection> sendQuery(String channel, ByteBuf message, boolean queue) {
+        return sendQuery(new QueryMessage(channel, message), queue);
+    }
+
     @Override
     public Channel getChannel() {
         return channelFuture == null ? null : channelFuture.channel();
@@ -0,0 +1,210 @@
+package septogeddon.pluginquery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import septogeddon.pluginquery.api.QueryBroadcastResult;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryFuture;
+import septogeddon.pluginquery.channel.QueryDeflater;
+import septogeddon.pluginquery.netty.QueryEncoder;
+import septogeddon.pluginquery.netty.QueryFrame;
+import septogeddon.pluginquery.netty.QueryProtocol;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encode-once broadcast. Connections are grouped by their outbound features and compression settings,
+ * every group shares one encoded frame, which each connection sends through the rest of its pipeline.
+ * The compressed frame is shared too, unless the connections keep a compression dictionary across messages.
+ * Connections alone in their group send the query on their own.
+ */
+public final class QueryBroadcast {
+
+    private QueryBroadcast() {
+    }
+
+    /**
+     * Broadcast the message
+     * @param connections the connections
+     * @param message the message
+     * @param queue whether to queue the query on connections that can't send it yet, null for the connection default
+     * @return a future completed once every connection has sent the query or failed to
+     */
+    public static QueryFuture<QueryBroadcastResult> broadcast(Collection<? extends QueryConnection> connections, QueryMessage message, Boolean queue) {
+        Aggregate aggregate = new Aggregate(connections.size());
+        Map<Group, List<QueryConnection>> groups = new HashMap<>();
+        for (QueryConnection connection : connections) {
+            Group group = Group.of(connection);
+            if (group == null) {
+                sendQuery(connection, message, queue, aggregate);
+            } else {
+                groups.computeIfAbsent(group, key -> new ArrayList<>()).add(connection);
+            }
+        }
+        for (Map.Entry<Group, List<QueryConnection>> entry : groups.entrySet()) {
+            List<QueryConnection> members = entry.getValue();
+            if (members.size() == 1) {
+                // nothing to share, keep the channel ids and dictionary of the connection
+                sendQuery(members.get(0), message, queue, aggregate);
+            } else {
+                sendShared(entry.getKey(), members, message, queue, aggregate);
+            }
+        }
+        return aggregate.future;
+    }
+
+    private static void sendQuery(QueryConnection connection, QueryMessage message, Boolean queue, Aggregate aggregate) {
+        QueryFuture<QueryConnection> future = queue == null ?
+                connection.sendQuery(message.getChannel(), message.getMessage()) :
+                connection.sendQuery(message.getChannel(), message.getMessage(), queue);
+        future.addListener(f -> aggregate.report(connection, f.isSuccess() ? null : f.getCause()));
+    }
+
+    private static void sendShared(Group group, List<QueryConnection> members, QueryMessage message, Boolean queue, Aggregate aggregate) {
+        QueryConnection first = members.get(0);
+        ByteBuf frame;
+        try {
+            ByteBuf encoded = first.getChannel().alloc().heapBuffer(message.getLength() + message.getChannel().length() + 8);
+            QueryEncoder.encode(message, encoded, group.features);
+            frame = group.deflater == null ? encoded : group.deflater.compressShared(first, encoded);
+        } catch (Exception e) {
+            for (QueryConnection connection : members) {
+                sendQuery(connection, message, queue, aggregate);
+            }
+            return;
+        }
+        try {
+            for (QueryConnection connection : members) {
+                QueryFrame shared = new QueryFrame(frame.retain().duplicate(), group.features, group.deflater == null ? null : group.deflater.getName());
+                Channel channel = connection.getChannel();
+                QueryWriteBatcher batcher = batcher(connection);
+                try {
+                    Runnable write = () -> write(connection, channel, shared, message, queue, aggregate);
+                    if (batcher != null && batcher.getChannel() == channel) {
+                        batcher.execute(write);
+                    } else {
+                        channel.eventLoop().execute(write);
+                    }
+                } catch (RejectedExecutionException e) {
+                    shared.release();
+                    aggregate.report(connection, e);
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static void write(QueryConnection connection, Channel channel, QueryFrame shared, QueryMessage message, Boolean queue, Aggregate aggregate) {
+        // features only change on the event loop, a connection that switched meanwhile encodes the query itself.
+        // so does a connection that isn't writable, to apply its backpressure policy, or that has queued queries
+        if (connection.getChannel() != channel || connection.getFeatures().getOutbound() != shared.getFeatures()
+                || !channel.isWritable() || connection.getQueueDepth() > 0) {
+            shared.release();
+            sendQuery(connection, message, queue, aggregate);
+            return;
+        }
+        ChannelFutureListener listener = (ChannelFuture f) ->
+                aggregate.report(connection, f.isSuccess() ? null : f.cause() != null ? f.cause() : new CancellationException());
+        QueryWriteBatcher batcher = batcher(connection);
+        if (batcher != null && batcher.getChannel() == channel) {
+            batcher.write(shared, shared.content().readableBytes(), listener);
+        } else {
+            channel.writeAndFlush(shared).addListener(listener);
+        }
+    }
+
+    private static QueryWriteBatcher batcher(QueryConnection connection) {
+        if (connection instanceof PreparedQueryConnection) return ((PreparedQueryConnection) connection).getWriteBatcher();
+        if (connection instanceof InjectedQueryConnection) return ((InjectedQueryConnection) connection).getWriteBatcher();
+        return null;
+    }
+
+    static class Group {
+        final int features;
+        final QueryDeflater deflater;
+        final int codec;
+        final int threshold;
+
+        /**
+         * @param deflater the compression shared by the group, null to share the encoded frame only
+         */
+        Group(int features, QueryDeflater deflater) {
+            this.features = features;
+            this.deflater = deflater;
+            this.codec = deflater == null ? 0 : deflater.getCodec().getId();
+            this.threshold = deflater == null ? 0 : deflater.getThreshold();
+        }
+
+        /**
+         * The group of a connection, null if the connection can't share the frame
+         */
+        static Group of(QueryConnection connection) {
+            Channel channel = connection.getChannel();
+            if (!connection.isHandshaken() || channel == null || !channel.isOpen() || QueryProtocol.of(connection) == null) return null;
+            int features = connection.getFeatures().getOutbound();
+            for (QueryChannelHandler handler : connection.getPipeline().snapshot().getPipes()) {
+                if (!handler.isSendingHandler()) continue;
+                // the compressed frame is shared if the compression is the first sending handler
+                if (handler instanceof QueryDeflater && ((QueryDeflater) handler).isShareable(connection)) {
+                    return new Group(features, (QueryDeflater) handler);
+                }
+                break;
+            }
+            // streaming compression, every connection runs its whole pipeline on the encoded frame
+            return new Group(features, null);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Group)) return false;
+            Group group = (Group) o;
+            return features == group.features && codec == group.codec && threshold == group.threshold
+                    && Objects.equals(name(), group.name());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(features, codec, threshold, name());
+        }
+
+        private String name() {
+            return deflater == null ? null : deflater.getName();
+        }
+    }
+
+    static class Aggregate {
+        final QueryCompletableFuture<QueryBroadcastResult> future = new QueryCompletableFuture<>();
+        final Collection<QueryConnection> succeeded = ConcurrentHashMap.newKeySet();
+        final Map<QueryConnection, Throwable> failed = new ConcurrentHashMap<>();
+        final AtomicInteger remaining;
+
+        Aggregate(int count) {
+            remaining = new AtomicInteger(count);
+            if (count == 0) complete();
+        }
+
+        void report(QueryConnection connection, Throwable cause) {
+            if (cause == null) {
+                succeeded.add(connection);
+            } else {
+                failed.put(connection, cause);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            future.complete(new QueryBroadcastResult(new ArrayList<>(succeeded), new HashMap<>(failed)));
+        }
+    }
+
+}
@@ -1,16 +1,119 @@
 package septogeddon.pluginquery;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryPipeline;
 import septogeddon.pluginquery.utils.QueryUtil;
 
+/**
+ * Handler for {@link QueryPipeline}. A handler may work on either byte arrays
+ * ({@link #onSending(QueryConnection, byte[])}) or Netty buffers ({@link #onSending(QueryConnection, ByteBuf)}),
+ * the pipeline adapts between both forms so handlers of either kind can be mixed in one pipeline.
+ * <p>
+ * The pipeline passes the value returned by a handler to the next sending or receiving handler, the default
+ * implementations return it unchanged. Other events are forwarded to the next handler by the default implementations,
+ * a handler not calling them stops the event.
+ * <p>
+ * ByteBuf handlers own the buffer they receive: returning a different buffer means the handler
+ * is responsible for releasing the received one.
+ * <p>
+ * Every connection has its own pipeline cloned from the messenger pipeline, see {@link #newInstance(QueryConnection)}.
+ * <p>
+ * A broadcast buffer may be shared by several connections, as duplicates of a single buffer: a handler
+ * must never modify the received buffer in place, the reference count can't tell whether it is shared.
+ */
 public abstract class QueryChannelHandler {
 
     protected final String name;
+    private final boolean bytesSending;
+    private final boolean bytesReceiving;
+    private final boolean bufferSending;
+    private final boolean bufferReceiving;
+
+    private static final ClassValue<boolean[]> OVERRIDES = new ClassValue<boolean[]>() {
+        @Override
+        protected boolean[] computeValue(Class<?> type) {
+            return new boolean[]{
+                    overrides(type, "onSending", byte[].class),
+                    overrides(type, "onReceiving", byte[].class),
+                    overrides(type, "onSending", ByteBuf.class),
+                    overrides(type, "onReceiving", ByteBuf.class)
+            };
+        }
+    };
 
     public QueryChannelHandler(String name) {
         QueryUtil.nonNull(name, "name");
         this.name = name;
+        boolean[] overrides = OVERRIDES.get(getClass());
+        bytesSending = overrides[0];
+        bytesReceiving = overrides[1];
+        bufferSending = overrides[2];
+        bufferReceiving = overrides[3];
+    }
+
+    private static boolean overrides(Class<?> type, String method, Class<?> parameter) {
+        try {
+            return type.getMethod(method, QueryConnection.class, parameter).getDeclaringClass() != QueryChannelHandler.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if this handler takes part in sending, see {@link QueryPipeline#dispatchSending(QueryConnection, ByteBuf, String)}
+     * @return true if one of the onSending methods is overridden
+     */
+    public boolean isSendingHandler() {
+        return bytesSending || bufferSending;
+    }
+
+    /**
+     * Check if this handler takes part in receiving, handlers that don't are skipped by the pipeline
+     * @return true if one of the onReceiving methods is overridden
+     */
+    public boolean isReceivingHandler() {
+        return bytesReceiving || bufferReceiving;
+    }
+
+    /**
+     * Get the handler used by a connection pipeline cloned from a pipeline holding this handler.
+     * Stateless handlers return themselves, handlers with per-connection state return a new instance
+     * so connections never share that state.
+     * @param connection the connection owning the new pipeline
+     * @return the handler for the connection
+     */
+    public QueryChannelHandler newInstance(QueryConnection connection) {
+        return this;
+    }
+
+    /**
+     * Copy the readable bytes of a buffer and release it
+     * @param buf the buffer
+     * @return the bytes
+     */
+    public static byte[] toByteArray(ByteBuf buf) {
+        try {
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.getBytes(buf.readerIndex(), bytes);
+            return bytes;
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * The allocator used for buffers created by this handler
+     * @param connection the connection
+     * @return the channel allocator, or the pooled allocator if the connection has no channel yet
+     */
+    protected ByteBufAllocator alloc(QueryConnection connection) {
+        Channel channel = connection == null ? null : connection.getChannel();
+        return channel == null ? PooledByteBufAllocator.DEFAULT : channel.alloc();
     }
 
     public String getName() {
@@ -24,34 +127,54 @@ public abstract class QueryChannelHandler {
     }
 
     public void onActive(QueryConnection connection) throws Exception {
-        QueryChannelHandler child = connection.getMessenger().getPipeline().nextHandler(this);
+        QueryChannelHandler child = connection.getPipeline().nextHandler(this);
         if (child != null) child.onActive(connection);
     }
 
     public void onInactive(QueryConnection connection) throws Exception {
-        QueryChannelHandler child = connection.getMessenger().getPipeline().nextHandler(this);
+        QueryChannelHandler child = connection.getPipeline().nextHandler(this);
         if (child != null) child.onInactive(connection);
     }
 
     public void onHandshake(QueryConnection connection) throws Exception {
-        QueryChannelHandler child = connection.getMessenger().getPipeline().nextHandler(this);
+        QueryChannelHandler child = connection.getPipeline().nextHandler(this);
         if (child != null) child.onHandshake(connection);
     }
 
     public byte[] onSending(QueryConnection connection, byte[] bytes) throws Exception {
-        QueryChannelHandler child = connection.getMessenger().getPipeline().nextHandler(this);
-        if (child != null) return child.onSending(connection, bytes);
+        if (!bytesSending && bufferSending) {
+            // buffer handler called with bytes
+            return toByteArray(onSending(connection, Unpooled.wrappedBuffer(bytes)));
+        }
         return bytes;
     }
 
     public byte[] onReceiving(QueryConnection connection, byte[] bytes) throws Exception {
-        QueryChannelHandler child = connection.getMessenger().getPipeline().nextHandler(this);
-        if (child != null) return child.onReceiving(connection, bytes);
+        if (!bytesReceiving && bufferReceiving) {
+            // buffer handler called with bytes
+            return toByteArray(onReceiving(connection, Unpooled.wrappedBuffer(bytes)));
+        }
         return bytes;
     }
 
+    public ByteBuf onSending(QueryConnection connection, ByteBuf buf) throws Exception {
+        if (!bufferSending && bytesSending) {
+            // byte array handler called with buffer
+            return Unpooled.wrappedBuffer(onSending(connection, toByteArray(buf)));
+        }
+        return buf;
+    }
+
+    public ByteBuf onReceiving(QueryConnection connection, ByteBuf buf) throws Exception {
+        if (!bufferReceiving && bytesReceiving) {
+            // byte array handler called with buffer
+            return Unpooled.wrappedBuffer(onReceiving(connection, toByteArray(buf)));
+        }
+        return buf;
+    }
+
     public void onCaughtException(QueryConnection connection, Throwable thrown) throws Exception {
-        QueryChannelHandler child = connection.getMessenger().getPipeline().nextHandler(this);
+        QueryChannelHandler child = connection.getPipeline().nextHandler(this);
         if (child != null) child.onCaughtException(connection, thrown);
         else thrown.printStackTrace();
     }
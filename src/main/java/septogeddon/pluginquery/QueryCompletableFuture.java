@@ -11,14 +11,15 @@ public class QueryCompletableFuture<T> extends QueryFutureAdapter<T> {
 
     @Override
     public void complete(T result) {
-        future.complete(result);
+        // the result must be visible once joinThread returns
         super.complete(result);
+        future.complete(result);
     }
 
     @Override
     public void completeExceptionally(Throwable cause) {
-        future.completeExceptionally(cause);
         super.completeExceptionally(cause);
+        future.completeExceptionally(cause);
     }
 
     @Override
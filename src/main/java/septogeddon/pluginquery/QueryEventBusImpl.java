@@ -1,28 +1,149 @@
 package septogeddon.pluginquery;
 
-import septogeddon.pluginquery.api.QueryConnection;
-import septogeddon.pluginquery.api.QueryEventBus;
-import septogeddon.pluginquery.api.QueryListener;
+import septogeddon.pluginquery.api.*;
+import septogeddon.pluginquery.netty.QueryInputStream;
 import septogeddon.pluginquery.utils.QueryUtil;
 
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Message listeners are indexed by channel, so dispatching a message only calls the listeners
+ * registered for every channel, for that exact channel, or for one of its prefixes, once each even
+ * if registered several times. Registration is serialized, dispatching never locks and reuses the
+ * listeners matched for the channel until the registrations change.
+ */
 public class QueryEventBusImpl implements QueryEventBus {
 
+    private static final int[] NO_PREFIX = new int[0];
+    private static final QueryListener[] NO_LISTENER = new QueryListener[0];
+    // channels are chosen by the remote, only that many are cached
+    private static final int MAX_CACHED_CHANNELS = 1024;
+
     private final Set<QueryListener> listeners = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<QueryListener>> channels = new ConcurrentHashMap<>();
+    private final Map<String, Set<QueryListener>> prefixes = new ConcurrentHashMap<>();
+    private final Map<QueryListener, Registration> registrations = new ConcurrentHashMap<>();
     private final Set<QueryEventBus> parents = ConcurrentHashMap.newKeySet();
+    private volatile int[] prefixLengths = NO_PREFIX;
+    // replaced on every registration change, a dispatch racing with it caches into the discarded map
+    private volatile Map<String, QueryListener[]> dispatchCache = new ConcurrentHashMap<>();
+
+    // listeners keep the contract of QueryListener, only no-op defaults are skipped
+    private static final ClassValue<boolean[]> LISTENS = new ClassValue<boolean[]>() {
+        @Override
+        protected boolean[] computeValue(Class<?> type) {
+            return new boolean[]{
+                    overrides(type, "onQueryReceived", QueryConnection.class, String.class, byte[].class),
+                    overrides(type, "onConnectionStateChange", QueryConnection.class)
+                            || overrides(type, "onConnectionWritabilityChange", QueryConnection.class)
+            };
+        }
+    };
+
+    private static boolean overrides(Class<?> type, String method, Class<?>... parameters) {
+        try {
+            Class<?> declaring = type.getMethod(method, parameters).getDeclaringClass();
+            return declaring != QueryConnectionStateListener.class && declaring != QueryMessageListener.class
+                    && declaring != QueryRequestListener.class && declaring != QueryStreamListener.class
+                    && declaring != QueryListener.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    private static boolean listensMessage(QueryListener listener) {
+        return LISTENS.get(listener.getClass())[0] || listener instanceof QueryStreamListener || listener instanceof QueryRequestListener;
+    }
+
+    private static boolean listensState(QueryListener listener) {
+        return LISTENS.get(listener.getClass())[1];
+    }
+
+    private Registration registration(QueryListener listener) {
+        return registrations.computeIfAbsent(listener, key -> new Registration());
+    }
+
+    private static void index(Map<String, Set<QueryListener>> index, String key, QueryListener listener) {
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(listener);
+    }
+
+    private static void unindex(Map<String, Set<QueryListener>> index, String key, QueryListener listener) {
+        Set<QueryListener> set = index.get(key);
+        if (set != null) {
+            set.remove(listener);
+            if (set.isEmpty()) index.remove(key);
+        }
+    }
+
+    private void updatePrefixLengths() {
+        TreeSet<Integer> lengths = new TreeSet<>();
+        for (String prefix : prefixes.keySet()) {
+            lengths.add(prefix.length());
+        }
+        int[] updated = new int[lengths.size()];
+        int i = 0;
+        for (int length : lengths) {
+            updated[i++] = length;
+        }
+        prefixLengths = updated;
+    }
+
+    @Override
+    public synchronized void registerListener(QueryListener listener) {
+        QueryUtil.nonNull(listener, "listener");
+        registration(listener);
+        if (listensMessage(listener)) {
+            listeners.add(listener);
+            invalidate();
+        }
+    }
+
+    @Override
+    public synchronized void registerListener(String channel, QueryListener listener) {
+        QueryUtil.nonNull(channel, "channel");
+        QueryUtil.nonNull(listener, "listener");
+        registration(listener).channels.add(channel);
+        if (listensMessage(listener)) {
+            index(channels, channel, listener);
+            invalidate();
+        }
+    }
 
     @Override
-    public void registerListener(QueryListener listener) {
+    public synchronized void registerPrefixListener(String prefix, QueryListener listener) {
+        QueryUtil.nonNull(prefix, "prefix");
         QueryUtil.nonNull(listener, "listener");
-        listeners.add(listener);
+        registration(listener).prefixes.add(prefix);
+        if (listensMessage(listener)) {
+            index(prefixes, prefix, listener);
+            updatePrefixLengths();
+            invalidate();
+        }
     }
 
     @Override
-    public void unregisterListener(QueryListener listener) {
+    public synchronized void unregisterListener(QueryListener listener) {
         QueryUtil.nonNull(listener, "listener");
+        Registration registration = registrations.remove(listener);
+        if (registration == null) return;
         listeners.remove(listener);
+        for (String channel : registration.channels) {
+            unindex(channels, channel, listener);
+        }
+        for (String prefix : registration.prefixes) {
+            unindex(prefixes, prefix, listener);
+        }
+        if (!registration.prefixes.isEmpty()) {
+            updatePrefixLengths();
+        }
+        invalidate();
+    }
+
+    private void invalidate() {
+        dispatchCache = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -37,9 +158,30 @@ public class QueryEventBusImpl implements QueryEventBus {
         parents.remove(eventBus);
     }
 
+    /**
+     * The listeners matching a channel, once each: every channel, the exact channel, then its prefixes.
+     * Cached per channel until the registrations change.
+     */
+    private QueryListener[] matching(String channel) {
+        Map<String, QueryListener[]> cache = dispatchCache;
+        QueryListener[] matching = cache.get(channel);
+        if (matching != null) return matching;
+        Set<QueryListener> collected = new LinkedHashSet<>(listeners);
+        Set<QueryListener> exact = channels.get(channel);
+        if (exact != null) collected.addAll(exact);
+        for (int length : prefixLengths) {
+            if (length > channel.length()) break;
+            Set<QueryListener> prefixed = prefixes.get(channel.substring(0, length));
+            if (prefixed != null) collected.addAll(prefixed);
+        }
+        matching = collected.toArray(NO_LISTENER);
+        if (cache.size() < MAX_CACHED_CHANNELS) cache.put(channel, matching);
+        return matching;
+    }
+
     @Override
     public void dispatchMessage(QueryConnection connection, String channel, byte[] message) {
-        for (QueryListener listener : listeners) {
+        for (QueryListener listener : matching(channel)) {
             try {
                 listener.onQueryReceived(connection, channel, message);
             } catch (Throwable t) {
@@ -51,9 +193,48 @@ public class QueryEventBusImpl implements QueryEventBus {
         }
     }
 
+    @Override
+    public boolean dispatchStream(QueryConnection connection, String channel, QueryInputStream stream) {
+        boolean received = false;
+        for (QueryListener listener : matching(channel)) {
+            if (!(listener instanceof QueryStreamListener)) continue;
+            received = true;
+            try {
+                ((QueryStreamListener) listener).onStreamOpened(connection, channel, stream);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+        for (QueryEventBus parent : parents) {
+            received |= parent.dispatchStream(connection, channel, stream);
+        }
+        return received;
+    }
+
+    @Override
+    public CompletionStage<byte[]> dispatchRequest(QueryConnection connection, String channel, byte[] message) {
+        for (QueryListener listener : matching(channel)) {
+            if (!(listener instanceof QueryRequestListener)) continue;
+            try {
+                CompletionStage<byte[]> response = ((QueryRequestListener) listener).onRequestReceived(connection, channel, message);
+                if (response != null) return response;
+            } catch (Throwable t) {
+                CompletableFuture<byte[]> failed = new CompletableFuture<>();
+                failed.completeExceptionally(t);
+                return failed;
+            }
+        }
+        for (QueryEventBus parent : parents) {
+            CompletionStage<byte[]> response = parent.dispatchRequest(connection, channel, message);
+            if (response != null) return response;
+        }
+        return null;
+    }
+
     @Override
     public void dispatchConnectionState(QueryConnection connection) {
-        for (QueryListener listener : listeners) {
+        for (QueryListener listener : registrations.keySet()) {
+            if (!listensState(listener)) continue;
             try {
                 listener.onConnectionStateChange(connection);
             } catch (Throwable t) {
@@ -65,4 +246,24 @@ public class QueryEventBusImpl implements QueryEventBus {
         }
     }
 
+    @Override
+    public void dispatchConnectionWritability(QueryConnection connection) {
+        for (QueryListener listener : registrations.keySet()) {
+            if (!listensState(listener)) continue;
+            try {
+                listener.onConnectionWritabilityChange(connection);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+        for (QueryEventBus parent : parents) {
+            parent.dispatchConnectionWritability(connection);
+        }
+    }
+
+    static class Registration {
+        final Set<String> channels = new HashSet<>();
+        final Set<String> prefixes = new HashSet<>();
+    }
+
 }
@@ -11,7 +11,7 @@ public abstract class QueryFutureAdapter<T> implements QueryFuture<T> {
 
     protected T result;
     protected Throwable cause;
-    protected boolean done;
+    protected volatile boolean done;
     private final Set<Consumer<QueryFuture<T>>> listeners = ConcurrentHashMap.newKeySet();
 
     public void complete(T result) {
@@ -1,11 +1,21 @@
 package septogeddon.pluginquery;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import septogeddon.pluginquery.netty.QueryRequests;
 import septogeddon.pluginquery.utils.QueryUtil;
 
-public class QueryMessage {
+/**
+ * A query of a channel. The payload is either a byte array or a {@link ByteBuf} owned by the message,
+ * released once the message has been encoded or dropped.
+ */
+public class QueryMessage extends AbstractReferenceCounted {
 
     private final String channel;
     private byte[] message;
+    private ByteBuf payload;
+    private int correlation;
 
     public QueryMessage(String channel, byte[] message) {
         QueryUtil.illegalArgument(channel.length() > Byte.MAX_VALUE, "channel length too long > " + Byte.MAX_VALUE);
@@ -13,16 +23,92 @@ public class QueryMessage {
         this.message = message;
     }
 
+    /**
+     * @param channel the channel
+     * @param payload the payload, owned by the message from now on
+     */
+    public QueryMessage(String channel, ByteBuf payload) {
+        QueryUtil.illegalArgument(channel.length() > Byte.MAX_VALUE, "channel length too long > " + Byte.MAX_VALUE);
+        this.channel = channel;
+        this.payload = payload;
+    }
+
     public String getChannel() {
         return channel;
     }
 
+    /**
+     * Get the payload as a byte array, copied once if the message holds a {@link ByteBuf}
+     * @return the payload
+     */
     public byte[] getMessage() {
+        if (message == null && payload != null) {
+            message = new byte[payload.readableBytes()];
+            payload.getBytes(payload.readerIndex(), message);
+        }
         return message;
     }
 
     public void setMessage(byte[] message) {
+        releasePayload();
         this.message = message;
     }
 
+    /**
+     * Get the payload buffer
+     * @return the buffer, or null if the payload is a byte array
+     */
+    public ByteBuf getPayload() {
+        return payload;
+    }
+
+    /**
+     * Get the payload length
+     * @return the number of bytes
+     */
+    public int getLength() {
+        return payload != null ? payload.readableBytes() : message.length;
+    }
+
+    /**
+     * Write the payload without consuming it
+     * @param output the output
+     */
+    public void writePayload(ByteBuf output) {
+        if (payload != null) {
+            output.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        } else {
+            output.writeBytes(message);
+        }
+    }
+
+    /**
+     * Get the correlation header, see {@link QueryRequests}
+     * @return the header, 0 if the query is neither a request nor a response
+     */
+    public int getCorrelation() {
+        return correlation;
+    }
+
+    public void setCorrelation(int correlation) {
+        this.correlation = correlation;
+    }
+
+    private void releasePayload() {
+        if (payload != null) {
+            payload.release();
+            payload = null;
+        }
+    }
+
+    @Override
+    protected void deallocate() {
+        releasePayload();
+    }
+
+    // declared by ReferenceCounted since Netty 4.1
+    public ReferenceCounted touch(Object hint) {
+        return this;
+    }
+
 }
@@ -101,6 +101,20 @@ public class QueryMessengerImpl implements QueryMessenger {
         return new ArrayList<>(connections);
     }
 
+    @Override
+    public boolean broadcastQuery(String channel, byte[] message) {
+        Collection<? extends QueryConnection> active = getActiveConnections();
+        QueryBroadcast.broadcast(active, new QueryMessage(channel, message), null);
+        return !active.isEmpty();
+    }
+
+    @Override
+    public boolean broadcastQuery(String channel, byte[] message, boolean queue) {
+        Collection<? extends QueryConnection> active = getActiveConnections();
+        QueryBroadcast.broadcast(active, new QueryMessage(channel, message), queue);
+        return !active.isEmpty();
+    }
+
     @Override
     public QueryMetadata getMetadata() {
         return metadata;
@@ -0,0 +1,147 @@
+package septogeddon.pluginquery;
+
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryMetadata;
+import septogeddon.pluginquery.api.QueryOverflowPolicy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free bounded queue holding the queries of an offline connection. The capacity and the overflow policy
+ * are read from the connection metadata on every offer, see {@link QueryContext#METAKEY_QUEUE_CAPACITY}
+ * and {@link QueryContext#METAKEY_QUEUE_POLICY}.
+ * @param <E> the queued element
+ */
+public class QueryOfflineQueue<E> {
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Queue<E> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final QueryMetadata metadata;
+    private final Consumer<E> onDrop;
+
+    /**
+     * @param metadata the connection metadata
+     * @param onDrop called with every element dropped by {@link QueryOverflowPolicy#DROP_OLDEST} or {@link #clear()}
+     */
+    public QueryOfflineQueue(QueryMetadata metadata, Consumer<E> onDrop) {
+        this.metadata = metadata;
+        this.onDrop = onDrop;
+    }
+
+    private boolean reserve(int capacity) {
+        while (true) {
+            int current = depth.get();
+            if (current >= capacity) return false;
+            if (depth.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Queue the element
+     * @param element the element
+     * @param mayBlock false if the caller must not block, {@link QueryOverflowPolicy#BLOCK} rejects right away
+     * @return false if the element has been rejected
+     */
+    public boolean offer(E element, boolean mayBlock) {
+        int capacity = metadata.getData(QueryContext.METAKEY_QUEUE_CAPACITY, QueryContext.DEFAULT_QUEUE_CAPACITY);
+        if (!reserve(capacity)) {
+            QueryOverflowPolicy policy = metadata.getData(QueryContext.METAKEY_QUEUE_POLICY, QueryOverflowPolicy.DROP_OLDEST);
+            switch (policy) {
+                case DROP_OLDEST:
+                    long park = 1000;
+                    while (!reserve(capacity)) {
+                        E oldest = poll();
+                        if (oldest != null) {
+                            drop(oldest);
+                            continue;
+                        }
+                        // a zero capacity queue, nothing to make room from
+                        if (capacity <= 0) return reject();
+                        // other producers reserved the room but haven't queued their element yet
+                        LockSupport.parkNanos(park);
+                        park = Math.min(park * 2, MAX_PARK_NANOS);
+                    }
+                    break;
+                case BLOCK:
+                    if (!mayBlock || !await(capacity)) return reject();
+                    break;
+                default:
+                    return reject();
+            }
+        }
+        queue.offer(element);
+        return true;
+    }
+
+    private boolean reject() {
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    private void drop(E element) {
+        dropped.incrementAndGet();
+        onDrop.accept(element);
+    }
+
+    private boolean await(int capacity) {
+        long timeout = metadata.getData(QueryContext.METAKEY_QUEUE_TIMEOUT, QueryContext.DEFAULT_QUEUE_TIMEOUT);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long park = 1000;
+        while (!reserve(capacity)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) return false;
+            // the queue drains in bursts once the connection is back, back off up to a millisecond
+            LockSupport.parkNanos(Math.min(park, remaining));
+            park = Math.min(park * 2, MAX_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the oldest element
+     * @return the element, or null if the queue is empty
+     */
+    public E poll() {
+        E element = queue.poll();
+        if (element != null) {
+            depth.decrementAndGet();
+        }
+        return element;
+    }
+
+    /**
+     * Drop every queued element
+     */
+    public void clear() {
+        E element;
+        while ((element = poll()) != null) {
+            drop(element);
+        }
+    }
+
+    /**
+     * Get the number of queued elements
+     * @return the depth
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Get the number of elements dropped or rejected since the queue has been created
+     * @return the drop count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+}
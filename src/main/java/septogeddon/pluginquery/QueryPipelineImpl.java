@@ -1,45 +1,88 @@
 package septogeddon.pluginquery;
 
+import io.netty.buffer.ByteBuf;
 import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryPipeline;
 import septogeddon.pluginquery.utils.QueryUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.function.ToIntFunction;
 
+/**
+ * Copy-on-write pipeline. Changes are serialized and publish a new {@link QueryPipelineSnapshot},
+ * dispatching reads the current snapshot without locking.
+ */
 public class QueryPipelineImpl implements QueryPipeline {
 
-    private final ArrayList<QueryChannelHandler> handlers = new ArrayList<>();
+    private static final QueryChannelHandler[] EMPTY = new QueryChannelHandler[0];
+
+    private final Object lock = new Object();
+    private volatile QueryPipelineSnapshot snapshot;
+
+    public QueryPipelineImpl() {
+        snapshot = new QueryPipelineSnapshot(this, EMPTY);
+    }
+
+    /**
+     * Clone a pipeline for a connection, every handler is replaced by {@link QueryChannelHandler#newInstance(QueryConnection)}
+     * @param template the pipeline to clone
+     * @param connection the connection owning the clone
+     */
+    public QueryPipelineImpl(QueryPipeline template, QueryConnection connection) {
+        QueryUtil.nonNull(template, "template");
+        QueryChannelHandler[] handlers = template.snapshot().getPipes().toArray(EMPTY);
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = handlers[i].newInstance(connection);
+            QueryUtil.nonNull(handlers[i], "handler instance");
+        }
+        snapshot = new QueryPipelineSnapshot(this, handlers);
+    }
 
     public int findPos(String s) {
-        for (int i = 0; i < handlers.size(); i++) {
-            QueryChannelHandler hand = handlers.get(i);
-            if (hand.getName().equals(s)) {
+        return snapshot.indexOf(s);
+    }
+
+    private void publish(QueryChannelHandler[] handlers) {
+        snapshot = new QueryPipelineSnapshot(this, handlers);
+    }
+
+    private static int indexOf(QueryChannelHandler[] handlers, String name) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i].getName().equals(name)) {
                 return i;
             }
         }
         return -1;
     }
 
-    @Override
-    public boolean remove(String str) {
-        return handlers.removeIf(handler -> {
-            if (handler.getName().equals(str)) {
-                try {
-                    handler.onRemoved(this);
-                } catch (Exception e) {
-                    dispatchUncaughtException(null, e);
+    /**
+     * Replace the handlers named like the handler by the handler, published as a single snapshot
+     * so a concurrent dispatch never sees the chain without both
+     * @param handler the handler
+     * @param position the insertion index among the other handlers, negative if the anchor is missing
+     * @return false if the anchor is missing, the pipeline is left untouched
+     */
+    private boolean add(QueryChannelHandler handler, ToIntFunction<QueryChannelHandler[]> position) {
+        QueryUtil.nonNull(handler, "handler");
+        ArrayList<QueryChannelHandler> removed = new ArrayList<>();
+        synchronized (lock) {
+            QueryChannelHandler[] handlers = snapshot.handlers();
+            ArrayList<QueryChannelHandler> kept = new ArrayList<>(handlers.length + 1);
+            for (QueryChannelHandler other : handlers) {
+                if (other.getName().equals(handler.getName())) {
+                    removed.add(other);
+                } else {
+                    kept.add(other);
                 }
-                return true;
             }
-            return false;
-        });
-    }
-
-    @Override
-    public boolean addFirst(QueryChannelHandler handler) {
-        remove(handler);
-        handlers.add(0, handler);
+            int index = position.applyAsInt(kept.toArray(EMPTY));
+            if (index < 0) return false;
+            kept.add(index, handler);
+            publish(kept.toArray(EMPTY));
+        }
+        removed(removed);
         try {
             handler.onAdded(this);
         } catch (Exception e) {
@@ -48,131 +91,129 @@ public class QueryPipelineImpl implements QueryPipeline {
         return true;
     }
 
+    private void removed(Collection<QueryChannelHandler> removed) {
+        for (QueryChannelHandler handler : removed) {
+            try {
+                handler.onRemoved(this);
+            } catch (Exception e) {
+                dispatchUncaughtException(null, e);
+            }
+        }
+    }
+
     @Override
-    public boolean addBefore(String before, QueryChannelHandler handler) {
-        remove(handler);
-        int index = findPos(before);
-        if (index < 0) return false;
-        handlers.add(index, handler);
-        try {
-            handler.onAdded(this);
-        } catch (Exception e) {
-            dispatchUncaughtException(null, e);
+    public boolean remove(String str) {
+        ArrayList<QueryChannelHandler> removed = new ArrayList<>();
+        synchronized (lock) {
+            QueryChannelHandler[] handlers = snapshot.handlers();
+            ArrayList<QueryChannelHandler> kept = new ArrayList<>(handlers.length);
+            for (QueryChannelHandler handler : handlers) {
+                if (handler.getName().equals(str)) {
+                    removed.add(handler);
+                } else {
+                    kept.add(handler);
+                }
+            }
+            if (removed.isEmpty()) return false;
+            publish(kept.toArray(EMPTY));
         }
+        removed(removed);
         return true;
     }
 
+    @Override
+    public boolean addFirst(QueryChannelHandler handler) {
+        return add(handler, handlers -> 0);
+    }
+
+    @Override
+    public boolean addBefore(String before, QueryChannelHandler handler) {
+        return add(handler, handlers -> indexOf(handlers, before));
+    }
+
     @Override
     public boolean addAfter(String after, QueryChannelHandler handler) {
-        remove(handler);
-        int index = findPos(after);
-        if (index < 0) return false;
-        handlers.add(index + 1, handler);
-        try {
-            handler.onAdded(this);
-        } catch (Exception e) {
-            dispatchUncaughtException(null, e);
-        }
-        return true;
+        return add(handler, handlers -> {
+            int index = indexOf(handlers, after);
+            return index < 0 ? -1 : index + 1;
+        });
     }
 
     @Override
     public boolean addLast(QueryChannelHandler handler) {
-        remove(handler);
-        handlers.add(handler);
-        try {
-            handler.onAdded(this);
-        } catch (Exception e) {
-            dispatchUncaughtException(null, e);
-        }
-        return true;
+        return add(handler, handlers -> handlers.length);
+    }
+
+    @Override
+    public QueryPipeline snapshot() {
+        return snapshot;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public <T extends QueryChannelHandler> T get(String key) {
-        int index = findPos(key);
-        return index < 0 ? null : (T) handlers.get(index);
+        return snapshot.get(key);
     }
 
     @Override
     public void dispatchActive(QueryConnection connection) {
-        if (!handlers.isEmpty()) {
-            try {
-                handlers.get(0).onActive(connection);
-            } catch (Exception e) {
-                dispatchUncaughtException(connection, e);
-            }
-        }
+        snapshot.dispatchActive(connection);
     }
 
     @Override
     public void dispatchInactive(QueryConnection connection) {
-        if (!handlers.isEmpty()) {
-            try {
-                handlers.get(0).onInactive(connection);
-            } catch (Exception e) {
-                dispatchUncaughtException(connection, e);
-            }
-        }
+        snapshot.dispatchInactive(connection);
     }
 
     @Override
     public byte[] dispatchSending(QueryConnection connection, byte[] bytes) {
-        if (!handlers.isEmpty()) {
-            try {
-                bytes = handlers.get(0).onSending(connection, bytes);
-                QueryUtil.nonNull(bytes, "bytes");
-            } catch (Exception e) {
-                dispatchUncaughtException(connection, e);
-            }
-        }
-        return bytes;
+        return snapshot.dispatchSending(connection, bytes);
     }
 
     @Override
     public byte[] dispatchReceiving(QueryConnection connection, byte[] bytes) {
-        if (!handlers.isEmpty()) {
-            try {
-                bytes = handlers.get(0).onReceiving(connection, bytes);
-                QueryUtil.nonNull(bytes, "bytes");
-            } catch (Exception e) {
-                dispatchUncaughtException(connection, e);
-            }
-        }
-        return bytes;
+        return snapshot.dispatchReceiving(connection, bytes);
+    }
+
+    @Override
+    public ByteBuf dispatchSending(QueryConnection connection, ByteBuf buf) {
+        return snapshot.dispatchSending(connection, buf);
+    }
+
+    @Override
+    public ByteBuf dispatchSending(QueryConnection connection, ByteBuf buf, String after) {
+        return snapshot.dispatchSending(connection, buf, after);
+    }
+
+    @Override
+    public ByteBuf dispatchReceiving(QueryConnection connection, ByteBuf buf) {
+        return snapshot.dispatchReceiving(connection, buf);
     }
 
     @Override
     public void dispatchUncaughtException(QueryConnection connection, Throwable thrown) {
-        if (!handlers.isEmpty()) {
-            try {
-                handlers.get(0).onCaughtException(connection, thrown);
-            } catch (Throwable e) {
-                QueryUtil.Throw(e);
-            }
-        } else thrown.printStackTrace();
+        snapshot.dispatchUncaughtException(connection, thrown);
     }
 
     @Override
     public QueryChannelHandler nextHandler(QueryChannelHandler of) {
-        int pos = handlers.indexOf(of);
-        return pos + 1 >= handlers.size() ? null : handlers.get(pos + 1);
+        // keep walking the snapshot the dispatch started on
+        QueryPipelineSnapshot dispatching = QueryPipelineSnapshot.dispatching(this);
+        return (dispatching != null ? dispatching : snapshot).nextHandler(of);
     }
 
     @Override
     public QueryChannelHandler first() {
-        return handlers.isEmpty() ? null : handlers.get(0);
+        return snapshot.first();
     }
 
     @Override
     public QueryChannelHandler last() {
-        return handlers.isEmpty() ? null : handlers.get(handlers.size() - 1);
+        return snapshot.last();
     }
 
     @Override
     public Collection<? extends QueryChannelHandler> getPipes() {
-        return new ArrayList<>(handlers);
+        return new ArrayList<>(Arrays.asList(snapshot.handlers()));
     }
 
 }
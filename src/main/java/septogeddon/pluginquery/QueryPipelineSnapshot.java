@@ -0,0 +1,246 @@
+package septogeddon.pluginquery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryPipeline;
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Immutable handler chain of a {@link QueryPipelineImpl}. The pipeline swaps a new snapshot on every change,
+ * dispatching never locks and a dispatch started on a snapshot keeps walking that snapshot until it ends,
+ * even if the pipeline changes meanwhile. Sending and receiving step through the handler array,
+ * other events are forwarded by the handlers through {@link #nextHandler(QueryChannelHandler)}.
+ */
+public class QueryPipelineSnapshot implements QueryPipeline {
+
+    private static final FastThreadLocal<QueryPipelineSnapshot> DISPATCHING = new FastThreadLocal<>();
+
+    private final QueryPipeline owner;
+    private final QueryChannelHandler[] handlers;
+    private final Map<QueryChannelHandler, QueryChannelHandler> successors;
+
+    QueryPipelineSnapshot(QueryPipeline owner, QueryChannelHandler[] handlers) {
+        this.owner = owner;
+        this.handlers = handlers;
+        successors = new IdentityHashMap<>(handlers.length * 2);
+        for (int i = 0; i + 1 < handlers.length; i++) {
+            successors.put(handlers[i], handlers[i + 1]);
+        }
+    }
+
+    /**
+     * Get the snapshot currently dispatching on this thread for the pipeline
+     * @param owner the pipeline
+     * @return the snapshot, or null if the thread isn't dispatching on the pipeline
+     */
+    static QueryPipelineSnapshot dispatching(QueryPipeline owner) {
+        QueryPipelineSnapshot snapshot = DISPATCHING.get();
+        return snapshot != null && snapshot.owner == owner ? snapshot : null;
+    }
+
+    QueryChannelHandler[] handlers() {
+        return handlers;
+    }
+
+    int indexOf(String name) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private QueryPipelineSnapshot pin() {
+        QueryPipelineSnapshot previous = DISPATCHING.get();
+        DISPATCHING.set(this);
+        return previous;
+    }
+
+    private static void unpin(QueryPipelineSnapshot previous) {
+        DISPATCHING.set(previous);
+    }
+
+    @Override
+    public boolean remove(String str) {
+        throw new UnsupportedOperationException("snapshot");
+    }
+
+    @Override
+    public boolean addFirst(QueryChannelHandler handler) {
+        throw new UnsupportedOperationException("snapshot");
+    }
+
+    @Override
+    public boolean addBefore(String before, QueryChannelHandler handler) {
+        throw new UnsupportedOperationException("snapshot");
+    }
+
+    @Override
+    public boolean addAfter(String after, QueryChannelHandler handler) {
+        throw new UnsupportedOperationException("snapshot");
+    }
+
+    @Override
+    public boolean addLast(QueryChannelHandler handler) {
+        throw new UnsupportedOperationException("snapshot");
+    }
+
+    @Override
+    public QueryPipeline snapshot() {
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends QueryChannelHandler> T get(String key) {
+        int index = indexOf(key);
+        return index < 0 ? null : (T) handlers[index];
+    }
+
+    @Override
+    public Collection<? extends QueryChannelHandler> getPipes() {
+        return Arrays.asList(handlers.clone());
+    }
+
+    @Override
+    public void dispatchActive(QueryConnection connection) {
+        if (handlers.length > 0) {
+            QueryPipelineSnapshot previous = pin();
+            try {
+                handlers[0].onActive(connection);
+            } catch (Exception e) {
+                dispatchUncaughtException(connection, e);
+            } finally {
+                unpin(previous);
+            }
+        }
+    }
+
+    @Override
+    public void dispatchInactive(QueryConnection connection) {
+        if (handlers.length > 0) {
+            QueryPipelineSnapshot previous = pin();
+            try {
+                handlers[0].onInactive(connection);
+            } catch (Exception e) {
+                dispatchUncaughtException(connection, e);
+            } finally {
+                unpin(previous);
+            }
+        }
+    }
+
+    @Override
+    public byte[] dispatchSending(QueryConnection connection, byte[] bytes) {
+        try {
+            for (QueryChannelHandler handler : handlers) {
+                if (!handler.isSendingHandler()) continue;
+                bytes = handler.onSending(connection, bytes);
+                QueryUtil.nonNull(bytes, "bytes");
+            }
+        } catch (Exception e) {
+            dispatchUncaughtException(connection, e);
+        }
+        return bytes;
+    }
+
+    @Override
+    public byte[] dispatchReceiving(QueryConnection connection, byte[] bytes) {
+        try {
+            for (QueryChannelHandler handler : handlers) {
+                if (!handler.isReceivingHandler()) continue;
+                bytes = handler.onReceiving(connection, bytes);
+                QueryUtil.nonNull(bytes, "bytes");
+            }
+        } catch (Exception e) {
+            dispatchUncaughtException(connection, e);
+        }
+        return bytes;
+    }
+
+    @Override
+    public ByteBuf dispatchSending(QueryConnection connection, ByteBuf buf) {
+        return dispatchSending(connection, buf, 0);
+    }
+
+    @Override
+    public ByteBuf dispatchSending(QueryConnection connection, ByteBuf buf, String after) {
+        int index = indexOf(after);
+        if (index < 0) {
+            buf.release();
+            dispatchUncaughtException(connection, new IllegalArgumentException("unknown handler " + after));
+            return null;
+        }
+        return dispatchSending(connection, buf, index + 1);
+    }
+
+    /**
+     * Pass the buffer through the sending handlers, in order from an index
+     * @return the buffer, or null if a handler failed
+     */
+    private ByteBuf dispatchSending(QueryConnection connection, ByteBuf buf, int from) {
+        try {
+            for (int i = from; i < handlers.length; i++) {
+                if (!handlers[i].isSendingHandler()) continue;
+                buf = handlers[i].onSending(connection, buf);
+                QueryUtil.nonNull(buf, "buf");
+            }
+        } catch (Exception e) {
+            dispatchUncaughtException(connection, e);
+            return null;
+        }
+        return buf;
+    }
+
+    @Override
+    public ByteBuf dispatchReceiving(QueryConnection connection, ByteBuf buf) {
+        try {
+            for (QueryChannelHandler handler : handlers) {
+                if (!handler.isReceivingHandler()) continue;
+                buf = handler.onReceiving(connection, buf);
+                QueryUtil.nonNull(buf, "buf");
+            }
+        } catch (Exception e) {
+            dispatchUncaughtException(connection, e);
+            return null;
+        }
+        return buf;
+    }
+
+    @Override
+    public void dispatchUncaughtException(QueryConnection connection, Throwable thrown) {
+        if (handlers.length > 0) {
+            QueryPipelineSnapshot previous = pin();
+            try {
+                handlers[0].onCaughtException(connection, thrown);
+            } catch (Throwable e) {
+                QueryUtil.Throw(e);
+            } finally {
+                unpin(previous);
+            }
+        } else thrown.printStackTrace();
+    }
+
+    @Override
+    public QueryChannelHandler nextHandler(QueryChannelHandler of) {
+        return successors.get(of);
+    }
+
+    @Override
+    public QueryChannelHandler first() {
+        return handlers.length == 0 ? null : handlers[0];
+    }
+
+    @Override
+    public QueryChannelHandler last() {
+        return handlers.length == 0 ? null : handlers[handlers.length - 1];
+    }
+
+}
@@ -0,0 +1,196 @@
+package septogeddon.pluginquery;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import septogeddon.pluginquery.api.QueryBackpressurePolicy;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryMetadata;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesce the writes of a channel when {@link QueryContext#METAKEY_WRITE_BATCHING} is enabled on the connection:
+ * messages are written without flushing and the channel is flushed once at the end of the event loop tick,
+ * after {@link QueryContext#METAKEY_FLUSH_DELAY}, or as soon as {@link QueryContext#METAKEY_FLUSH_BYTES} are pending.
+ * Tasks submitted from other threads are drained by a single event loop task.
+ * When batching is disabled every write is flushed immediately and every task is submitted on its own.
+ */
+public class QueryWriteBatcher {
+
+    private final Channel channel;
+    private final QueryMetadata metadata;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drain = this::drain;
+    private final Runnable flush = this::scheduledFlush;
+    private final Object writability = new Object();
+    // only touched on the event loop
+    private int pendingBytes;
+    private boolean flushScheduled;
+
+    /**
+     * @param channel the channel
+     * @param metadata the connection metadata holding the batching options
+     */
+    public QueryWriteBatcher(Channel channel, QueryMetadata metadata) {
+        this.channel = channel;
+        this.metadata = metadata;
+        applyWaterMarks();
+    }
+
+    private void applyWaterMarks() {
+        int high = Math.max(1, metadata.getData(QueryContext.METAKEY_WRITE_HIGH_WATER_MARK, QueryContext.DEFAULT_WRITE_HIGH_WATER_MARK));
+        int low = Math.min(high, Math.max(0, metadata.getData(QueryContext.METAKEY_WRITE_LOW_WATER_MARK, QueryContext.DEFAULT_WRITE_LOW_WATER_MARK)));
+        ChannelConfig config = channel.config();
+        // the low water mark may never exceed the high one, even in between
+        if (low > config.getWriteBufferHighWaterMark()) {
+            config.setWriteBufferHighWaterMark(high);
+            config.setWriteBufferLowWaterMark(low);
+        } else {
+            config.setWriteBufferLowWaterMark(low);
+            config.setWriteBufferHighWaterMark(high);
+        }
+    }
+
+    /**
+     * Get what to do with the queries sent while the channel isn't writable
+     * @return the policy of the connection
+     */
+    public QueryBackpressurePolicy getBackpressurePolicy() {
+        return metadata.getData(QueryContext.METAKEY_BACKPRESSURE_POLICY, QueryBackpressurePolicy.QUEUE);
+    }
+
+    /**
+     * Check if queries must be held back
+     * @return true if the channel isn't writable and the policy doesn't ignore it
+     */
+    public boolean isBackpressured() {
+        return !channel.isWritable() && channel.isOpen() && getBackpressurePolicy() != QueryBackpressurePolicy.IGNORE;
+    }
+
+    /**
+     * Block until the channel is writable, up to {@link QueryContext#METAKEY_WRITE_TIMEOUT}. Must not be called on the event loop.
+     * @return true if the channel is writable
+     */
+    public boolean awaitWritable() {
+        long timeout = metadata.getData(QueryContext.METAKEY_WRITE_TIMEOUT, QueryContext.DEFAULT_WRITE_TIMEOUT);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (writability) {
+            while (!channel.isWritable() && channel.isOpen()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(writability, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return channel.isWritable();
+    }
+
+    /**
+     * Wake up the threads waiting in {@link #awaitWritable()}
+     */
+    public void writabilityChanged() {
+        synchronized (writability) {
+            writability.notifyAll();
+        }
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Check if writes are currently coalesced
+     * @return true if batching is enabled on the connection
+     */
+    public boolean isBatching() {
+        return metadata.getData(QueryContext.METAKEY_WRITE_BATCHING, false);
+    }
+
+    /**
+     * Run the task on the event loop, right away if already on it
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        EventLoop eventLoop = channel.eventLoop();
+        if (eventLoop.inEventLoop()) {
+            task.run();
+        } else if (isBatching()) {
+            tasks.offer(task);
+            if (draining.compareAndSet(false, true)) {
+                eventLoop.execute(drain);
+            }
+        } else {
+            eventLoop.execute(task);
+        }
+    }
+
+    private void drain() {
+        draining.set(false);
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Write the message, must be called on the event loop
+     * @param message the message
+     * @param listener notified once the message has been written
+     */
+    public void write(QueryMessage message, ChannelFutureListener listener) {
+        write(message, message.getChannel().length() + message.getLength(), listener);
+    }
+
+    /**
+     * Write a message, such as an encoded {@link septogeddon.pluginquery.netty.QueryFrame}, must be called on the event loop
+     * @param message the message
+     * @param bytes the approximate size of the message
+     * @param listener notified once the message has been written
+     */
+    public void write(Object message, int bytes, ChannelFutureListener listener) {
+        if (!isBatching()) {
+            channel.writeAndFlush(message).addListener(listener);
+            return;
+        }
+        channel.write(message).addListener(listener);
+        pendingBytes += bytes;
+        if (pendingBytes >= metadata.getData(QueryContext.METAKEY_FLUSH_BYTES, QueryContext.DEFAULT_FLUSH_BYTES)) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            long delay = metadata.getData(QueryContext.METAKEY_FLUSH_DELAY, 0L);
+            if (delay > 0) {
+                channel.eventLoop().schedule(flush, delay, TimeUnit.MILLISECONDS);
+            } else {
+                // runs after the tasks already queued on the event loop
+                channel.eventLoop().execute(flush);
+            }
+        }
+    }
+
+    private void scheduledFlush() {
+        flushScheduled = false;
+        if (pendingBytes > 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Flush the pending writes, must be called on the event loop
+     */
+    public void flush() {
+        pendingBytes = 0;
+        channel.flush();
+    }
+
+}
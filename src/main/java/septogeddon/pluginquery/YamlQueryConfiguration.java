@@ -33,6 +33,9 @@ public class YamlQueryConfiguration implements QueryConfiguration {
         setOption(QueryContext.IP_WHITELIST, new ArrayList<>());
         setOption(QueryContext.CONNECTION_LIMIT, 1);
         setOption(QueryContext.MAX_RECONNECT_TRY, -1);
+        setOption(QueryContext.STREAMING_COMPRESSION, true);
+        setOption(QueryContext.COMPRESSION_CODEC, "zlib");
+        setOption(QueryContext.COMPRESSION_THRESHOLD, QueryContext.DEFAULT_COMPRESSION_THRESHOLD);
     }
 
     public static void saveDefaultConfig(File file) throws IOException {
@@ -0,0 +1,29 @@
+package septogeddon.pluginquery.api;
+
+/**
+ * What a connection does with a query sent while its channel isn't writable, that is while more than
+ * {@link QueryContext#METAKEY_WRITE_HIGH_WATER_MARK} bytes are waiting to be written to the remote
+ * @see QueryContext#METAKEY_BACKPRESSURE_POLICY
+ */
+public enum QueryBackpressurePolicy {
+
+    /**
+     * Write the query anyway, the outbound buffer grows without limit
+     */
+    IGNORE,
+    /**
+     * Reject the query, its future fails
+     */
+    REJECT,
+    /**
+     * Block the sending thread until the channel is writable or {@link QueryContext#METAKEY_WRITE_TIMEOUT} elapses,
+     * then reject. Never blocks the connection event loop, which spills to the queue instead.
+     */
+    WAIT,
+    /**
+     * Spill the query to the offline queue, bounded by {@link QueryContext#METAKEY_QUEUE_CAPACITY},
+     * which is drained once the channel is writable again. Queries sent without queueing are rejected instead.
+     */
+    QUEUE
+
+}
@@ -0,0 +1,45 @@
+package septogeddon.pluginquery.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Outcome of a broadcast on every connection it has been sent to
+ * @see QueryMessenger#broadcast(String, byte[], boolean)
+ */
+public class QueryBroadcastResult {
+
+    private final Collection<QueryConnection> succeeded;
+    private final Map<QueryConnection, Throwable> failed;
+
+    public QueryBroadcastResult(Collection<QueryConnection> succeeded, Map<QueryConnection, Throwable> failed) {
+        this.succeeded = Collections.unmodifiableCollection(succeeded);
+        this.failed = Collections.unmodifiableMap(failed);
+    }
+
+    /**
+     * Get the connections the query has been written to
+     * @return the connections
+     */
+    public Collection<QueryConnection> getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * Get the connections that failed to send the query, with the failure cause
+     * @return the failed connections
+     */
+    public Map<QueryConnection, Throwable> getFailed() {
+        return failed;
+    }
+
+    /**
+     * Check if every connection sent the query
+     * @return true if no connection failed
+     */
+    public boolean isSuccess() {
+        return failed.isEmpty();
+    }
+
+}
@@ -1,6 +1,11 @@
 package septogeddon.pluginquery.api;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import septogeddon.pluginquery.QueryMessage;
+import septogeddon.pluginquery.netty.QueryOutputStream;
+import septogeddon.pluginquery.netty.QueryProtocol;
+import septogeddon.pluginquery.utils.QueryUtil;
 
 import java.net.SocketAddress;
 
@@ -40,6 +45,24 @@ public interface QueryConnection {
      */
     QueryMessenger getMessenger();
 
+    /**
+     * Get the features negotiated with the remote
+     * @return QueryFeatures instance, {@link QueryFeatures#NONE} if the connection doesn't negotiate features
+     */
+    default QueryFeatures getFeatures() {
+        return QueryFeatures.NONE;
+    }
+
+    /**
+     * Get the pipeline of this connection, cloned from the {@link QueryMessenger#getPipeline()} template
+     * when the connection is created or connects. Changes to the template apply to connections created afterwards.
+     * Connections without a pipeline of their own share the messenger pipeline.
+     * @return QueryPipeline instance
+     */
+    default QueryPipeline getPipeline() {
+        return getMessenger().getPipeline();
+    }
+
     /**
      * Connect to the remote address
      * @return QueryFuture for future handling
@@ -81,4 +104,113 @@ public interface QueryConnection {
      */
     QueryFuture<QueryConnection> sendQuery(String channel, byte[] message, boolean queue);
 
+    /**
+     * Send query to this connection without copying the message, the connection owns the buffer from now on
+     * and releases it once the query has been written or dropped
+     * @param channel
+     * @param message
+     * @return QueryFuture for future handling
+     */
+    default QueryFuture<QueryConnection> sendQuery(String channel, ByteBuf message) {
+        return sendQuery(channel, QueryUtil.copyAndRelease(message));
+    }
+
+    /**
+     * Send query to this connection without copying the message, the connection owns the buffer from now on
+     * and releases it once the query has been written or dropped
+     * @param channel
+     * @param message
+     * @param queue
+     * @return QueryFuture for future handling
+     */
+    default QueryFuture<QueryConnection> sendQuery(String channel, ByteBuf message, boolean queue) {
+        return sendQuery(channel, QueryUtil.copyAndRelease(message), queue);
+    }
+
+    /**
+     * Send a query message, such as a request or a response carrying a correlation header.
+     * The connection owns the message from now on and releases it once it has been written or dropped
+     * @param message
+     * @param queue
+     * @return QueryFuture for future handling
+     */
+    default QueryFuture<QueryConnection> sendQuery(QueryMessage message, boolean queue) {
+        try {
+            QueryUtil.illegalState(message.getCorrelation() != 0, "connection does not support correlated queries");
+            return sendQuery(message.getChannel(), message.getMessage(), queue);
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Send a request to the {@link QueryRequestListener}s of the remote, the first one answering it sends the response.
+     * Fails after {@link QueryContext#METAKEY_REQUEST_TIMEOUT} milliseconds without a response, or once the connection is closed.
+     * @param channel the channel
+     * @param message the message
+     * @return QueryFuture completed with the response
+     * @throws IllegalStateException if the remote hasn't negotiated {@link QueryContext#FEATURE_REQUESTS}
+     */
+    default QueryFuture<byte[]> request(String channel, byte[] message) {
+        QueryProtocol protocol = QueryProtocol.of(this);
+        QueryUtil.illegalState(protocol == null, "connection does not support requests");
+        return protocol.getRequests().request(channel, message);
+    }
+
+    /**
+     * Send a request to the {@link QueryRequestListener}s of the remote, the first one answering it sends the response
+     * @param channel the channel
+     * @param message the message
+     * @param timeout the milliseconds to wait for the response, 0 or less to wait until the connection is closed
+     * @return QueryFuture completed with the response
+     * @throws IllegalStateException if the remote hasn't negotiated {@link QueryContext#FEATURE_REQUESTS}
+     */
+    default QueryFuture<byte[]> request(String channel, byte[] message, long timeout) {
+        QueryProtocol protocol = QueryProtocol.of(this);
+        QueryUtil.illegalState(protocol == null, "connection does not support requests");
+        return protocol.getRequests().request(channel, message, timeout);
+    }
+
+    /**
+     * Check if the remote keeps up with the queries sent to it
+     * @return true if less than {@link QueryContext#METAKEY_WRITE_HIGH_WATER_MARK} bytes are waiting to be written
+     * @see QueryContext#METAKEY_BACKPRESSURE_POLICY
+     */
+    default boolean isWritable() {
+        Channel channel = getChannel();
+        return channel != null && channel.isWritable();
+    }
+
+    /**
+     * Open a stream on a channel, for payloads too large or too slow to produce to be sent as a single query.
+     * The bytes are split into chunks of {@link QueryContext#METAKEY_STREAM_CHUNK_SIZE}, writing blocks while
+     * the remote hasn't read enough of them. The remote receives the stream through a {@link QueryStreamListener}.
+     * @param channel the channel
+     * @return the stream, to be closed once everything has been written
+     * @throws IllegalStateException if the remote hasn't negotiated {@link QueryContext#FEATURE_STREAMS}
+     */
+    default QueryOutputStream openStream(String channel) {
+        QueryProtocol protocol = QueryProtocol.of(this);
+        QueryUtil.illegalState(protocol == null, "connection does not support streams");
+        return protocol.getStreams().open(channel);
+    }
+
+    /**
+     * Get the number of queries waiting in the offline queue
+     * @return the queue depth, 0 if the connection doesn't queue
+     * @see QueryContext#METAKEY_QUEUE_CAPACITY
+     */
+    default int getQueueDepth() {
+        return 0;
+    }
+
+    /**
+     * Get the number of queries dropped or rejected by the offline queue since this connection has been created
+     * @return the drop count, 0 if the connection doesn't queue
+     * @see QueryContext#METAKEY_QUEUE_POLICY
+     */
+    default long getDroppedQueries() {
+        return 0;
+    }
+
 }
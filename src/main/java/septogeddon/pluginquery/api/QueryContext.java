@@ -115,6 +115,18 @@ public interface QueryContext {
      * Connection Limit option for QueryConfiguration
      */
     QueryConfigurationKey<Number> CONNECTION_LIMIT = QueryConfigurationKey.newNumber("connection-limit");
+    /**
+     * Streaming Compression option for QueryConfiguration
+     */
+    QueryConfigurationKey<Boolean> STREAMING_COMPRESSION = QueryConfigurationKey.newBoolean("streaming-compression");
+    /**
+     * Compression Codec option for QueryConfiguration, see {@link septogeddon.pluginquery.channel.QueryCompressionCodecs}
+     */
+    QueryConfigurationKey<String> COMPRESSION_CODEC = QueryConfigurationKey.newString("compression-codec");
+    /**
+     * Compression Threshold option for QueryConfiguration
+     */
+    QueryConfigurationKey<Number> COMPRESSION_THRESHOLD = QueryConfigurationKey.newNumber("compression-threshold");
 
     /**
      * Reconnect Handler for QueryConnection failures
@@ -142,6 +154,175 @@ public interface QueryContext {
      * Metadata Key for Reconnect Delay
      */
     QueryMetadataKey<Long> METAKEY_RECONNECT_DELAY = QueryMetadataKey.newCastableKey("reconnect-delay", Long.class);
+    /**
+     * Metadata Key for the protocol features requested during handshake, defaults to {@link #SUPPORTED_FEATURES}
+     */
+    QueryMetadataKey<Integer> METAKEY_PROTOCOL_FEATURES = QueryMetadataKey.newCastableKey("protocol-features", Integer.class);
+    /**
+     * Metadata Key for the maximum size of an inflated message
+     */
+    QueryMetadataKey<Integer> METAKEY_MAX_INFLATE_SIZE = QueryMetadataKey.newCastableKey("max-inflate-size", Integer.class);
+    /**
+     * Metadata Key to write queries without flushing and flush once per event loop tick, defaults to false
+     */
+    QueryMetadataKey<Boolean> METAKEY_WRITE_BATCHING = QueryMetadataKey.newCastableKey("write-batching", Boolean.class);
+    /**
+     * Metadata Key for the pending bytes that flush a batch right away, defaults to {@link #DEFAULT_FLUSH_BYTES}
+     */
+    QueryMetadataKey<Integer> METAKEY_FLUSH_BYTES = QueryMetadataKey.newCastableKey("flush-bytes", Integer.class);
+    /**
+     * Metadata Key for the milliseconds a batch waits before being flushed, 0 to flush at the end of the event loop tick
+     */
+    QueryMetadataKey<Long> METAKEY_FLUSH_DELAY = QueryMetadataKey.newCastableKey("flush-delay", Long.class);
+    /**
+     * Metadata Key for the maximum number of queries queued while a connection is offline, defaults to {@link #DEFAULT_QUEUE_CAPACITY}
+     */
+    QueryMetadataKey<Integer> METAKEY_QUEUE_CAPACITY = QueryMetadataKey.newCastableKey("queue-capacity", Integer.class);
+    /**
+     * Metadata Key for what to do when the offline queue is full, defaults to {@link QueryOverflowPolicy#DROP_OLDEST}
+     */
+    QueryMetadataKey<QueryOverflowPolicy> METAKEY_QUEUE_POLICY = QueryMetadataKey.newCastableKey("queue-policy", QueryOverflowPolicy.class);
+    /**
+     * Metadata Key for the milliseconds {@link QueryOverflowPolicy#BLOCK} waits for room in the offline queue
+     */
+    QueryMetadataKey<Long> METAKEY_QUEUE_TIMEOUT = QueryMetadataKey.newCastableKey("queue-timeout", Long.class);
+    /**
+     * Metadata Key for the pending outbound bytes above which a channel isn't writable, defaults to {@link #DEFAULT_WRITE_HIGH_WATER_MARK}
+     */
+    QueryMetadataKey<Integer> METAKEY_WRITE_HIGH_WATER_MARK = QueryMetadataKey.newCastableKey("write-high-water-mark", Integer.class);
+    /**
+     * Metadata Key for the pending outbound bytes below which a channel is writable again, defaults to {@link #DEFAULT_WRITE_LOW_WATER_MARK}
+     */
+    QueryMetadataKey<Integer> METAKEY_WRITE_LOW_WATER_MARK = QueryMetadataKey.newCastableKey("write-low-water-mark", Integer.class);
+    /**
+     * Metadata Key for what to do with a query sent while the channel isn't writable, defaults to {@link QueryBackpressurePolicy#QUEUE}
+     */
+    QueryMetadataKey<QueryBackpressurePolicy> METAKEY_BACKPRESSURE_POLICY = QueryMetadataKey.newCastableKey("backpressure-policy", QueryBackpressurePolicy.class);
+    /**
+     * Metadata Key for the milliseconds {@link QueryBackpressurePolicy#WAIT} waits for the channel to be writable
+     */
+    QueryMetadataKey<Long> METAKEY_WRITE_TIMEOUT = QueryMetadataKey.newCastableKey("write-timeout", Long.class);
+    /**
+     * Metadata Key for the maximum bytes of a stream chunk, defaults to {@link #DEFAULT_STREAM_CHUNK_SIZE}
+     */
+    QueryMetadataKey<Integer> METAKEY_STREAM_CHUNK_SIZE = QueryMetadataKey.newCastableKey("stream-chunk-size", Integer.class);
+    /**
+     * Metadata Key for the bytes a stream may buffer before its reader catches up, defaults to {@link #DEFAULT_STREAM_WINDOW}
+     */
+    QueryMetadataKey<Integer> METAKEY_STREAM_WINDOW = QueryMetadataKey.newCastableKey("stream-window", Integer.class);
+    /**
+     * Metadata Key for the milliseconds {@link QueryConnection#request(String, byte[])} waits for the response, defaults to {@link #DEFAULT_REQUEST_TIMEOUT}
+     */
+    QueryMetadataKey<Long> METAKEY_REQUEST_TIMEOUT = QueryMetadataKey.newCastableKey("request-timeout", Long.class);
+
+    /**
+     * Reserved channel for protocol control messages, never dispatched to listeners
+     */
+    String PROTOCOL_CHANNEL = "pluginquery:protocol";
+    /**
+     * Reserved channel carrying the streams of {@link QueryConnection#openStream(String)}, never dispatched to listeners
+     */
+    String STREAM_CHANNEL = "pluginquery:stream";
+
+    /**
+     * Protocol feature: compression keeps its dictionary across messages
+     */
+    int FEATURE_STREAMING_COMPRESSION = 1;
+    /**
+     * Protocol feature: compressed frames start with a flag byte holding the codec id, or 0 if uncompressed
+     */
+    int FEATURE_COMPRESSION_FLAG = 2;
+    /**
+     * Protocol feature: queries are encrypted with AES-GCM using keys derived per session and direction
+     */
+    int FEATURE_SESSION_ENCRYPTION = 4;
+    /**
+     * Protocol feature: channel names are sent once per connection, later messages refer to them by a varint id
+     */
+    int FEATURE_CHANNEL_IDS = 8;
+    /**
+     * Protocol feature: remote objects encode their messages with the compact codec instead of Java serialization
+     */
+    int FEATURE_COMPACT_REMOTE = 16;
+    /**
+     * Protocol feature: remote objects may coalesce several messages into one batch message
+     */
+    int FEATURE_REMOTE_BATCH = 32;
+    /**
+     * Protocol feature: references exported by remote objects expire unless the remote renews their lease
+     */
+    int FEATURE_REMOTE_LEASE = 64;
+    /**
+     * Protocol feature: remote methods are identified by a hash of their signature instead of ids cached per reference
+     */
+    int FEATURE_REMOTE_METHOD_TABLE = 128;
+    /**
+     * Protocol feature: the remote accepts streams, see {@link QueryConnection#openStream(String)}
+     */
+    int FEATURE_STREAMS = 256;
+    /**
+     * Protocol feature: queries carry a correlation header after the channel id, see {@link QueryConnection#request(String, byte[])}.
+     * Requires {@link #FEATURE_CHANNEL_IDS}
+     */
+    int FEATURE_REQUESTS = 512;
+    /**
+     * Protocol feature: the remote doesn't respond to invocations of one-way remote methods
+     */
+    int FEATURE_REMOTE_ONE_WAY = 1024;
+    /**
+     * All protocol features supported by this version
+     */
+    int SUPPORTED_FEATURES = FEATURE_STREAMING_COMPRESSION | FEATURE_COMPRESSION_FLAG | FEATURE_SESSION_ENCRYPTION
+            | FEATURE_CHANNEL_IDS | FEATURE_COMPACT_REMOTE | FEATURE_REMOTE_BATCH | FEATURE_REMOTE_LEASE
+            | FEATURE_REMOTE_METHOD_TABLE | FEATURE_STREAMS | FEATURE_REQUESTS | FEATURE_REMOTE_ONE_WAY;
+    /**
+     * Default maximum size of an inflated message
+     */
+    int DEFAULT_MAX_INFLATE_SIZE = 16 * 1024 * 1024;
+    /**
+     * Default size below which payloads are sent uncompressed
+     */
+    int DEFAULT_COMPRESSION_THRESHOLD = 64;
+    /**
+     * Default pending bytes that flush a batch right away
+     */
+    int DEFAULT_FLUSH_BYTES = 64 * 1024;
+    /**
+     * Default maximum number of queries queued while a connection is offline
+     */
+    int DEFAULT_QUEUE_CAPACITY = 4096;
+    /**
+     * Default milliseconds {@link QueryOverflowPolicy#BLOCK} waits for room in the offline queue
+     */
+    long DEFAULT_QUEUE_TIMEOUT = 1000;
+    /**
+     * Default pending outbound bytes above which a channel isn't writable
+     */
+    int DEFAULT_WRITE_HIGH_WATER_MARK = 1024 * 1024;
+    /**
+     * Default pending outbound bytes below which a channel is writable again
+     */
+    int DEFAULT_WRITE_LOW_WATER_MARK = 512 * 1024;
+    /**
+     * Default milliseconds {@link QueryBackpressurePolicy#WAIT} waits for the channel to be writable
+     */
+    long DEFAULT_WRITE_TIMEOUT = 1000;
+    /**
+     * Default maximum bytes of a stream chunk
+     */
+    int DEFAULT_STREAM_CHUNK_SIZE = 32 * 1024;
+    /**
+     * Maximum bytes of a stream chunk, so a chunk always fits in a single frame
+     */
+    int MAX_STREAM_CHUNK_SIZE = 1024 * 1024;
+    /**
+     * Default bytes a stream may buffer before its reader catches up
+     */
+    int DEFAULT_STREAM_WINDOW = 256 * 1024;
+    /**
+     * Default milliseconds a request waits for its response
+     */
+    long DEFAULT_REQUEST_TIMEOUT = 10 * 1000;
 
     /**
      * Preserved channel for {@link org.bukkit.Server} on {@link septogeddon.pluginquery.library.remote.RemoteObject}
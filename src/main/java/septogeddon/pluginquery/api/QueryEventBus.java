@@ -1,5 +1,9 @@
 package septogeddon.pluginquery.api;
 
+import septogeddon.pluginquery.netty.QueryInputStream;
+
+import java.util.concurrent.CompletionStage;
+
 /**
  * Handle and manage incoming events
  * @author Thito Yalasatria Sunarya
@@ -25,6 +29,13 @@ public interface QueryEventBus {
      */
     void dispatchConnectionState(QueryConnection connection);
 
+    /**
+     * Dispatch a Connection Writability change event, ignored by default
+     * @param connection
+     */
+    default void dispatchConnectionWritability(QueryConnection connection) {
+    }
+
     /**
      * Dispatch a Query Message received event
      * @param connection
@@ -34,13 +45,56 @@ public interface QueryEventBus {
     void dispatchMessage(QueryConnection connection, String channel, byte[] message);
 
     /**
-     * Register a listener
+     * Dispatch a stream opened by the remote to the {@link QueryStreamListener}s of its channel
+     * @param connection
+     * @param channel
+     * @param stream
+     * @return true if at least one listener received the stream, false if the event bus doesn't dispatch streams
+     */
+    default boolean dispatchStream(QueryConnection connection, String channel, QueryInputStream stream) {
+        return false;
+    }
+
+    /**
+     * Dispatch a request sent by the remote to the {@link QueryRequestListener}s of its channel, until one answers it
+     * @param connection
+     * @param channel
+     * @param message
+     * @return the response of the first listener answering the request, or null if none did
+     */
+    default CompletionStage<byte[]> dispatchRequest(QueryConnection connection, String channel, byte[] message) {
+        return null;
+    }
+
+    /**
+     * Register a listener for messages of every channel
      * @param listener
      */
     void registerListener(QueryListener listener);
 
     /**
-     * Unregister a listener
+     * Register a listener for messages of a single channel. The listener still receives every connection state change.
+     * @param channel the exact channel
+     * @param listener
+     * @throws UnsupportedOperationException if the event bus doesn't index listeners by channel
+     */
+    default void registerListener(String channel, QueryListener listener) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support channel listeners");
+    }
+
+    /**
+     * Register a listener for messages of every channel starting with the prefix.
+     * The listener still receives every connection state change.
+     * @param prefix the channel prefix
+     * @param listener
+     * @throws UnsupportedOperationException if the event bus doesn't index listeners by channel
+     */
+    default void registerPrefixListener(String prefix, QueryListener listener) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support prefix listeners");
+    }
+
+    /**
+     * Unregister a listener from every channel it has been registered for
      * @param listener
      */
     void unregisterListener(QueryListener listener);
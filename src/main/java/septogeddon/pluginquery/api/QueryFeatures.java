@@ -0,0 +1,54 @@
+package septogeddon.pluginquery.api;
+
+/**
+ * Protocol features negotiated with the remote, see the {@code FEATURE_} constants of {@link QueryContext}.
+ * Both sets are empty until the remote accepted the features, and again once the connection is closed.
+ */
+public interface QueryFeatures {
+
+    /**
+     * Features of a connection that negotiates none
+     */
+    QueryFeatures NONE = new QueryFeatures() {
+        @Override
+        public int getInbound() {
+            return 0;
+        }
+
+        @Override
+        public int getOutbound() {
+            return 0;
+        }
+    };
+
+    /**
+     * Features used to read messages from the remote
+     * @return the inbound features
+     */
+    int getInbound();
+
+    /**
+     * Features used to write messages to the remote
+     * @return the outbound features
+     */
+    int getOutbound();
+
+    /**
+     * Check if messages from the remote are read with the features
+     * @param feature the features
+     * @return true if every feature is enabled
+     */
+    default boolean hasInbound(int feature) {
+        return (getInbound() & feature) == feature;
+    }
+
+    /**
+     * Check if messages to the remote are written with the features
+     * @param feature the features
+     * @return true if every feature is enabled
+     */
+    default boolean hasOutbound(int feature) {
+        return (getOutbound() & feature) == feature;
+    }
+
+}
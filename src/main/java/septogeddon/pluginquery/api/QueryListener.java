@@ -23,4 +23,12 @@ public interface QueryListener {
      */
     void onQueryReceived(QueryConnection connection, String channel, byte[] message) throws Throwable;
 
+    /**
+     * Called when {@link QueryConnection#isWritable()} value changed
+     * @param connection
+     * @throws Throwable any error that could possibly happen during the event listener execution
+     */
+    default void onConnectionWritabilityChange(QueryConnection connection) throws Throwable {
+    }
+
 }
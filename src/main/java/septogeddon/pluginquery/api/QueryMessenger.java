@@ -2,6 +2,8 @@ package septogeddon.pluginquery.api;
 
 import io.netty.channel.Channel;
 import io.netty.channel.EventLoopGroup;
+import septogeddon.pluginquery.QueryBroadcast;
+import septogeddon.pluginquery.QueryMessage;
 
 import java.net.SocketAddress;
 import java.util.Collection;
@@ -46,7 +48,7 @@ public interface QueryMessenger {
     QueryEventBus getEventBus();
 
     /**
-     * Pipeline for all connections
+     * Pipeline template, every connection clones it into its own {@link QueryConnection#getPipeline()}
      * @return
      */
     QueryPipeline getPipeline();
@@ -94,4 +96,17 @@ public interface QueryMessenger {
         return count != 0;
     }
 
+    /**
+     * Broadcast a query to all active connections. The query is encoded and compressed once for every
+     * group of connections sharing the same negotiated features, only the per-connection handlers
+     * such as encryption run for every connection.
+     * @param channel
+     * @param message
+     * @param queue queue the query on connections that can't send it yet
+     * @return a future completed once every connection has sent the query or failed to
+     */
+    default QueryFuture<QueryBroadcastResult> broadcast(String channel, byte[] message, boolean queue) {
+        return QueryBroadcast.broadcast(getActiveConnections(), new QueryMessage(channel, message), queue);
+    }
+
 }
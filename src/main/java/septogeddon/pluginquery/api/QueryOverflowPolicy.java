@@ -0,0 +1,23 @@
+package septogeddon.pluginquery.api;
+
+/**
+ * What a connection does with a query queued while its offline queue is full
+ * @see QueryContext#METAKEY_QUEUE_POLICY
+ */
+public enum QueryOverflowPolicy {
+
+    /**
+     * Drop the oldest queued query to make room, its future fails
+     */
+    DROP_OLDEST,
+    /**
+     * Reject the new query, its future fails
+     */
+    REJECT,
+    /**
+     * Block the sending thread until there is room or {@link QueryContext#METAKEY_QUEUE_TIMEOUT} elapses,
+     * then reject. Never blocks the connection event loop, which rejects right away instead.
+     */
+    BLOCK
+
+}
@@ -1,6 +1,9 @@
 package septogeddon.pluginquery.api;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import septogeddon.pluginquery.QueryChannelHandler;
+import septogeddon.pluginquery.utils.QueryUtil;
 
 import java.util.Collection;
 
@@ -76,6 +79,15 @@ public interface QueryPipeline {
      */
     QueryChannelHandler last();
 
+    /**
+     * Get an immutable, consistent view of the current handler chain. Dispatching on the snapshot
+     * is unaffected by later changes to this pipeline.
+     * @return the snapshot, or this pipeline if it is already immutable
+     */
+    default QueryPipeline snapshot() {
+        return this;
+    }
+
     /**
      * Add handlers at the last index
      * @param handlers
@@ -146,6 +158,57 @@ public interface QueryPipeline {
      */
     byte[] dispatchReceiving(QueryConnection connection, byte[] bytes);
 
+    /**
+     * Call {@link QueryChannelHandler#onSending(QueryConnection, ByteBuf)} on all handlers.
+     * The pipeline takes ownership of the buffer.
+     * @param connection
+     * @param buf
+     * @return modified buffer, or null if the pipeline failed to handle it
+     */
+    default ByteBuf dispatchSending(QueryConnection connection, ByteBuf buf) {
+        // pipelines without buffer support go through the byte array handlers
+        return Unpooled.wrappedBuffer(dispatchSending(connection, QueryChannelHandler.toByteArray(buf)));
+    }
+
+    /**
+     * Call {@link QueryChannelHandler#onSending(QueryConnection, ByteBuf)} on the handlers following a handler,
+     * used to send a buffer already processed by the handlers up to it. The pipeline takes ownership of the buffer.
+     * @param connection
+     * @param buf
+     * @param after the name of the last handler that already processed the buffer
+     * @return modified buffer, or null if the pipeline failed to handle it
+     */
+    default ByteBuf dispatchSending(QueryConnection connection, ByteBuf buf, String after) {
+        QueryChannelHandler handler = get(after);
+        if (handler == null) {
+            buf.release();
+            dispatchUncaughtException(connection, new IllegalArgumentException("unknown handler " + after));
+            return null;
+        }
+        try {
+            while ((handler = nextHandler(handler)) != null) {
+                if (!handler.isSendingHandler()) continue;
+                buf = handler.onSending(connection, buf);
+                QueryUtil.nonNull(buf, "buf");
+            }
+        } catch (Exception e) {
+            dispatchUncaughtException(connection, e);
+            return null;
+        }
+        return buf;
+    }
+
+    /**
+     * Call {@link QueryChannelHandler#onReceiving(QueryConnection, ByteBuf)} on all handlers.
+     * The pipeline takes ownership of the buffer.
+     * @param connection
+     * @param buf
+     * @return modified buffer, or null if the pipeline failed to handle it
+     */
+    default ByteBuf dispatchReceiving(QueryConnection connection, ByteBuf buf) {
+        return Unpooled.wrappedBuffer(dispatchReceiving(connection, QueryChannelHandler.toByteArray(buf)));
+    }
+
     /**
      * Call {@link QueryChannelHandler#onCaughtException(QueryConnection, Throwable)} on all handlers
      * @param connection
@@ -0,0 +1,35 @@
+package septogeddon.pluginquery.api;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Answer requests sent by the remote with {@link QueryConnection#request(String, byte[])} only.
+ * Called on the event loop: a response that takes time must be completed from another thread.
+ * A request no listener answers fails on the remote.
+ * @see QueryListener
+ */
+public interface QueryRequestListener extends QueryListener {
+
+    /**
+     * Called when the remote sent a request
+     * @param connection
+     * @param channel
+     * @param message
+     * @return the response, or null to leave the request to the other listeners
+     * @throws Throwable any error that could possibly happen during the event listener execution, sent back as a failure
+     */
+    CompletionStage<byte[]> onRequestReceived(QueryConnection connection, String channel, byte[] message) throws Throwable;
+
+    /**
+     * Does nothing
+     */
+    default void onConnectionStateChange(QueryConnection connection) {
+    }
+
+    /**
+     * Does nothing
+     */
+    default void onQueryReceived(QueryConnection connection, String channel, byte[] message) {
+    }
+
+}
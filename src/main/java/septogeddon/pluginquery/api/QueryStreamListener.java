@@ -0,0 +1,34 @@
+package septogeddon.pluginquery.api;
+
+import septogeddon.pluginquery.netty.QueryInputStream;
+
+/**
+ * Listen to streams opened by the remote with {@link QueryConnection#openStream(String)} only.
+ * Called on the event loop: the stream must be read from another thread, or closed to refuse it.
+ * A stream no listener receives is cancelled.
+ * @see QueryListener
+ */
+public interface QueryStreamListener extends QueryListener {
+
+    /**
+     * Called when the remote opened a stream
+     * @param connection
+     * @param channel
+     * @param stream
+     * @throws Throwable any error that could possibly happen during the event listener execution
+     */
+    void onStreamOpened(QueryConnection connection, String channel, QueryInputStream stream) throws Throwable;
+
+    /**
+     * Does nothing
+     */
+    default void onConnectionStateChange(QueryConnection connection) {
+    }
+
+    /**
+     * Does nothing
+     */
+    default void onQueryReceived(QueryConnection connection, String channel, byte[] message) {
+    }
+
+}
@@ -15,6 +15,7 @@ import septogeddon.pluginquery.bungeecord.event.QueryMessageEvent;
 import septogeddon.pluginquery.channel.*;
 import septogeddon.pluginquery.utils.DataBuffer;
 import septogeddon.pluginquery.utils.EncryptionToolkit;
+import septogeddon.pluginquery.utils.PooledDataBuffer;
 
 import javax.crypto.NoSuchPaddingException;
 import java.io.File;
@@ -140,6 +141,7 @@ public class BungeePluginQuery extends Plugin implements Listener, QueryListener
         encryption = null;
         messenger.getMetadata().setData(QueryContext.METAKEY_MAX_RECONNECT_TRY, null);
         messenger.getMetadata().setData(QueryContext.METAKEY_RECONNECT_DELAY, null);
+        messenger.getMetadata().setData(QueryContext.METAKEY_PROTOCOL_FEATURES, null);
         List<String> whitelist = getQueryConfig().getOption(QueryContext.IP_WHITELIST);
         if (whitelist != null && !whitelist.isEmpty()) {
             messenger.getPipeline().addLast(new QueryWhitelist(whitelist));
@@ -158,6 +160,11 @@ public class BungeePluginQuery extends Plugin implements Listener, QueryListener
         }
         int maxReconnectTry = getQueryConfig().getOption(QueryContext.MAX_RECONNECT_TRY).intValue();
         messenger.getMetadata().setData(QueryContext.METAKEY_MAX_RECONNECT_TRY, maxReconnectTry);
+        int features = QueryContext.SUPPORTED_FEATURES;
+        if (!getQueryConfig().getOption(QueryContext.STREAMING_COMPRESSION)) {
+            features &= ~QueryContext.FEATURE_STREAMING_COMPRESSION;
+        }
+        messenger.getMetadata().setData(QueryContext.METAKEY_PROTOCOL_FEATURES, features);
         File secret = new File(getDataFolder(), "secret.key");
         if (secret.exists()) {
             try {
@@ -177,11 +184,12 @@ public class BungeePluginQuery extends Plugin implements Listener, QueryListener
         if (encryption != null) {
             getLogger().log(Level.INFO, "Using encryption algorithm: " + encryption.getKey().getAlgorithm());
             PluginQuery.getMessenger().getPipeline().addLast(
-                    new QueryDecryptor(encryption.getDecryptor()),
-                    new QueryEncryptor(encryption.getEncryptor()));
+                    new QueryDecryptor(encryption),
+                    new QueryEncryptor(encryption));
         }
         QueryPipeline pipe = PluginQuery.getMessenger().getPipeline();
-        QueryDeflater deflater = new QueryDeflater();
+        QueryDeflater deflater = QueryCompressionCodecs.createDeflater(getQueryConfig().getOption(QueryContext.COMPRESSION_CODEC),
+                getQueryConfig().getOption(QueryContext.COMPRESSION_THRESHOLD).intValue(), msg -> getLogger().log(Level.WARNING, msg));
         QueryInflater inflater = new QueryInflater();
         if (!pipe.addBefore(QueryContext.HANDLER_ENCRYPTOR, deflater)) {
             pipe.addLast(deflater);
@@ -235,11 +243,11 @@ public class BungeePluginQuery extends Plugin implements Listener, QueryListener
             connection.getMetadata().setData(RECONNECT_TRY_TIMES, null);
             ServerInfo server = connection.getMetadata().getData(SERVER_INFO);
             if (server != null) {
-                DataBuffer buffer = new DataBuffer();
+                PooledDataBuffer buffer = new PooledDataBuffer();
                 buffer.writeUTF(QueryContext.COMMAND_VERSION_CHECK);
                 buffer.writeUTF(getProxy().getVersion());
                 buffer.writeUTF(server.getName());
-                connection.sendQuery(QueryContext.PLUGIN_MESSAGING_CHANNEL, buffer.toByteArray());
+                connection.sendQuery(QueryContext.PLUGIN_MESSAGING_CHANNEL, buffer.transfer());
             }
         }
     }
@@ -0,0 +1,240 @@
+package septogeddon.pluginquery.channel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Pure Java LZ4 block codec. Much cheaper than zlib on CPU for a lower compression ratio,
+ * suited for latency sensitive traffic. Every frame is the uncompressed length as a varint
+ * followed by a single LZ4 block, no dictionary is kept across messages.
+ */
+public class LZ4CompressionCodec implements QueryCompressionCodec {
+
+    public static final int ID = 2;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "lz4";
+    }
+
+    @Override
+    public Compressor newCompressor() {
+        int[] table = new int[1 << HASH_LOG];
+        return (alloc, input, output, streaming) -> {
+            ByteBuf heap = heap(alloc, input);
+            try {
+                int length = heap.readableBytes();
+                writeVarInt(output, length);
+                output.ensureWritable(maxCompressedLength(length));
+                int written = compress(heap.array(), heap.arrayOffset() + heap.readerIndex(), length,
+                        output.array(), output.arrayOffset() + output.writerIndex(), table);
+                output.writerIndex(output.writerIndex() + written);
+            } finally {
+                if (heap != input) heap.release();
+            }
+        };
+    }
+
+    @Override
+    public Decompressor newDecompressor() {
+        return (alloc, input, output, streaming, maxSize) -> {
+            ByteBuf heap = heap(alloc, input);
+            try {
+                int length = readVarInt(heap);
+                if (length < 0 || length > maxSize) {
+                    throw new DataFormatException("inflated size exceeds " + maxSize + " bytes");
+                }
+                output.ensureWritable(length);
+                decompress(heap.array(), heap.arrayOffset() + heap.readerIndex(), heap.readableBytes(),
+                        output.array(), output.arrayOffset() + output.writerIndex(), length);
+                output.writerIndex(output.writerIndex() + length);
+            } finally {
+                if (heap != input) heap.release();
+            }
+        };
+    }
+
+    private static ByteBuf heap(ByteBufAllocator alloc, ByteBuf input) {
+        if (input.hasArray()) return input;
+        ByteBuf heap = alloc.heapBuffer(input.readableBytes());
+        heap.writeBytes(input, input.readerIndex(), input.readableBytes());
+        return heap;
+    }
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static int writeLength(byte[] dst, int offset, int length) {
+        while (length >= 0xFF) {
+            dst[offset++] = (byte) 0xFF;
+            length -= 0xFF;
+        }
+        dst[offset++] = (byte) length;
+        return offset;
+    }
+
+    private static int writeLiterals(byte[] src, int anchor, int length, byte[] dst, int offset, int matchToken) {
+        int token = offset++;
+        if (length >= 15) {
+            dst[token] = (byte) (0xF0 | matchToken);
+            offset = writeLength(dst, offset, length - 15);
+        } else {
+            dst[token] = (byte) (length << 4 | matchToken);
+        }
+        System.arraycopy(src, anchor, dst, offset, length);
+        return offset + length;
+    }
+
+    /**
+     * Compress into a single LZ4 block
+     * @return the number of bytes written
+     */
+    static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+        int srcEnd = srcOff + srcLen;
+        int anchor = srcOff;
+        int offset = dstOff;
+        if (srcLen > MF_LIMIT) {
+            Arrays.fill(table, -1);
+            int limit = srcEnd - MF_LIMIT;
+            int matchLimit = srcEnd - LAST_LITERALS;
+            int position = srcOff;
+            int misses = 0;
+            while (position < limit) {
+                int sequence = readInt(src, position);
+                int hash = hash(sequence);
+                int reference = table[hash];
+                table[hash] = position;
+                if (reference < 0 || position - reference > MAX_DISTANCE || readInt(src, reference) != sequence) {
+                    // skip faster through incompressible data
+                    position += 1 + (misses++ >>> SKIP_TRIGGER);
+                    continue;
+                }
+                misses = 0;
+                while (position > anchor && reference > srcOff && src[position - 1] == src[reference - 1]) {
+                    position--;
+                    reference--;
+                }
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchLimit && src[position + matchLength] == src[reference + matchLength]) {
+                    matchLength++;
+                }
+                int extra = matchLength - MIN_MATCH;
+                offset = writeLiterals(src, anchor, position - anchor, dst, offset, Math.min(extra, 15));
+                int distance = position - reference;
+                dst[offset++] = (byte) distance;
+                dst[offset++] = (byte) (distance >>> 8);
+                if (extra >= 15) {
+                    offset = writeLength(dst, offset, extra - 15);
+                }
+                position += matchLength;
+                anchor = position;
+                if (position < limit) {
+                    table[hash(readInt(src, position - 2))] = position - 2;
+                }
+            }
+        }
+        offset = writeLiterals(src, anchor, srcEnd - anchor, dst, offset, 0);
+        return offset - dstOff;
+    }
+
+    /**
+     * Decompress a single LZ4 block of exactly dstLen bytes
+     */
+    static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws DataFormatException {
+        int srcEnd = srcOff + srcLen;
+        int dstEnd = dstOff + dstLen;
+        int position = srcOff;
+        int offset = dstOff;
+        while (true) {
+            if (position >= srcEnd) throw new DataFormatException("truncated input");
+            int token = src[position++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (position >= srcEnd) throw new DataFormatException("truncated input");
+                    b = src[position++] & 0xFF;
+                    literals += b;
+                } while (b == 0xFF);
+            }
+            if (literals > srcEnd - position || literals > dstEnd - offset) {
+                throw new DataFormatException("malformed block");
+            }
+            System.arraycopy(src, position, dst, offset, literals);
+            position += literals;
+            offset += literals;
+            if (position == srcEnd) break;
+            if (srcEnd - position < 2) throw new DataFormatException("truncated input");
+            int distance = (src[position] & 0xFF) | (src[position + 1] & 0xFF) << 8;
+            position += 2;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (position >= srcEnd) throw new DataFormatException("truncated input");
+                    b = src[position++] & 0xFF;
+                    matchLength += b;
+                } while (b == 0xFF);
+            }
+            matchLength += MIN_MATCH;
+            int reference = offset - distance;
+            if (distance == 0 || reference < dstOff || matchLength > dstEnd - offset) {
+                throw new DataFormatException("malformed block");
+            }
+            if (distance >= matchLength) {
+                System.arraycopy(dst, reference, dst, offset, matchLength);
+                offset += matchLength;
+            } else {
+                // overlapping copy repeats the last bytes
+                for (int end = offset + matchLength; offset < end; ) {
+                    dst[offset++] = dst[reference++];
+                }
+            }
+        }
+        if (offset != dstEnd) throw new DataFormatException("length mismatch");
+    }
+
+    private static void writeVarInt(ByteBuf output, int value) {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuf input) throws DataFormatException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!input.isReadable()) throw new DataFormatException("truncated input");
+            byte b = input.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new DataFormatException("malformed length");
+    }
+
+}
@@ -0,0 +1,87 @@
+package septogeddon.pluginquery.channel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Compression algorithm used by {@link QueryDeflater} and {@link QueryInflater}.
+ * Codecs are registered on {@link QueryCompressionCodecs}, the id is written in front of every
+ * compressed frame so both sides must register the same codecs under the same ids.
+ */
+public interface QueryCompressionCodec {
+
+    /**
+     * The id written in the frame flag, between 1 and 255. 0 is reserved for uncompressed frames.
+     * @return the codec id
+     */
+    int getId();
+
+    /**
+     * The name used to select this codec on {@link septogeddon.pluginquery.api.QueryContext#COMPRESSION_CODEC}
+     * @return the codec name
+     */
+    String getName();
+
+    /**
+     * Check if this codec keeps a dictionary across messages when streaming compression is negotiated.
+     * Streaming frames can't be discarded once compressed.
+     * @return true if the codec supports streaming
+     */
+    default boolean isStreamingSupported() {
+        return false;
+    }
+
+    /**
+     * Create a compressor, owned by a single connection
+     * @return a new compressor
+     */
+    Compressor newCompressor();
+
+    /**
+     * Create a decompressor, owned by a single connection
+     * @return a new decompressor
+     */
+    Decompressor newDecompressor();
+
+    interface Compressor {
+
+        /**
+         * Compress the readable bytes of the input into the output. Does not release the input.
+         * @param alloc the allocator for temporary buffers
+         * @param input the input
+         * @param output the output
+         * @param streaming true if streaming compression is negotiated
+         * @throws Exception if compression fails
+         */
+        void compress(ByteBufAllocator alloc, ByteBuf input, ByteBuf output, boolean streaming) throws Exception;
+
+        /**
+         * Release the resources held by this compressor
+         */
+        default void end() {
+        }
+
+    }
+
+    interface Decompressor {
+
+        /**
+         * Decompress the readable bytes of the input into the output. Does not release the input.
+         * @param alloc the allocator for temporary buffers
+         * @param input the input
+         * @param output the output
+         * @param streaming true if streaming compression is negotiated
+         * @param maxSize the maximum decompressed size
+         * @throws Exception if the input is invalid or decompresses beyond maxSize
+         */
+        void decompress(ByteBufAllocator alloc, ByteBuf input, ByteBuf output, boolean streaming, int maxSize) throws Exception;
+
+        /**
+         * Release the resources held by this decompressor
+         */
+        default void end() {
+        }
+
+    }
+
+}
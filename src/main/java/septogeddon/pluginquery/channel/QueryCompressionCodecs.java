@@ -0,0 +1,83 @@
+package septogeddon.pluginquery.channel;
+
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Registry of {@link QueryCompressionCodec}
+ */
+public final class QueryCompressionCodecs {
+
+    /**
+     * zlib, the format used by every PluginQuery version
+     */
+    public static final QueryCompressionCodec ZLIB = new ZlibCompressionCodec();
+    /**
+     * LZ4 block format, trades compression ratio for speed
+     */
+    public static final QueryCompressionCodec LZ4 = new LZ4CompressionCodec();
+
+    private static final QueryCompressionCodec[] BY_ID = new QueryCompressionCodec[256];
+    private static final Map<String, QueryCompressionCodec> BY_NAME = new ConcurrentHashMap<>();
+
+    static {
+        register(ZLIB);
+        register(LZ4);
+    }
+
+    private QueryCompressionCodecs() {
+    }
+
+    /**
+     * Register a codec
+     * @param codec the codec
+     */
+    public static synchronized void register(QueryCompressionCodec codec) {
+        QueryUtil.nonNull(codec, "codec");
+        QueryUtil.illegalArgument(codec.getId() <= 0 || codec.getId() > 255, "codec id must be between 1 and 255");
+        QueryUtil.illegalArgument(BY_ID[codec.getId()] != null, "codec id " + codec.getId() + " already registered");
+        String name = codec.getName().toLowerCase(Locale.ROOT);
+        QueryUtil.illegalArgument(BY_NAME.containsKey(name), "codec " + name + " already registered");
+        BY_ID[codec.getId()] = codec;
+        BY_NAME.put(name, codec);
+    }
+
+    /**
+     * Get a codec by its frame id
+     * @param id the id
+     * @return the codec, or null if there is no such codec
+     */
+    public static QueryCompressionCodec getCodec(int id) {
+        return id <= 0 || id > 255 ? null : BY_ID[id];
+    }
+
+    /**
+     * Get a codec by its name
+     * @param name the name, case insensitive
+     * @return the codec, or null if there is no such codec
+     */
+    public static QueryCompressionCodec getCodec(String name) {
+        return name == null ? null : BY_NAME.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Create the deflater of a configured codec, falling back to zlib if there is no such codec
+     * @param name the codec name, see {@link septogeddon.pluginquery.api.QueryContext#COMPRESSION_CODEC}
+     * @param threshold the compression threshold
+     * @param warning receives the warning when falling back to zlib
+     * @return the deflater
+     */
+    public static QueryDeflater createDeflater(String name, int threshold, Consumer<String> warning) {
+        QueryCompressionCodec codec = getCodec(name);
+        if (codec == null) {
+            warning.accept("Unknown compression codec " + name + ", using zlib");
+            codec = ZLIB;
+        }
+        return new QueryDeflater(codec, threshold);
+    }
+
+}
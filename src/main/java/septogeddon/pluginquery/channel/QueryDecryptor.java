@@ -1,24 +1,111 @@
 package septogeddon.pluginquery.channel;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import septogeddon.pluginquery.QueryChannelHandler;
 import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.netty.QueryProtocol;
+import septogeddon.pluginquery.utils.EncryptionToolkit;
+import septogeddon.pluginquery.utils.QueryUtil;
 
 import javax.crypto.Cipher;
+import java.nio.ByteBuffer;
 
+/**
+ * Decrypt incoming queries, see {@link QueryEncryptor}
+ */
 public class QueryDecryptor extends QueryChannelHandler {
 
+    private final EncryptionToolkit toolkit;
     private final Cipher cipher;
+    private final boolean bound;
+    private Cipher connectionCipher;
+    private QuerySessionCipher session;
 
+    public QueryDecryptor(EncryptionToolkit toolkit) {
+        this(toolkit, false);
+    }
+
+    private QueryDecryptor(EncryptionToolkit toolkit, boolean bound) {
+        super(QueryContext.HANDLER_DECRYPTOR);
+        QueryUtil.nonNull(toolkit, "toolkit");
+        this.toolkit = toolkit;
+        this.cipher = null;
+        this.bound = bound;
+    }
+
+    /**
+     * @param cipher the cipher shared by every connection
+     * @deprecated a shared Cipher serializes every connection and can't negotiate session encryption,
+     * use {@link #QueryDecryptor(EncryptionToolkit)}
+     */
+    @Deprecated
     public QueryDecryptor(Cipher cipher) {
         super(QueryContext.HANDLER_DECRYPTOR);
+        QueryUtil.nonNull(cipher, "cipher");
+        this.toolkit = null;
         this.cipher = cipher;
+        this.bound = false;
+    }
+
+    @Override
+    public QueryChannelHandler newInstance(QueryConnection connection) {
+        return toolkit == null ? this : new QueryDecryptor(toolkit, true);
+    }
+
+    /**
+     * Run the cipher from the buffer into a pooled direct buffer. Releases the input.
+     * @param cipher the cipher
+     * @param alloc the allocator
+     * @param buf the input
+     * @return the output
+     * @throws Exception if the cipher failed
+     */
+    static ByteBuf doFinal(Cipher cipher, ByteBufAllocator alloc, ByteBuf buf) throws Exception {
+        ByteBuf output = null;
+        try {
+            int size = cipher.getOutputSize(buf.readableBytes());
+            output = alloc.directBuffer(size);
+            ByteBuffer nioOutput = output.nioBuffer(0, size);
+            int count = cipher.doFinal(buf.nioBuffer(), nioOutput);
+            output.writerIndex(count);
+            ByteBuf result = output;
+            output = null;
+            return result;
+        } finally {
+            if (output != null) output.release();
+            buf.release();
+        }
     }
 
     @Override
-    public byte[] onReceiving(QueryConnection connection, byte[] bytes) throws Exception {
-        if (bytes.length > 0) bytes = cipher.doFinal(bytes);
-        return super.onReceiving(connection, bytes);
+    public ByteBuf onReceiving(QueryConnection connection, ByteBuf buf) throws Exception {
+        if (buf.isReadable()) {
+            if (toolkit == null) {
+                synchronized (cipher) {
+                    buf = doFinal(cipher, alloc(connection), buf);
+                }
+            } else {
+                if (connection.getFeatures().hasInbound(QueryContext.FEATURE_SESSION_ENCRYPTION)) {
+                    QueryProtocol protocol = QueryProtocol.of(connection);
+                    if (session == null) {
+                        // the frame counter must follow the connection, a shared instance can't keep it
+                        QueryUtil.illegalState(!bound, "session encryption requires a connection pipeline");
+                        session = QuerySessionCipher.create(toolkit, Cipher.DECRYPT_MODE, protocol.getSessionNonce(), protocol.getInboundSalt());
+                    }
+                    buf = session.decrypt(alloc(connection), buf);
+                } else {
+                    Cipher cipher = connectionCipher;
+                    if (cipher == null) {
+                        cipher = toolkit.newCipher(Cipher.DECRYPT_MODE);
+                        if (bound) connectionCipher = cipher;
+                    }
+                    buf = doFinal(cipher, alloc(connection), buf);
+                }
+            }
+        }
+        return super.onReceiving(connection, buf);
     }
 
     @Override
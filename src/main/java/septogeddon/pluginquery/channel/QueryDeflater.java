@@ -1,38 +1,259 @@
 package septogeddon.pluginquery.channel;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import septogeddon.pluginquery.QueryChannelHandler;
 import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryFeatures;
+import septogeddon.pluginquery.utils.QueryUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.zip.Deflater;
 
+/**
+ * Compress outgoing queries. Every connection pipeline gets its own instance owning its compressors,
+ * which live as long as the connection channel.
+ * When {@link QueryContext#FEATURE_STREAMING_COMPRESSION} has been negotiated, zlib keeps the dictionary across
+ * messages and each message ends with a sync flush, otherwise every message is a complete zlib stream.
+ * <p>
+ * When {@link QueryContext#FEATURE_COMPRESSION_FLAG} has been negotiated, every frame starts with a flag byte:
+ * {@link #FLAG_RAW} for payloads below the threshold or that don't compress, the codec id otherwise.
+ */
 public class QueryDeflater extends QueryChannelHandler {
 
+    /**
+     * Frame flag of an uncompressed payload
+     */
+    public static final int FLAG_RAW = 0;
+
+    private final QueryCompressionCodec codec;
+    private final int threshold;
+    private final boolean bound;
+    private QueryCompressionCodec.Compressor[] compressors;
+
     public QueryDeflater() {
+        this(QueryCompressionCodecs.ZLIB, QueryContext.DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param codec the codec used once the remote supports the frame flag, zlib is used otherwise
+     * @param threshold payloads smaller than this are sent uncompressed once the remote supports the frame flag
+     */
+    public QueryDeflater(QueryCompressionCodec codec, int threshold) {
+        this(codec, threshold, false);
+    }
+
+    private QueryDeflater(QueryCompressionCodec codec, int threshold, boolean bound) {
         super(QueryContext.HANDLER_DEFLATER);
+        QueryUtil.nonNull(codec, "codec");
+        this.codec = codec;
+        this.threshold = threshold;
+        this.bound = bound;
+    }
+
+    @Override
+    public QueryChannelHandler newInstance(QueryConnection connection) {
+        return new QueryDeflater(codec, threshold, true);
     }
 
     public static byte[] compress(byte[] data) throws IOException {
         if (data.length <= 0) return data;
+        return toByteArray(compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(data)));
+    }
+
+    /**
+     * Compress the buffer into a complete zlib stream using a temporary deflater. Releases the input.
+     * @param alloc the allocator
+     * @param data the input
+     * @return the compressed buffer
+     */
+    public static ByteBuf compress(ByteBufAllocator alloc, ByteBuf data) {
         Deflater deflater = new Deflater();
-        deflater.setInput(data);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-        deflater.finish();
-        byte[] buffer = new byte[1024];
-        while (!deflater.finished()) {
-            int count = deflater.deflate(buffer);
-            outputStream.write(buffer, 0, count);
+        try {
+            return compress(alloc, deflater, data, false);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compress the buffer into a pooled heap buffer. Releases the input.
+     * @param alloc the allocator
+     * @param deflater the deflater, reset afterwards unless streaming
+     * @param data the input
+     * @param streaming true to keep the dictionary and end with a sync flush instead of finishing the stream
+     * @return the compressed buffer
+     */
+    public static ByteBuf compress(ByteBufAllocator alloc, Deflater deflater, ByteBuf data, boolean streaming) {
+        ByteBuf output = alloc.heapBuffer(data.readableBytes() / 2 + 16);
+        try {
+            deflate(alloc, deflater, data, output, streaming);
+            ByteBuf result = output;
+            output = null;
+            return result;
+        } finally {
+            if (output != null) output.release();
+            data.release();
+        }
+    }
+
+    /**
+     * Compress the readable bytes of the input into a heap output. zlib only works on arrays,
+     * so a direct input is copied into a pooled heap buffer first. Does not release the input.
+     * @param alloc the allocator
+     * @param deflater the deflater, reset afterwards unless streaming
+     * @param data the input
+     * @param output the heap output
+     * @param streaming true to keep the dictionary and end with a sync flush instead of finishing the stream
+     */
+    public static void deflate(ByteBufAllocator alloc, Deflater deflater, ByteBuf data, ByteBuf output, boolean streaming) {
+        ByteBuf input = data;
+        try {
+            if (!input.hasArray()) {
+                input = alloc.heapBuffer(data.readableBytes());
+                input.writeBytes(data, data.readerIndex(), data.readableBytes());
+            }
+            int length = input.readableBytes();
+            deflater.setInput(input.array(), input.arrayOffset() + input.readerIndex(), length);
+            if (streaming) {
+                // a sync flush is complete once the deflater stops filling the output
+                while (true) {
+                    output.ensureWritable(Math.max(64, length / 4));
+                    int writable = output.writableBytes();
+                    int count = deflater.deflate(output.array(), output.arrayOffset() + output.writerIndex(), writable, Deflater.SYNC_FLUSH);
+                    output.writerIndex(output.writerIndex() + count);
+                    if (count < writable) break;
+                }
+            } else {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output.ensureWritable(Math.max(64, length / 4));
+                    int count = deflater.deflate(output.array(), output.arrayOffset() + output.writerIndex(), output.writableBytes());
+                    output.writerIndex(output.writerIndex() + count);
+                }
+                deflater.reset();
+            }
+        } finally {
+            if (input != data) input.release();
+        }
+    }
+
+    /**
+     * Get the compressors of this instance, indexed by codec id and ended once the connection channel closes
+     * @param connection the connection
+     * @return the compressors, or null if this instance isn't bound to a connection or the connection has no open channel
+     */
+    protected QueryCompressionCodec.Compressor[] compressors(QueryConnection connection) {
+        if (!bound) return null;
+        if (compressors == null) {
+            Channel channel = connection.getChannel();
+            if (channel == null || !channel.isOpen()) return null;
+            QueryCompressionCodec.Compressor[] created = compressors = new QueryCompressionCodec.Compressor[256];
+            channel.closeFuture().addListener(future -> {
+                compressors = null;
+                for (QueryCompressionCodec.Compressor compressor : created) {
+                    if (compressor != null) compressor.end();
+                }
+            });
         }
-        outputStream.close();
-        byte[] output = outputStream.toByteArray();
-        return output;
+        return compressors;
+    }
+
+    public QueryCompressionCodec getCodec() {
+        return codec;
+    }
+
+    public int getThreshold() {
+        return threshold;
     }
 
     @Override
-    public byte[] onSending(QueryConnection connection, byte[] bytes) throws Exception {
-        return super.onSending(connection, compress(bytes));
+    public ByteBuf onSending(QueryConnection connection, ByteBuf buf) throws Exception {
+        return super.onSending(connection, compressFrame(connection, buf, false));
+    }
+
+    private boolean isStreaming(QueryFeatures features) {
+        if (features.hasOutbound(QueryContext.FEATURE_COMPRESSION_FLAG)) {
+            return codec.isStreamingSupported() && features.hasOutbound(QueryContext.FEATURE_STREAMING_COMPRESSION);
+        }
+        // peers without the flag only understand zlib
+        return features.hasOutbound(QueryContext.FEATURE_STREAMING_COMPRESSION);
+    }
+
+    /**
+     * Check if frames compressed for the connection only depend on its negotiated features,
+     * so one frame can be shared by every connection with the same outbound features
+     * @param connection the connection
+     * @return false if the connection keeps a compression dictionary across messages
+     */
+    public boolean isShareable(QueryConnection connection) {
+        return !isStreaming(connection.getFeatures());
+    }
+
+    /**
+     * Compress a frame shared by every connection with the same outbound features as the connection,
+     * using a temporary compressor. Releases the input.
+     * @param connection a connection the frame is compressed for, see {@link #isShareable(QueryConnection)}
+     * @param buf the frame
+     * @return the compressed frame
+     * @throws Exception if compression fails
+     */
+    public ByteBuf compressShared(QueryConnection connection, ByteBuf buf) throws Exception {
+        QueryUtil.illegalState(!isShareable(connection), "streaming compression can't be shared");
+        return compressFrame(connection, buf, true);
+    }
+
+    private ByteBuf compressFrame(QueryConnection connection, ByteBuf buf, boolean shared) throws Exception {
+        if (buf.isReadable()) {
+            QueryFeatures features = connection.getFeatures();
+            boolean streaming = isStreaming(features);
+            if (features.hasOutbound(QueryContext.FEATURE_COMPRESSION_FLAG)) {
+                if (buf.readableBytes() < threshold) {
+                    buf = raw(alloc(connection), buf);
+                } else {
+                    buf = compress(connection, codec, buf, streaming, true, shared);
+                }
+            } else {
+                buf = compress(connection, QueryCompressionCodecs.ZLIB, buf, streaming, false, shared);
+            }
+        }
+        return buf;
+    }
+
+    private static ByteBuf raw(ByteBufAllocator alloc, ByteBuf buf) {
+        return Unpooled.wrappedBuffer(alloc.heapBuffer(1).writeByte(FLAG_RAW), buf);
+    }
+
+    private ByteBuf compress(QueryConnection connection, QueryCompressionCodec codec, ByteBuf buf, boolean streaming, boolean flagged, boolean shared) throws Exception {
+        ByteBufAllocator alloc = alloc(connection);
+        // shared frames are compressed off the event loop, away from the connection compressors
+        QueryCompressionCodec.Compressor[] compressors = shared ? null : compressors(connection);
+        QueryCompressionCodec.Compressor compressor = compressors == null ? codec.newCompressor() : compressors[codec.getId()];
+        if (compressor == null) {
+            compressor = compressors[codec.getId()] = codec.newCompressor();
+        }
+        ByteBuf output = alloc.heapBuffer(buf.readableBytes() / 2 + 16);
+        try {
+            if (flagged) output.writeByte(codec.getId());
+            compressor.compress(alloc, buf, output, streaming);
+            if (flagged && !streaming && output.readableBytes() > buf.readableBytes()) {
+                // incompressible, the raw payload is smaller
+                return raw(alloc, buf);
+            }
+            buf.release();
+            ByteBuf result = output;
+            output = null;
+            return result;
+        } catch (Exception e) {
+            buf.release();
+            throw e;
+        } finally {
+            if (output != null) output.release();
+            if (compressors == null) compressor.end();
+        }
     }
 
 }
@@ -1,24 +1,94 @@
 package septogeddon.pluginquery.channel;
 
+import io.netty.buffer.ByteBuf;
 import septogeddon.pluginquery.QueryChannelHandler;
 import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.netty.QueryProtocol;
+import septogeddon.pluginquery.utils.EncryptionToolkit;
+import septogeddon.pluginquery.utils.QueryUtil;
 
 import javax.crypto.Cipher;
 
+/**
+ * Encrypt outgoing queries. Every connection pipeline gets its own instance owning its cipher:
+ * AES-GCM with a key derived for the session once {@link QueryContext#FEATURE_SESSION_ENCRYPTION}
+ * has been negotiated, a Cipher of the shared key otherwise.
+ */
 public class QueryEncryptor extends QueryChannelHandler {
 
+    private final EncryptionToolkit toolkit;
     private final Cipher cipher;
+    private final boolean bound;
+    private Cipher connectionCipher;
+    private QuerySessionCipher session;
 
+    public QueryEncryptor(EncryptionToolkit toolkit) {
+        this(toolkit, false);
+    }
+
+    private QueryEncryptor(EncryptionToolkit toolkit, boolean bound) {
+        super(QueryContext.HANDLER_ENCRYPTOR);
+        QueryUtil.nonNull(toolkit, "toolkit");
+        this.toolkit = toolkit;
+        this.cipher = null;
+        this.bound = bound;
+    }
+
+    /**
+     * @param cipher the cipher shared by every connection
+     * @deprecated a shared Cipher serializes every connection and can't negotiate session encryption,
+     * use {@link #QueryEncryptor(EncryptionToolkit)}
+     */
+    @Deprecated
     public QueryEncryptor(Cipher cipher) {
         super(QueryContext.HANDLER_ENCRYPTOR);
+        QueryUtil.nonNull(cipher, "cipher");
+        this.toolkit = null;
         this.cipher = cipher;
+        this.bound = false;
+    }
+
+    @Override
+    public QueryChannelHandler newInstance(QueryConnection connection) {
+        return toolkit == null ? this : new QueryEncryptor(toolkit, true);
+    }
+
+    /**
+     * Check if this encryptor can negotiate {@link QueryContext#FEATURE_SESSION_ENCRYPTION}
+     * @return true if created from an {@link EncryptionToolkit}
+     */
+    public boolean isSessionSupported() {
+        return toolkit != null;
     }
 
     @Override
-    public byte[] onSending(QueryConnection connection, byte[] bytes) throws Exception {
-        if (bytes.length > 0) bytes = cipher.doFinal(bytes);
-        return super.onSending(connection, bytes);
+    public ByteBuf onSending(QueryConnection connection, ByteBuf buf) throws Exception {
+        if (buf.isReadable()) {
+            if (toolkit == null) {
+                synchronized (cipher) {
+                    buf = QueryDecryptor.doFinal(cipher, alloc(connection), buf);
+                }
+            } else {
+                if (connection.getFeatures().hasOutbound(QueryContext.FEATURE_SESSION_ENCRYPTION)) {
+                    QueryProtocol protocol = QueryProtocol.of(connection);
+                    if (session == null) {
+                        // the frame counter must follow the connection, a shared instance can't keep it
+                        QueryUtil.illegalState(!bound, "session encryption requires a connection pipeline");
+                        session = QuerySessionCipher.create(toolkit, Cipher.ENCRYPT_MODE, protocol.getSessionNonce(), protocol.getOutboundSalt());
+                    }
+                    buf = session.encrypt(alloc(connection), buf);
+                } else {
+                    Cipher cipher = connectionCipher;
+                    if (cipher == null) {
+                        cipher = toolkit.newCipher(Cipher.ENCRYPT_MODE);
+                        if (bound) connectionCipher = cipher;
+                    }
+                    buf = QueryDecryptor.doFinal(cipher, alloc(connection), buf);
+                }
+            }
+        }
+        return super.onSending(connection, buf);
     }
 
     @Override
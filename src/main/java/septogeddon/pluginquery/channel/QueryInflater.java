@@ -1,37 +1,191 @@
 package septogeddon.pluginquery.channel;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import septogeddon.pluginquery.QueryChannelHandler;
 import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryFeatures;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
+/**
+ * Decompress incoming queries. Every connection pipeline gets its own instance owning its decompressors,
+ * which live as long as the connection channel,
+ * see {@link QueryDeflater} for the frame format. Inflated messages are bounded by {@link QueryContext#METAKEY_MAX_INFLATE_SIZE}.
+ */
 public class QueryInflater extends QueryChannelHandler {
 
+    private final boolean bound;
+    private QueryCompressionCodec.Decompressor[] decompressors;
+
     public QueryInflater() {
+        this(false);
+    }
+
+    private QueryInflater(boolean bound) {
         super(QueryContext.HANDLER_INFLATER);
+        this.bound = bound;
+    }
+
+    @Override
+    public QueryChannelHandler newInstance(QueryConnection connection) {
+        return new QueryInflater(true);
     }
 
     public static byte[] decompress(byte[] data) throws IOException, DataFormatException {
         if (data.length <= 0) return data;
+        return toByteArray(decompress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(data)));
+    }
+
+    /**
+     * Decompress a complete zlib stream using a temporary inflater. Releases the input.
+     * @param alloc the allocator
+     * @param data the input
+     * @return the decompressed buffer
+     * @throws DataFormatException if the input is not a valid zlib stream
+     */
+    public static ByteBuf decompress(ByteBufAllocator alloc, ByteBuf data) throws DataFormatException {
         Inflater inflater = new Inflater();
-        inflater.setInput(data);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-        byte[] buffer = new byte[1024];
-        while (!inflater.finished()) {
-            int count = inflater.inflate(buffer);
-            outputStream.write(buffer, 0, count);
+        try {
+            return decompress(alloc, inflater, data, false, QueryContext.DEFAULT_MAX_INFLATE_SIZE);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decompress the buffer into a pooled heap buffer. Releases the input.
+     * @param alloc the allocator
+     * @param inflater the inflater, reset afterwards unless streaming
+     * @param data the input
+     * @param streaming true if the input is a sync flushed block of a stream spanning several messages
+     * @param maxSize the maximum decompressed size
+     * @return the decompressed buffer
+     * @throws DataFormatException if the input is not valid or inflates beyond maxSize
+     */
+    public static ByteBuf decompress(ByteBufAllocator alloc, Inflater inflater, ByteBuf data, boolean streaming, int maxSize) throws DataFormatException {
+        ByteBuf output = alloc.heapBuffer(Math.min(maxSize, data.readableBytes() * 2));
+        try {
+            inflate(alloc, inflater, data, output, streaming, maxSize);
+            ByteBuf result = output;
+            output = null;
+            return result;
+        } finally {
+            if (output != null) output.release();
+            data.release();
         }
-        outputStream.close();
-        byte[] output = outputStream.toByteArray();
-        return output;
+    }
+
+    /**
+     * Decompress the readable bytes of the input into a heap output. zlib only works on arrays,
+     * so a direct input is copied into a pooled heap buffer first. Does not release the input.
+     * @param alloc the allocator
+     * @param inflater the inflater, reset afterwards unless streaming
+     * @param data the input
+     * @param output the heap output
+     * @param streaming true if the input is a sync flushed block of a stream spanning several messages
+     * @param maxSize the maximum number of bytes written to the output
+     * @throws DataFormatException if the input is not valid or inflates beyond maxSize
+     */
+    public static void inflate(ByteBufAllocator alloc, Inflater inflater, ByteBuf data, ByteBuf output, boolean streaming, int maxSize) throws DataFormatException {
+        ByteBuf input = data;
+        try {
+            if (!input.hasArray()) {
+                input = alloc.heapBuffer(data.readableBytes());
+                input.writeBytes(data, data.readerIndex(), data.readableBytes());
+            }
+            int length = input.readableBytes();
+            int end = output.writerIndex() + maxSize;
+            inflater.setInput(input.array(), input.arrayOffset() + input.readerIndex(), length);
+            while (!inflater.finished()) {
+                int limit = end - output.writerIndex();
+                if (limit <= 0) {
+                    if (streaming && inflater.needsInput()) break;
+                    throw new DataFormatException("inflated size exceeds " + maxSize + " bytes");
+                }
+                output.ensureWritable(Math.min(limit, Math.max(64, length)));
+                int count = inflater.inflate(output.array(), output.arrayOffset() + output.writerIndex(), Math.min(limit, output.writableBytes()));
+                output.writerIndex(output.writerIndex() + count);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // a sync flushed block ends without finishing the stream
+                    if (streaming && inflater.needsInput()) break;
+                    throw new DataFormatException("truncated input");
+                }
+            }
+            if (!streaming) {
+                inflater.reset();
+            }
+        } finally {
+            if (input != data) input.release();
+        }
+    }
+
+    /**
+     * Get the decompressors of this instance, indexed by codec id and ended once the connection channel closes
+     * @param connection the connection
+     * @return the decompressors, or null if this instance isn't bound to a connection or the connection has no open channel
+     */
+    protected QueryCompressionCodec.Decompressor[] decompressors(QueryConnection connection) {
+        if (!bound) return null;
+        if (decompressors == null) {
+            Channel channel = connection.getChannel();
+            if (channel == null || !channel.isOpen()) return null;
+            QueryCompressionCodec.Decompressor[] created = decompressors = new QueryCompressionCodec.Decompressor[256];
+            channel.closeFuture().addListener(future -> {
+                decompressors = null;
+                for (QueryCompressionCodec.Decompressor decompressor : created) {
+                    if (decompressor != null) decompressor.end();
+                }
+            });
+        }
+        return decompressors;
     }
 
     @Override
-    public byte[] onReceiving(QueryConnection connection, byte[] bytes) throws Exception {
-        return super.onReceiving(connection, decompress(bytes));
+    public ByteBuf onReceiving(QueryConnection connection, ByteBuf buf) throws Exception {
+        if (buf.isReadable()) {
+            QueryFeatures features = connection.getFeatures();
+            QueryCompressionCodec codec = QueryCompressionCodecs.ZLIB;
+            if (features.hasInbound(QueryContext.FEATURE_COMPRESSION_FLAG)) {
+                int flag = buf.readUnsignedByte();
+                if (flag == QueryDeflater.FLAG_RAW) {
+                    return super.onReceiving(connection, buf);
+                }
+                codec = QueryCompressionCodecs.getCodec(flag);
+                if (codec == null) {
+                    buf.release();
+                    throw new DataFormatException("unknown compression codec " + flag);
+                }
+            }
+            boolean streaming = codec.isStreamingSupported() && features.hasInbound(QueryContext.FEATURE_STREAMING_COMPRESSION);
+            buf = decompress(connection, codec, buf, streaming);
+        }
+        return super.onReceiving(connection, buf);
+    }
+
+    private ByteBuf decompress(QueryConnection connection, QueryCompressionCodec codec, ByteBuf buf, boolean streaming) throws Exception {
+        ByteBufAllocator alloc = alloc(connection);
+        int maxSize = connection.getMessenger().getMetadata().getData(QueryContext.METAKEY_MAX_INFLATE_SIZE, QueryContext.DEFAULT_MAX_INFLATE_SIZE);
+        QueryCompressionCodec.Decompressor[] decompressors = decompressors(connection);
+        QueryCompressionCodec.Decompressor decompressor = decompressors == null ? codec.newDecompressor() : decompressors[codec.getId()];
+        if (decompressor == null) {
+            decompressor = decompressors[codec.getId()] = codec.newDecompressor();
+        }
+        ByteBuf output = alloc.heapBuffer(Math.min(maxSize, buf.readableBytes() * 2));
+        try {
+            decompressor.decompress(alloc, buf, output, streaming, maxSize);
+            ByteBuf result = output;
+            output = null;
+            return result;
+        } finally {
+            if (output != null) output.release();
+            if (decompressors == null) decompressor.end();
+            buf.release();
+        }
     }
 }
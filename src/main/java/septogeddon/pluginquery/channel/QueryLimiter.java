@@ -8,6 +8,9 @@ import java.net.SocketAddress;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Limit the connections per address. Shared by every connection pipeline so the count spans all of them.
+ */
 public class QueryLimiter extends QueryChannelHandler {
 
     private final Map<SocketAddress, Integer> connected = new ConcurrentHashMap<>();
@@ -21,22 +24,24 @@ public class QueryLimiter extends QueryChannelHandler {
     @Override
     public void onActive(QueryConnection connection) throws Exception {
         if (limit >= 0) {
-            int score = connected.getOrDefault(connection.getAddress(), 0);
-            if (score >= limit) {
+            boolean[] accepted = new boolean[1];
+            connected.compute(connection.getAddress(), (address, score) -> {
+                int count = score == null ? 0 : score;
+                if (count >= limit) return score;
+                accepted[0] = true;
+                return count + 1;
+            });
+            if (!accepted[0]) {
                 connection.disconnect();
                 return;
             }
-            connected.put(connection.getAddress(), score + 1);
         }
         super.onActive(connection);
     }
 
     @Override
     public void onInactive(QueryConnection connection) throws Exception {
-        Integer score = connected.remove(connection.getAddress());
-        if (score != null && score > 1) {
-            connected.put(connection.getAddress(), score - 1);
-        }
+        connected.computeIfPresent(connection.getAddress(), (address, score) -> score > 1 ? score - 1 : null);
         super.onInactive(connection);
     }
 
@@ -0,0 +1,124 @@
+package septogeddon.pluginquery.channel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import septogeddon.pluginquery.utils.EncryptionToolkit;
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * AES-GCM cipher of one direction of a session. The IV is a counter incremented for every frame,
+ * both sides process frames in the same order so it is never sent. Not thread-safe, every connection
+ * pipeline owns its own instance and only uses it on its event loop.
+ */
+public class QuerySessionCipher {
+
+    /**
+     * Length of the authentication tag appended to every frame
+     */
+    public static final int TAG_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+
+    private final Cipher cipher;
+    private final SecretKey key;
+    private final int mode;
+    private final byte[] iv = new byte[IV_LENGTH];
+    private long counter;
+
+    /**
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param key the session key, see {@link EncryptionToolkit#deriveSessionKey(byte[], byte[])}
+     * @throws GeneralSecurityException if AES-GCM is unavailable
+     */
+    public QuerySessionCipher(int mode, SecretKey key) throws GeneralSecurityException {
+        this.cipher = Cipher.getInstance(EncryptionToolkit.SESSION_TRANSFORMATION);
+        this.mode = mode;
+        this.key = key;
+    }
+
+    private void next() throws GeneralSecurityException {
+        long value = counter++;
+        for (int i = 0; i < 8; i++) {
+            iv[IV_LENGTH - 1 - i] = (byte) (value >>> (i * 8));
+        }
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+    }
+
+    /**
+     * Encrypt the buffer into a new buffer. Never in place: the reference count can't tell whether
+     * a frame is shared, such as the duplicates of a broadcast frame. Releases the input.
+     * @param alloc the allocator
+     * @param buf the plain frame
+     * @return the encrypted frame followed by its tag
+     * @throws GeneralSecurityException if encryption fails
+     */
+    public ByteBuf encrypt(ByteBufAllocator alloc, ByteBuf buf) throws GeneralSecurityException {
+        try {
+            next();
+            int length = buf.readableBytes();
+            ByteBuf output = alloc.directBuffer(length + TAG_LENGTH);
+            try {
+                int count = cipher.doFinal(buf.nioBuffer(), output.nioBuffer(0, length + TAG_LENGTH));
+                output.writerIndex(count);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                output.release();
+                throw e;
+            }
+            buf.release();
+            return output;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypt and authenticate the buffer in place. Releases the input if a new buffer is returned.
+     * @param alloc the allocator
+     * @param buf the encrypted frame followed by its tag
+     * @return the plain frame
+     * @throws GeneralSecurityException if the frame has been tampered with or decryption fails
+     */
+    public ByteBuf decrypt(ByteBufAllocator alloc, ByteBuf buf) throws GeneralSecurityException {
+        try {
+            next();
+            int length = buf.readableBytes();
+            QueryUtil.illegalArgument(length < TAG_LENGTH, "truncated frame");
+            if (buf.nioBufferCount() == 1) {
+                ByteBuffer output = buf.nioBuffer(buf.readerIndex(), length);
+                if (!output.isReadOnly()) {
+                    int count = cipher.doFinal(buf.nioBuffer(buf.readerIndex(), length), output);
+                    buf.writerIndex(buf.readerIndex() + count);
+                    return buf;
+                }
+            }
+            ByteBuf output = alloc.directBuffer(length - TAG_LENGTH);
+            try {
+                int count = cipher.doFinal(buf.nioBuffer(), output.nioBuffer(0, length - TAG_LENGTH));
+                output.writerIndex(count);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                output.release();
+                throw e;
+            }
+            buf.release();
+            return output;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Create the session cipher of a direction
+     */
+    static QuerySessionCipher create(EncryptionToolkit toolkit, int mode, byte[] nonce, byte[] salt) throws GeneralSecurityException {
+        QueryUtil.illegalState(nonce == null || salt == null, "session encryption negotiated without a session nonce");
+        return new QuerySessionCipher(mode, toolkit.deriveSessionKey(nonce, salt));
+    }
+
+}
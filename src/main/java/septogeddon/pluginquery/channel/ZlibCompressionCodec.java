@@ -0,0 +1,63 @@
+package septogeddon.pluginquery.channel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib codec, supports streaming compression
+ */
+public class ZlibCompressionCodec implements QueryCompressionCodec {
+
+    public static final int ID = 1;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "zlib";
+    }
+
+    @Override
+    public boolean isStreamingSupported() {
+        return true;
+    }
+
+    @Override
+    public Compressor newCompressor() {
+        Deflater deflater = new Deflater();
+        return new Compressor() {
+            @Override
+            public void compress(ByteBufAllocator alloc, ByteBuf input, ByteBuf output, boolean streaming) {
+                QueryDeflater.deflate(alloc, deflater, input, output, streaming);
+            }
+
+            @Override
+            public void end() {
+                deflater.end();
+            }
+        };
+    }
+
+    @Override
+    public Decompressor newDecompressor() {
+        Inflater inflater = new Inflater();
+        return new Decompressor() {
+            @Override
+            public void decompress(ByteBufAllocator alloc, ByteBuf input, ByteBuf output, boolean streaming, int maxSize) throws Exception {
+                QueryInflater.inflate(alloc, inflater, input, output, streaming, maxSize);
+            }
+
+            @Override
+            public void end() {
+                inflater.end();
+            }
+        };
+    }
+
+}
@@ -4,23 +4,23 @@ import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryListener;
 import septogeddon.pluginquery.api.QueryMetadataKey;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public final class QueryForwarder implements QueryListener {
 
     private static final QueryMetadataKey<QueryForwarder> metadataKey = QueryMetadataKey.newCastableKey(QueryForwarder.class.getName(), QueryForwarder.class);
     private final QueryConnection source;
-    private final List<String> channels = new ArrayList<>();
+    private final List<String> channels = new CopyOnWriteArrayList<>();
     private final Set<QueryConnection> forward = ConcurrentHashMap.newKeySet();
     private final boolean queue = true;
 
     private QueryForwarder(QueryConnection source) {
         this.source = source;
-        this.source.getEventBus().registerListener(this);
     }
 
     public static QueryForwarder getForwarder(QueryConnection connection) {
@@ -35,13 +35,22 @@ public final class QueryForwarder implements QueryListener {
         return source;
     }
 
-    public void registerChannel(String channel) {
-        channels.remove(channel);
+    /**
+     * Forward the queries received on a channel, the forwarder only listens to its channels
+     * @param channel the channel
+     */
+    public synchronized void registerChannel(String channel) {
+        if (channels.contains(channel)) return;
+        channels.add(channel);
+        source.getEventBus().registerListener(channel, this);
     }
 
-    public void unregisterChannel(String channel) {
-        if (channels != null) {
-            channels.remove(channel);
+    public synchronized void unregisterChannel(String channel) {
+        if (!channels.remove(channel)) return;
+        // listeners are unregistered from every channel at once
+        source.getEventBus().unregisterListener(this);
+        for (String kept : channels) {
+            source.getEventBus().registerListener(kept, this);
         }
     }
 
@@ -69,7 +78,7 @@ public final class QueryForwarder implements QueryListener {
     }
 
     public List<String> getChannels() {
-        return channels;
+        return Collections.unmodifiableList(channels);
     }
 
     @Override
@@ -79,6 +88,8 @@ public final class QueryForwarder implements QueryListener {
     @Override
     public void onQueryReceived(QueryConnection connection, String channel, byte[] message) throws Throwable {
         for (QueryConnection next : forward) {
+            // a target that can't keep up applies its backpressure policy to the forwarded queries only,
+            // the source keeps reading its own traffic
             next.sendQuery(channel, message, queue);
         }
     }
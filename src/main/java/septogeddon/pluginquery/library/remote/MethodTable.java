@@ -0,0 +1,199 @@
+package septogeddon.pluginquery.library.remote;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Method table of a class, computed once per class. Methods are identified by a hash of their name and parameter types,
+ * so both sides agree on the ids without exchanging them, and are invoked through {@link MethodHandle}s.
+ */
+public final class MethodTable {
+
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+    private static final ClassValue<MethodTable> TABLES = new ClassValue<MethodTable>() {
+        @Override
+        protected MethodTable computeValue(Class<?> type) {
+            return new MethodTable(type);
+        }
+    };
+
+    /**
+     * Get the method table of a class
+     * @param type the class
+     * @return the table
+     */
+    public static MethodTable of(Class<?> type) {
+        return TABLES.get(type);
+    }
+
+    /**
+     * Get the id the remote side knows a method by, {@link Alias} renames the method
+     * @param method the method
+     * @return the id
+     */
+    public static long getId(Method method) {
+        Long id = of(method.getDeclaringClass()).ids.get(method);
+        if (id != null) return id;
+        Alias alias = method.getAnnotation(Alias.class);
+        return hash(alias == null ? method.getName() : alias.value(), method.getParameterTypes());
+    }
+
+    private final Map<Method, Long> ids = new HashMap<>();
+    private final Map<Long, Invoker> invokersById = new ConcurrentHashMap<>();
+    private final Map<Method, Invoker> invokersByMethod = new ConcurrentHashMap<>();
+
+    private MethodTable(Class<?> type) {
+        for (Method method : type.getMethods()) {
+            Alias alias = method.getAnnotation(Alias.class);
+            ids.put(method, hash(alias == null ? method.getName() : alias.value(), method.getParameterTypes()));
+            Invoker invoker = new Invoker(method, type);
+            invokersByMethod.put(method, invoker);
+            long id = hash(method.getName(), method.getParameterTypes());
+            // covariant overrides leave a bridge method with the same signature
+            Invoker existing = invokersById.get(id);
+            if (existing == null || existing.method.isBridge()) {
+                invokersById.put(id, invoker);
+            }
+        }
+    }
+
+    /**
+     * Get the invoker of a method by its id
+     * @param id the id
+     * @return the invoker, or null if the class has no method with this id
+     */
+    public Invoker getInvoker(long id) {
+        return invokersById.get(id);
+    }
+
+    /**
+     * Get the invoker of a public method of this class
+     * @param method the method
+     * @return the invoker
+     */
+    public Invoker getInvoker(Method method) {
+        return invokersByMethod.computeIfAbsent(method, key -> new Invoker(key, key.getDeclaringClass()));
+    }
+
+    /**
+     * Bind an id to a method, for remotes whose declared parameter types differ from the implementation
+     * @param id the id
+     * @param method the method
+     * @return the invoker
+     */
+    public Invoker bind(long id, Method method) {
+        Invoker invoker = getInvoker(method);
+        invokersById.putIfAbsent(id, invoker);
+        return invoker;
+    }
+
+    /**
+     * Get the ids of the methods declared by this class
+     * @return unmodifiable map of method ids
+     */
+    public Map<Method, Long> getIds() {
+        return Collections.unmodifiableMap(ids);
+    }
+
+    static long hash(String name, Class<?>[] parameters) {
+        StringBuilder builder = new StringBuilder(name).append('(');
+        for (int i = 0; i < parameters.length; i++) {
+            if (i > 0) builder.append(',');
+            builder.append(parameters[i].getName());
+        }
+        builder.append(')');
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(builder.toString().getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Invoker of a single method
+     */
+    public static final class Invoker {
+
+        private final Method method;
+        private volatile MethodHandle handle;
+
+        Invoker(Method method, Class<?> type) {
+            this.method = accessible(method, type);
+        }
+
+        /**
+         * Get the invoked method
+         * @return the method
+         */
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * Invoke the method
+         * @param target the target instance
+         * @param arguments the arguments, null if there is none
+         * @return the result, null for void methods
+         * @throws Throwable anything thrown by the method
+         */
+        public Object invoke(Object target, Object[] arguments) throws Throwable {
+            // a conditional expression would be typed as Object at the exact call site
+            Object[] spread = arguments == null ? NO_ARGUMENTS : arguments;
+            return handle().invokeExact(target, spread);
+        }
+
+        private MethodHandle handle() throws IllegalAccessException {
+            MethodHandle handle = this.handle;
+            if (handle == null) {
+                // resolved lazily, most methods of a table are never invoked remotely
+                handle = MethodHandles.publicLookup().unreflect(method);
+                if (Modifier.isStatic(method.getModifiers())) {
+                    handle = MethodHandles.dropArguments(handle, 0, Object.class);
+                }
+                this.handle = handle = handle.asSpreader(Object[].class, method.getParameterCount()).asType(INVOKER_TYPE);
+            }
+            return handle;
+        }
+
+        private static Method accessible(Method method, Class<?> type) {
+            // public methods of a non public class are reachable through its public super types
+            if (Modifier.isPublic(method.getDeclaringClass().getModifiers())) return method;
+            Method found = findPublic(type, method.getName(), method.getParameterTypes());
+            return found == null ? method : found;
+        }
+
+        private static Method findPublic(Class<?> type, String name, Class<?>[] parameters) {
+            if (type == null) return null;
+            if (Modifier.isPublic(type.getModifiers())) {
+                try {
+                    return type.getMethod(name, parameters);
+                } catch (NoSuchMethodException e) {
+                    // keep looking in the super types
+                }
+            }
+            for (Class<?> in : type.getInterfaces()) {
+                Method found = findPublic(in, name, parameters);
+                if (found != null) return found;
+            }
+            return findPublic(type.getSuperclass(), name, parameters);
+        }
+
+    }
+
+}
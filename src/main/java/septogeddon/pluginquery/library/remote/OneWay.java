@@ -0,0 +1,16 @@
+package septogeddon.pluginquery.library.remote;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Invoke a void method without waiting for the remote to respond.
+ * The call returns as soon as the query is sent, exceptions thrown by the remote are only printed on this side.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface OneWay {
+}
@@ -1,44 +1,132 @@
 package septogeddon.pluginquery.library.remote;
 
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.WeakHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Context containing object references and prevent object from GarbageCollector
+ * Context containing object references and prevent object from GarbageCollector.
+ * Objects sent to the remote are indexed by identity and by id, proxies of remote objects are held weakly by id.
+ * Exported objects are leased to the remote, proxies collected by the GarbageCollector are reported as released.
+ * Every method is thread-safe and runs in constant time.
  * @author Thito Yalasatria Sunarya
  *
  */
 public class ReferenceContext {
 
-    private final WeakHashMap<Long, ObjectReference> references = new WeakHashMap<>();
-    private final ArrayList<ReferencedObject> referenced = new ArrayList<>();
+    private final Map<Long, ProxyReference> references = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ObjectReference> collected = new ReferenceQueue<>();
+    private final Map<Long, ReferencedObject> referencedById = new ConcurrentHashMap<>();
+    private final Map<IdentityKey, ReferencedObject> referencedByObject = new ConcurrentHashMap<>();
+    private final Queue<Long> released = new ConcurrentLinkedQueue<>();
     private final AtomicLong lastId = new AtomicLong();
+    private volatile long leaseDuration = RemoteContext.DEFAULT_LEASE_DURATION;
+
+    /**
+     * Get the lease duration of exported objects
+     * @return the milliseconds
+     */
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    /**
+     * Set the lease duration of exported objects, applies on their next renewal
+     * @param leaseDuration the milliseconds
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        QueryUtil.illegalArgument(leaseDuration <= 0, "lease duration must be positive");
+        this.leaseDuration = leaseDuration;
+    }
 
     /**
      * Clear all references
      */
     public void clearReferences() {
         references.clear();
-        referenced.clear();
+        released.clear();
+        referencedById.clear();
+        referencedByObject.clear();
         lastId.set(0);
     }
 
+    private void expungeCollected() {
+        Reference<? extends ObjectReference> reference;
+        while ((reference = collected.poll()) != null) {
+            ProxyReference proxy = (ProxyReference) reference;
+            // a newer proxy of the same id is still alive
+            if (references.remove(proxy.id, proxy)) {
+                released.offer(proxy.id);
+            }
+        }
+    }
+
+    /**
+     * Poll the ids of the remote objects whose proxies have been garbage collected
+     * and that haven't been received again since
+     * @return the released ids
+     */
+    public List<Long> pollReleasedReferences() {
+        expungeCollected();
+        List<Long> ids = new ArrayList<>();
+        Long id;
+        while ((id = released.poll()) != null) {
+            // closing a reference the remote sent again would break the new proxy
+            if (getExistingReference(id) == null) ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Get the ids of the remote objects whose proxies are alive on this side
+     * @return the ids
+     */
+    public List<Long> getExistingReferenceIds() {
+        expungeCollected();
+        List<Long> ids = new ArrayList<>(references.size());
+        references.forEach((id, proxy) -> {
+            if (proxy.get() != null) ids.add(id);
+        });
+        return ids;
+    }
+
+    /**
+     * Get the number of proxies of remote objects alive on this side
+     * @return the proxy count
+     */
+    public int getExistingReferenceCount() {
+        expungeCollected();
+        return references.size();
+    }
+
     /**
      * Get existing reference saved on this Remote side
      * @param id the id of reference object
-     * @return the reference object
+     * @return the reference object, or null if there is none or it has been garbage collected
      */
     public ObjectReference getExistingReference(long id) {
-        return references.get(id);
+        ProxyReference reference = references.get(id);
+        return reference == null ? null : reference.get();
     }
 
     /**
-     * Put existing reference into this Remote side
+     * Put existing reference into this Remote side, the reference is held weakly
      * @param reference the reference object
      */
     public void putExistingReference(ObjectReference reference) {
-        references.put(reference.getReferenceHandler().getId(), reference);
+        expungeCollected();
+        long id = reference.getReferenceHandler().getId();
+        references.put(id, new ProxyReference(id, reference, collected));
     }
 
     /**
@@ -47,13 +135,46 @@ public class ReferenceContext {
      * @return a referenced object
      */
     public ReferencedObject createReference(TypeHint hint, Object object) {
-        for (ReferencedObject reference : referenced) {
-            if (reference.getObject() == object) return reference;
+        ReferencedObject referenced = referencedByObject.computeIfAbsent(new IdentityKey(object), key -> {
+            long id = lastId.getAndIncrement();
+            ReferencedObject reference = new ReferencedObject(id, object, hint);
+            referencedById.put(id, reference);
+            return reference;
+        });
+        // sending the reference again grants the remote a fresh lease
+        referenced.renewLease(System.currentTimeMillis() + leaseDuration);
+        return referenced;
+    }
+
+    /**
+     * Renew the lease of the remote on an exported object
+     * @param id reference id
+     * @return false if the reference has already been closed
+     */
+    public boolean renewLease(long id) {
+        ReferencedObject reference = referencedById.get(id);
+        if (reference == null) return false;
+        reference.renewLease(System.currentTimeMillis() + leaseDuration);
+        return true;
+    }
+
+    /**
+     * Close the references whose lease expired
+     * @param now the current epoch milliseconds
+     * @return the number of closed references
+     */
+    public int expireLeases(long now) {
+        int expired = 0;
+        Iterator<ReferencedObject> iterator = referencedById.values().iterator();
+        while (iterator.hasNext()) {
+            ReferencedObject reference = iterator.next();
+            if (reference.getLeaseExpiry() < now) {
+                iterator.remove();
+                referencedByObject.remove(new IdentityKey(reference.getObject()), reference);
+                expired++;
+            }
         }
-        long id = lastId.getAndIncrement();
-        ReferencedObject reference = new ReferencedObject(id, object, hint);
-        referenced.add(reference);
-        return reference;
+        return expired;
     }
 
     /**
@@ -61,12 +182,9 @@ public class ReferenceContext {
      * @param id reference id
      */
     public void closeReference(long id) {
-        for (int i = referenced.size() - 1; i >= 0; i--) {
-            ReferencedObject reference = referenced.get(i);
-            if (reference.getId() == id) {
-                referenced.remove(i);
-                break;
-            }
+        ReferencedObject reference = referencedById.remove(id);
+        if (reference != null) {
+            referencedByObject.remove(new IdentityKey(reference.getObject()), reference);
         }
     }
 
@@ -76,13 +194,46 @@ public class ReferenceContext {
      * @return the referenced object
      */
     public ReferencedObject getReferenced(long id) {
-        for (int i = 0; i < referenced.size(); i++) {
-            ReferencedObject ref = referenced.get(i);
-            if (ref.getId() == id) {
-                return ref;
-            }
+        ReferencedObject reference = referencedById.get(id);
+        if (reference == null) throw new IllegalStateException("no reference");
+        return reference;
+    }
+
+    /**
+     * Get the number of objects referenced by the remote
+     * @return the reference count
+     */
+    public int getReferencedCount() {
+        return referencedById.size();
+    }
+
+    static class ProxyReference extends WeakReference<ObjectReference> {
+        final long id;
+
+        ProxyReference(long id, ObjectReference referent, ReferenceQueue<ObjectReference> queue) {
+            super(referent, queue);
+            this.id = id;
+        }
+    }
+
+    static class IdentityKey {
+        final Object object;
+        final int hash;
+
+        IdentityKey(Object object) {
+            this.object = object;
+            this.hash = System.identityHashCode(object);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).object == object;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
         }
-        throw new IllegalStateException("no reference");
     }
 
 }
@@ -6,7 +6,6 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.lang.reflect.Method;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -21,9 +20,11 @@ public class ReferencedObject implements Externalizable {
     private long id;
     private AtomicLong lastCacheId;
     private Map<Long, Method> cachedMethodLookup;
+    private Map<Method, Long> cachedMethodIds;
     private Object object;
     private TypeHint hint;
     private boolean receiverSide;
+    private volatile long leaseExpiry = Long.MAX_VALUE;
 
     public ReferencedObject() {
     }
@@ -39,6 +40,7 @@ public class ReferencedObject implements Externalizable {
         this.hint = hint;
         this.id = id;
         cachedMethodLookup = new ConcurrentHashMap<>();
+        cachedMethodIds = new ConcurrentHashMap<>();
         lastCacheId = new AtomicLong();
     }
 
@@ -62,15 +64,28 @@ public class ReferencedObject implements Externalizable {
         return object;
     }
 
+    /**
+     * Get when the lease of the remote on this object expires
+     * @return the expiry in epoch milliseconds, {@link Long#MAX_VALUE} if the lease never expires
+     */
+    public long getLeaseExpiry() {
+        return leaseExpiry;
+    }
+
+    /**
+     * Renew the lease of the remote on this object
+     * @param leaseExpiry the expiry in epoch milliseconds
+     */
+    public void renewLease(long leaseExpiry) {
+        this.leaseExpiry = leaseExpiry;
+    }
+
     public long cacheMethod(Method method) {
-        for (Entry<Long, Method> met : cachedMethodLookup.entrySet()) {
-            if (met.getValue().equals(method)) {
-                return met.getKey();
-            }
-        }
-        long id = lastCacheId.getAndIncrement();
-        cachedMethodLookup.put(id, method);
-        return id;
+        return cachedMethodIds.computeIfAbsent(method, key -> {
+            long id = lastCacheId.getAndIncrement();
+            cachedMethodLookup.put(id, key);
+            return id;
+        });
     }
 
     @Override
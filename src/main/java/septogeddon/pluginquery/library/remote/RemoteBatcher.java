@@ -0,0 +1,150 @@
+package septogeddon.pluginquery.library.remote;
+
+import io.netty.channel.Channel;
+import septogeddon.pluginquery.QueryCompletableFuture;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryFuture;
+import septogeddon.pluginquery.utils.InstanceBuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesce the messages of a remote object into {@link RemoteContext#COMMAND_BATCH} frames once the remote
+ * negotiated {@link QueryContext#FEATURE_REMOTE_BATCH} and {@link QueryContext#FEATURE_COMPACT_REMOTE}. Messages are held while the sending thread is inside
+ * a batch scope, or until the batch window of the remote object elapses.
+ */
+class RemoteBatcher {
+
+    /**
+     * Pending bytes that flush the batch right away
+     */
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final RemoteObject<?> owner;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingBytes = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ThreadLocal<int[]> scope = ThreadLocal.withInitial(() -> new int[1]);
+    private final Runnable flush = this::scheduledFlush;
+
+    RemoteBatcher(RemoteObject<?> owner) {
+        this.owner = owner;
+    }
+
+    private boolean isSupported() {
+        // batches hold the encoded messages as byte arrays, which only the compact codec sends as is
+        return owner.getConnection().getFeatures().hasOutbound(QueryContext.FEATURE_REMOTE_BATCH | QueryContext.FEATURE_COMPACT_REMOTE);
+    }
+
+    /**
+     * Open a batch scope on the current thread
+     */
+    void enter() {
+        scope.get()[0]++;
+    }
+
+    /**
+     * Close the batch scope of the current thread, the outermost scope flushes the batch
+     */
+    void exit() {
+        if (--scope.get()[0] == 0) {
+            flush();
+        }
+    }
+
+    boolean isInScope() {
+        return scope.get()[0] > 0;
+    }
+
+    /**
+     * Send the message, or hold it in the batch
+     * @param message the encoded message
+     * @return the future completed once the message, or the batch holding it, has been sent
+     */
+    QueryFuture<QueryConnection> send(byte[] message) {
+        long window = owner.getBatchWindow();
+        boolean inScope = isInScope();
+        if ((!inScope && window < 0) || !isSupported()) {
+            return owner.getConnection().sendQuery(owner.channel, message, owner.isQueueQuery());
+        }
+        Pending entry = new Pending(message);
+        pending.offer(entry);
+        if (pendingBytes.addAndGet(message.length) >= MAX_BATCH_BYTES) {
+            flush();
+        } else if (!inScope && scheduled.compareAndSet(false, true)) {
+            Channel channel = owner.getConnection().getChannel();
+            if (channel == null) {
+                scheduledFlush();
+            } else if (window > 0) {
+                channel.eventLoop().schedule(flush, window, TimeUnit.MILLISECONDS);
+            } else {
+                // runs after the tasks already queued on the event loop
+                channel.eventLoop().execute(flush);
+            }
+        }
+        return entry.future;
+    }
+
+    private void scheduledFlush() {
+        scheduled.set(false);
+        flush();
+    }
+
+    /**
+     * Send the held messages
+     */
+    synchronized void flush() {
+        // sent while holding the lock so batches leave in order
+        List<Pending> batch = new ArrayList<>();
+        Pending entry;
+        while ((entry = pending.poll()) != null) {
+            pendingBytes.addAndGet(-entry.message.length);
+            batch.add(entry);
+        }
+        if (batch.isEmpty()) return;
+        QueryFuture<QueryConnection> sent;
+        if (batch.size() == 1) {
+            sent = owner.getConnection().sendQuery(owner.channel, batch.get(0).message, owner.isQueueQuery());
+        } else {
+            InstanceBuffer buffer = new InstanceBuffer();
+            buffer.pushObject(owner.hashCode());
+            buffer.pushObject(RemoteContext.COMMAND_BATCH);
+            for (Pending held : batch) {
+                buffer.pushObject(held.message);
+            }
+            try {
+                sent = owner.getConnection().sendQuery(owner.channel, owner.encode(buffer), owner.isQueueQuery());
+            } catch (IOException e) {
+                batch.forEach(held -> held.future.completeExceptionally(e));
+                return;
+            }
+        }
+        sent.addListener(future -> {
+            for (Pending held : batch) {
+                if (future.isSuccess()) {
+                    held.future.complete(future.getResult());
+                } else {
+                    held.future.completeExceptionally(future.getCause());
+                }
+            }
+        });
+    }
+
+    static class Pending {
+        final byte[] message;
+        final QueryCompletableFuture<QueryConnection> future = new QueryCompletableFuture<>();
+
+        Pending(byte[] message) {
+            this.message = message;
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+package septogeddon.pluginquery.library.remote;
+
+import septogeddon.pluginquery.utils.DataBuffer;
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary codec of the remote object messages, used once {@link septogeddon.pluginquery.api.QueryContext#FEATURE_COMPACT_REMOTE}
+ * has been negotiated. A message starts with {@link #MAGIC}, which Java serialization streams never start with,
+ * followed by the varint count of values. Every value is a varint tag followed by its content: numbers are zigzag varints,
+ * strings are UTF-8, object arrays are encoded element by element after the {@link TypeHint} of their component type,
+ * and types without a serializer fall back
+ * to Java serialization. Serializers registered with {@link #registerSerializer(int, Class, RemoteSerializer)}
+ * must be registered with the same tag on both sides.
+ */
+public class RemoteCodec {
+
+    /**
+     * First byte of a compact message
+     */
+    public static final byte MAGIC = (byte) 0xC1;
+    /**
+     * Lowest tag available to {@link #registerSerializer(int, Class, RemoteSerializer)}
+     */
+    public static final int FIRST_CUSTOM_TAG = 64;
+
+    static final int TAG_NULL = 0, TAG_ARRAY = 1, TAG_SERIALIZED = 2;
+
+    private static final Entry<?>[] BUILTIN_TAGS = new Entry<?>[FIRST_CUSTOM_TAG];
+    private static final Map<Class<?>, Entry<?>> BUILTIN_TYPES = new HashMap<>();
+    private static final ClassValue<TypeHint> COMPONENT_HINTS = new ClassValue<TypeHint>() {
+        @Override
+        protected TypeHint computeValue(Class<?> type) {
+            return new TypeHint(type);
+        }
+    };
+
+    static {
+        builtin(3, Boolean.class, (out, value) -> out.writeBoolean(value), DataBuffer::readBoolean);
+        builtin(4, Byte.class, (out, value) -> out.writeByte(value), DataBuffer::readByte);
+        builtin(5, Short.class, (out, value) -> out.writeSignedVarInt(value), in -> (short) in.readSignedVarInt());
+        builtin(6, Character.class, (out, value) -> out.writeVarInt(value), in -> (char) in.readVarInt());
+        builtin(7, Integer.class, (out, value) -> out.writeSignedVarInt(value), DataBuffer::readSignedVarInt);
+        builtin(8, Long.class, (out, value) -> out.writeSignedVarLong(value), DataBuffer::readSignedVarLong);
+        builtin(9, Float.class, (out, value) -> out.writeFloat(value), DataBuffer::readFloat);
+        builtin(10, Double.class, (out, value) -> out.writeDouble(value), DataBuffer::readDouble);
+        builtin(11, String.class, RemoteCodec::writeString, RemoteCodec::readString);
+        builtin(12, UUID.class, (out, value) -> {
+            out.writeLong(value.getMostSignificantBits());
+            out.writeLong(value.getLeastSignificantBits());
+        }, in -> new UUID(in.readLong(), in.readLong()));
+        builtin(13, byte[].class, (out, value) -> {
+            out.writeVarInt(value.length);
+            out.write(value);
+        }, in -> {
+            byte[] value = new byte[length(in)];
+            in.readFully(value);
+            return value;
+        });
+        builtin(14, boolean[].class, (out, value) -> {
+            out.writeVarInt(value.length);
+            for (boolean v : value) out.writeBoolean(v);
+        }, in -> {
+            boolean[] value = new boolean[length(in)];
+            for (int i = 0; i < value.length; i++) value[i] = in.readBoolean();
+            return value;
+        });
+        builtin(15, short[].class, (out, value) -> {
+            out.writeVarInt(value.length);
+            for (short v : value) out.writeSignedVarInt(v);
+        }, in -> {
+            short[] value = new short[length(in)];
+            for (int i = 0; i < value.length; i++) value[i] = (short) in.readSignedVarInt();
+            return value;
+        });
+        builtin(16, char[].class, (out, value) -> {
+            out.writeVarInt(value.length);
+            for (char v : value) out.writeVarInt(v);
+        }, in -> {
+            char[] value = new char[length(in)];
+            for (int i = 0; i < value.length; i++) value[i] = (char) in.readVarInt();
+            return value;
+        });
+        builtin(17, int[].class, (out, value) -> {
+            out.writeVarInt(value.length);
+            for (int v : value) out.writeSignedVarInt(v);
+        }, in -> {
+            int[] value = new int[length(in)];
+            for (int i = 0; i < value.length; i++) value[i] = in.readSignedVarInt();
+            return value;
+        });
+        builtin(18, long[].class, (out, value) -> {
+            out.writeVarInt(value.length);
+            for (long v : value) out.writeSignedVarLong(v);
+        }, in -> {
+            long[] value = new long[length(in)];
+            for (int i = 0; i < value.length; i++) value[i] = in.readSignedVarLong();
+            return value;
+        });
+        builtin(19, float[].class, (out, value) -> {
+            out.writeVarInt(value.length);
+            for (float v : value) out.writeFloat(v);
+        }, in -> {
+            float[] value = new float[length(in)];
+            for (int i = 0; i < value.length; i++) value[i] = in.readFloat();
+            return value;
+        });
+        builtin(20, double[].class, (out, value) -> {
+            out.writeVarInt(value.length);
+            for (double v : value) out.writeDouble(v);
+        }, in -> {
+            double[] value = new double[length(in)];
+            for (int i = 0; i < value.length; i++) value[i] = in.readDouble();
+            return value;
+        });
+        builtin(21, TypeHint.class, RemoteCodec::writeTypeHint, RemoteCodec::readTypeHint);
+        builtin(22, ReferencedObject.class, (out, value) -> {
+            out.writeVarLong(value.getId());
+            writeTypeHint(out, value.getHintType());
+            out.writeBoolean(value.isReceiverSide());
+        }, in -> new ReferencedObject(in.readVarLong(), readTypeHint(in), in.readBoolean()));
+    }
+
+    private final Map<Integer, Entry<?>> customTags = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Entry<?>> customTypes = new ConcurrentHashMap<>();
+
+    private static <T> void builtin(int tag, Class<T> type, RemoteSerializer<T> serializer) {
+        Entry<T> entry = new Entry<>(tag, serializer);
+        BUILTIN_TAGS[tag] = entry;
+        BUILTIN_TYPES.put(type, entry);
+    }
+
+    private static <T> void builtin(int tag, Class<T> type, Writer<T> writer, Reader<T> reader) {
+        builtin(tag, type, new RemoteSerializer<T>() {
+            @Override
+            public void write(DataBuffer output, T value) throws IOException {
+                writer.write(output, value);
+            }
+
+            @Override
+            public T read(DataBuffer input) throws IOException {
+                return reader.read(input);
+            }
+        });
+    }
+
+    /**
+     * Check if the message has been encoded by a compact codec
+     * @param message the message
+     * @return true if the message starts with {@link #MAGIC}
+     */
+    public static boolean isCompact(byte[] message) {
+        return message.length > 0 && message[0] == MAGIC;
+    }
+
+    /**
+     * Register a serializer for the exact type
+     * @param tag the tag, at least {@link #FIRST_CUSTOM_TAG}
+     * @param type the type
+     * @param serializer the serializer
+     * @param <T> the type
+     */
+    public <T> void registerSerializer(int tag, Class<T> type, RemoteSerializer<T> serializer) {
+        QueryUtil.nonNull(type, "type");
+        QueryUtil.nonNull(serializer, "serializer");
+        QueryUtil.illegalArgument(tag < FIRST_CUSTOM_TAG, "tag " + tag + " is reserved");
+        QueryUtil.illegalArgument(BUILTIN_TYPES.containsKey(type), "type " + type.getName() + " has a builtin serializer");
+        Entry<T> entry = new Entry<>(tag, serializer);
+        QueryUtil.illegalState(customTags.putIfAbsent(tag, entry) != null, "tag " + tag + " is already registered");
+        customTypes.put(type, entry);
+    }
+
+    /**
+     * Unregister the serializer of the type
+     * @param type the type
+     */
+    public void unregisterSerializer(Class<?> type) {
+        Entry<?> entry = customTypes.remove(type);
+        if (entry != null) {
+            customTags.remove(entry.tag, entry);
+        }
+    }
+
+    private Entry<?> entry(Class<?> type) {
+        Entry<?> entry = BUILTIN_TYPES.get(type);
+        return entry != null ? entry : customTypes.get(type);
+    }
+
+    private Entry<?> entry(int tag) throws IOException {
+        Entry<?> entry = tag < FIRST_CUSTOM_TAG ? BUILTIN_TAGS[tag] : customTags.get(tag);
+        if (entry == null) throw new IOException("unknown tag " + tag);
+        return entry;
+    }
+
+    /**
+     * Encode the values
+     * @param values the values
+     * @param owner the remote object creating references of the values that can't be sent
+     * @return the message
+     * @throws IOException if a value can't be encoded
+     */
+    public byte[] encode(Object[] values, RemoteObject<?> owner) throws IOException {
+        DataBuffer output = new DataBuffer(64);
+        output.writeByte(MAGIC);
+        output.writeVarInt(values.length);
+        for (Object value : values) {
+            write(output, value, owner);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decode a message encoded by {@link #encode(Object[], RemoteObject)}
+     * @param message the message
+     * @param owner the remote object resolving the references
+     * @return the values
+     * @throws IOException if a value can't be decoded
+     * @throws ClassNotFoundException if a value's class can't be found
+     */
+    public Object[] decode(byte[] message, RemoteObject<?> owner) throws IOException, ClassNotFoundException {
+        DataBuffer input = new DataBuffer(message);
+        QueryUtil.illegalArgument(input.readByte() != MAGIC, "not a compact message");
+        try {
+            Object[] values = new Object[length(input)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = read(input, owner);
+            }
+            return values;
+        } catch (IllegalStateException | IndexOutOfBoundsException e) {
+            // the input ended in the middle of a value
+            throw new IOException("malformed compact message", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void write(DataBuffer output, Object value, RemoteObject<?> owner) throws IOException {
+        if (value == null) {
+            output.writeVarInt(TAG_NULL);
+            return;
+        }
+        Entry<Object> entry = (Entry<Object>) entry(value.getClass());
+        if (entry != null) {
+            output.writeVarInt(entry.tag);
+            entry.serializer.write(output, value);
+            return;
+        }
+        if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            output.writeVarInt(TAG_ARRAY);
+            writeTypeHint(output, COMPONENT_HINTS.get(array.getClass().getComponentType()));
+            output.writeVarInt(array.length);
+            for (Object element : array) {
+                write(output, element, owner);
+            }
+            return;
+        }
+        Object filtered = owner.filter(value);
+        if (filtered != value) {
+            // a reference to a non-serializable object
+            write(output, filtered, owner);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutput stream = owner.new RemoteObjectOutputStream(bytes)) {
+            stream.writeObject(value);
+        }
+        output.writeVarInt(TAG_SERIALIZED);
+        output.writeVarInt(bytes.size());
+        output.write(bytes.toByteArray());
+    }
+
+    protected Object read(DataBuffer input, RemoteObject<?> owner) throws IOException, ClassNotFoundException {
+        int tag = input.readVarInt();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_ARRAY:
+                TypeHint hint = readTypeHint(input);
+                Object[] elements = new Object[length(input)];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = read(input, owner);
+                }
+                Object[] array = (Object[]) Array.newInstance(component(hint, elements, owner.getClassRegistry()), elements.length);
+                System.arraycopy(elements, 0, array, 0, elements.length);
+                return array;
+            case TAG_SERIALIZED:
+                byte[] bytes = new byte[length(input)];
+                input.readFully(bytes);
+                try (ObjectInput stream = owner.new RemoteObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return stream.readObject();
+                }
+            default:
+                return owner.unfilter(entry(tag).serializer.read(input));
+        }
+    }
+
+    /**
+     * The most specific component type available on this side that holds every element: implementation classes
+     * may be unknown, and references only implement the interfaces of their proxy
+     */
+    private static Class<?> component(TypeHint hint, Object[] elements, ClassRegistry registry) {
+        search:
+        for (String name : hint.getRelatedClasses()) {
+            Class<?> type;
+            try {
+                type = registry.getClass(name);
+            } catch (ClassNotFoundException e) {
+                continue;
+            }
+            for (Object element : elements) {
+                if (element != null && !type.isInstance(element)) continue search;
+            }
+            return type;
+        }
+        return Object.class;
+    }
+
+    private static int length(DataBuffer input) throws IOException {
+        int length = input.readVarInt();
+        if (length < 0 || length > input.available()) throw new IOException("invalid length " + length);
+        return length;
+    }
+
+    private static void writeString(DataBuffer output, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeVarInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataBuffer input) throws IOException {
+        byte[] bytes = new byte[length(input)];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTypeHint(DataBuffer output, TypeHint hint) {
+        List<String> classes = hint.getRelatedClasses();
+        output.writeVarInt(classes.size());
+        for (String name : classes) {
+            writeString(output, name);
+        }
+    }
+
+    private static TypeHint readTypeHint(DataBuffer input) throws IOException {
+        int size = length(input);
+        List<String> classes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            classes.add(readString(input));
+        }
+        return new TypeHint(classes);
+    }
+
+    static class Entry<T> {
+        final int tag;
+        final RemoteSerializer<T> serializer;
+
+        Entry(int tag, RemoteSerializer<T> serializer) {
+            this.tag = tag;
+            this.serializer = serializer;
+        }
+    }
+
+    interface Writer<T> {
+        void write(DataBuffer output, T value) throws IOException;
+    }
+
+    interface Reader<T> {
+        T read(DataBuffer input) throws IOException;
+    }
+
+}
@@ -15,5 +15,22 @@ public interface RemoteContext {
     Byte COMMAND_CLOSE_REFERENCE = 5;
     Byte COMMAND_PING = 6;
     Byte COMMAND_PONG = 7;
+    Byte COMMAND_BATCH = 8;
+    Byte COMMAND_RENEW_LEASE = 9;
+
+    /**
+     * Trailing flag of {@link #COMMAND_INVOKE_METHOD}, the remote must not respond
+     */
+    Byte INVOKE_FLAG_ONE_WAY = 1;
+
+    /**
+     * Default milliseconds a reference stays exported without being renewed by the remote
+     */
+    long DEFAULT_LEASE_DURATION = 1000 * 60;
+
+    /**
+     * Maximum reference ids sent in one {@link #COMMAND_RENEW_LEASE} or {@link #COMMAND_CLOSE_REFERENCE} message
+     */
+    int MAX_REFERENCE_IDS = 4096;
 
 }
@@ -57,6 +57,14 @@ public class RemoteFuture implements Consumer<QueryFuture<QueryConnection>> {
         return future.get(timeout, unit);
     }
 
+    /**
+     * Get the underlying future, completed on the connection thread
+     * @return the future
+     */
+    public CompletableFuture<Object> toCompletableFuture() {
+        return future;
+    }
+
     /**
      * Dispatch for QueryFutureListener event
      */
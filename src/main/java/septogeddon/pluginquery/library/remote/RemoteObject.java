@@ -1,36 +1,46 @@
 package septogeddon.pluginquery.library.remote;
 
+import io.netty.channel.Channel;
+import septogeddon.pluginquery.QueryCompletableFuture;
 import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryFuture;
 import septogeddon.pluginquery.api.QueryListener;
 import septogeddon.pluginquery.utils.InstanceBuffer;
 import septogeddon.pluginquery.utils.QueryUtil;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
- * RemoteObject controller
+ * RemoteObject controller. Remote methods block the calling thread until the remote responds,
+ * unless they return a {@link CompletableFuture} or a {@link QueryFuture}, which are completed on the connection thread,
+ * or are annotated with {@link OneWay}.
  * @author Thito Yalasatria Sunarya
  *
  * @param <T> Anything
  */
 public class RemoteObject<T> {
 
-    private static final Method finalizeMethod;
+    private static final ScheduledExecutorService SCHEDULER;
 
     static {
-        try {
-            finalizeMethod = Object.class.getDeclaredMethod("finalize");
-        } catch (NoSuchMethodException | SecurityException e) {
-            throw new IllegalStateException("cannot find finalize method on Object. Bug?", e);
-        }
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "PluginQuery RemoteObject Scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        SCHEDULER = scheduler;
     }
 
     protected ExecutorService executorService;
@@ -43,9 +53,17 @@ public class RemoteObject<T> {
     protected ClassRegistry classRegistry;
     protected Map<Long, RemoteFuture> queuedInvocation = new ConcurrentHashMap<>();
     protected ReferenceContext context = new ReferenceContext();
+    protected final Map<RemoteStub, ClassRegistry> registeredStubs = new ConcurrentHashMap<>();
+    protected RemoteCodec codec = new RemoteCodec();
+    protected long batchWindow = -1;
+    protected final RemoteBatcher batcher = new RemoteBatcher(this);
     protected RemoteListener listener = new RemoteListener();
-    protected boolean closed;
-    protected T crossoverObject;
+    protected volatile boolean closed;
+    protected ScheduledFuture<?> leaseTask;
+    protected long heartbeatInterval = -1;
+    protected ScheduledFuture<?> heartbeatTask;
+    protected volatile T crossoverObject;
+    private final Object crossoverLock = new Object();
     protected Class<T> clazz;
 
     /**
@@ -79,7 +97,129 @@ public class RemoteObject<T> {
         QueryUtil.illegalState(clazz != null && !clazz.isInterface(), "represented remote object class must be an interface");
         preventUnknownObject(clazz);
         this.clazz = clazz;
-        connection.getEventBus().registerListener(listener);
+        connection.getEventBus().registerListener(channel, listener);
+        scheduleLeaseTask();
+    }
+
+    private void scheduleLeaseTask() {
+        leaseTask = schedulePeriodic(Math.max(1, context.getLeaseDuration() / 3), RemoteObject::maintainReferences);
+    }
+
+    private ScheduledFuture<?> schedulePeriodic(long period, Consumer<RemoteObject<?>> task) {
+        // the task must not keep an unreachable remote object alive
+        WeakReference<RemoteObject<?>> self = new WeakReference<>(this);
+        return SCHEDULER.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                RemoteObject<?> remote = self.get();
+                if (remote == null || remote.isClosed()) {
+                    throw new CancellationException();
+                }
+                try {
+                    task.accept(remote);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the heartbeat interval
+     * @return the milliseconds between asynchronous pings, -1 if disabled
+     */
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Set the interval of the asynchronous pings checking the remote object while connected.
+     * A failed ping makes the next {@link #getObject()} resolve the remote object again.
+     * @param heartbeatInterval the milliseconds, -1 to disable
+     */
+    public synchronized void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+        if (heartbeatTask != null) heartbeatTask.cancel(false);
+        heartbeatTask = null;
+        // only the receiver side has a remote object to check
+        if (heartbeatInterval > 0 && object == null && !closed) {
+            heartbeatTask = schedulePeriodic(heartbeatInterval, RemoteObject::heartbeat);
+        }
+    }
+
+    protected void heartbeat() {
+        if (!connection.isConnected()) return;
+        checkPingAsync().thenAccept(alive -> {
+            if (!alive) crossoverObject = null;
+        });
+    }
+
+    /**
+     * Get how long references exported to the remote stay alive without being renewed, once the remote negotiated {@link QueryContext#FEATURE_REMOTE_LEASE}.
+     * Leases on the remote references are renewed every third of this duration.
+     * @return the milliseconds
+     */
+    public long getLeaseDuration() {
+        return context.getLeaseDuration();
+    }
+
+    /**
+     * Set the lease duration, both sides should use the same duration
+     * @param leaseDuration the milliseconds
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        context.setLeaseDuration(leaseDuration);
+        leaseTask.cancel(false);
+        if (!closed) scheduleLeaseTask();
+    }
+
+    /**
+     * Get the number of objects this side exported to the remote
+     * @return the live exported reference count
+     */
+    public int getExportedReferenceCount() {
+        return context.getReferencedCount();
+    }
+
+    /**
+     * Get the number of remote objects this side holds a proxy of
+     * @return the live imported reference count
+     */
+    public int getImportedReferenceCount() {
+        return context.getExistingReferenceCount();
+    }
+
+    /**
+     * Release the references whose proxy has been garbage collected, renew the leases of the live proxies
+     * and close the exported references whose lease expired
+     */
+    protected void maintainReferences() {
+        boolean leased = connection.getFeatures().hasOutbound(QueryContext.FEATURE_REMOTE_LEASE);
+        List<Long> released = context.pollReleasedReferences();
+        if (!connection.isConnected()) return;
+        sendReferenceIds(RemoteContext.COMMAND_CLOSE_REFERENCE, released, leased);
+        if (leased) {
+            sendReferenceIds(RemoteContext.COMMAND_RENEW_LEASE, context.getExistingReferenceIds(), true);
+            context.expireLeases(System.currentTimeMillis());
+        }
+    }
+
+    private void sendReferenceIds(Byte command, List<Long> ids, boolean many) {
+        // remotes without leases read a single id per message
+        int limit = many ? RemoteContext.MAX_REFERENCE_IDS : 1;
+        for (int from = 0; from < ids.size(); from += limit) {
+            InstanceBuffer buffer = new InstanceBuffer();
+            buffer.pushObject(hashCode());
+            buffer.pushObject(command);
+            for (Long id : ids.subList(from, Math.min(ids.size(), from + limit))) {
+                buffer.pushObject(id);
+            }
+            try {
+                send(encode(buffer));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -98,6 +238,89 @@ public class RemoteObject<T> {
         return classRegistry;
     }
 
+    /**
+     * Get the codec used once the remote negotiated {@link QueryContext#FEATURE_COMPACT_REMOTE}
+     * @return the codec
+     */
+    public RemoteCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Set the codec, both sides must register the same serializers
+     * @param codec the codec
+     */
+    public void setCodec(RemoteCodec codec) {
+        QueryUtil.nonNull(codec, "codec");
+        this.codec = codec;
+    }
+
+    /**
+     * Get the batch window
+     * @return the milliseconds messages are held to be sent in one batch, 0 for the current connection thread tick, -1 if disabled
+     */
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Set how long messages are held to be sent in one batch, once the remote negotiated {@link QueryContext#FEATURE_REMOTE_BATCH}
+     * @param batchWindow the milliseconds, 0 for the current connection thread tick, -1 to disable
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Send the messages of the asynchronous and one-way invocations made by the task in one batch.
+     * Blocking invocations send the batch before waiting for their response.
+     * @param task the task
+     */
+    public void batch(Runnable task) {
+        batcher.enter();
+        try {
+            task.run();
+        } finally {
+            batcher.exit();
+        }
+    }
+
+    /**
+     * Send the message through the batcher
+     * @param message the encoded message
+     * @return the future completed once the message has been sent
+     */
+    protected QueryFuture<QueryConnection> send(byte[] message) {
+        return batcher.send(message);
+    }
+
+    /**
+     * Encode the buffer with the compact codec if the remote negotiated it, with Java serialization otherwise
+     * @param buffer the buffer
+     * @return the message
+     * @throws IOException if an object can't be encoded
+     */
+    protected byte[] encode(InstanceBuffer buffer) throws IOException {
+        if (connection.getFeatures().hasOutbound(QueryContext.FEATURE_COMPACT_REMOTE)) {
+            return codec.encode(buffer.toArray(), this);
+        }
+        return buffer.toByteArray(RemoteObjectOutputStream::new);
+    }
+
+    /**
+     * Decode a message encoded by {@link #encode(InstanceBuffer)} on the remote side
+     * @param message the message
+     * @return the buffer
+     * @throws IOException if an object can't be decoded
+     * @throws ClassNotFoundException if the class of an object can't be found
+     */
+    protected InstanceBuffer decode(byte[] message) throws IOException, ClassNotFoundException {
+        if (RemoteCodec.isCompact(message)) {
+            return new InstanceBuffer(codec.decode(message, this));
+        }
+        return new InstanceBuffer(message, RemoteObjectInputStream::new);
+    }
+
     /**
      * Is this object queue query when the connection is inactive?
      * @return true if queue is enabled
@@ -115,8 +338,13 @@ public class RemoteObject<T> {
     }
 
     protected T getCrossoverObject() throws TimeoutException {
-        ping();
-        return crossoverObject;
+        T crossover = crossoverObject;
+        if (crossover != null) return crossover;
+        synchronized (crossoverLock) {
+            // resolved once per connection, disconnecting clears it
+            if (crossoverObject == null) ping();
+            return crossoverObject;
+        }
     }
 
     /**
@@ -132,27 +360,57 @@ public class RemoteObject<T> {
         }
     }
 
+    /**
+     * Check if the object is available on the RemoteObject sender without blocking
+     * @return the future completed with false if the remote does not respond within the future timeout
+     */
+    public CompletableFuture<Boolean> checkPingAsync() {
+        long id = nextQueueId();
+        CompletableFuture<Object> pong = sendPing(id).toCompletableFuture();
+        if (futureTimeout >= 0) {
+            ScheduledFuture<?> timeout = SCHEDULER.schedule(() -> {
+                if (queuedInvocation.remove(id) != null) {
+                    pong.completeExceptionally(new TimeoutException("remote ping timed out"));
+                }
+            }, futureTimeout, TimeUnit.MILLISECONDS);
+            pong.whenComplete((value, thrown) -> timeout.cancel(false));
+        }
+        return pong.handle((value, thrown) -> thrown == null);
+    }
+
     protected void ping() throws TimeoutException {
+        checkBlocking();
         long id = nextQueueId();
-        InstanceBuffer buffer = new InstanceBuffer();
-        buffer.pushObject(hashCode());
-        buffer.pushObject(RemoteContext.COMMAND_PING);
-        buffer.pushObject(id);
-        buffer.pushObject(new TypeHint(clazz));
-        RemoteFuture future = new RemoteFuture();
-        queuedInvocation.put(id, future);
+        RemoteFuture future = sendPing(id);
         try {
-            connection.sendQuery(channel, buffer.toByteArray()).addListener(future);
             if (futureTimeout < 0) {
                 future.get();
             } else {
                 future.get(futureTimeout, TimeUnit.MILLISECONDS);
             }
-        } catch (IOException e) {
         } catch (ExecutionException e) {
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
+        } finally {
+            queuedInvocation.remove(id);
+        }
+    }
+
+    private RemoteFuture sendPing(long id) {
+        InstanceBuffer buffer = new InstanceBuffer();
+        buffer.pushObject(hashCode());
+        buffer.pushObject(RemoteContext.COMMAND_PING);
+        buffer.pushObject(id);
+        buffer.pushObject(new TypeHint(clazz));
+        RemoteFuture future = new RemoteFuture();
+        queuedInvocation.put(id, future);
+        try {
+            connection.sendQuery(channel, encode(buffer)).addListener(future);
+        } catch (IOException e) {
+            queuedInvocation.remove(id);
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
     /**
@@ -192,6 +450,8 @@ public class RemoteObject<T> {
      */
     public void close() {
         closed = true;
+        leaseTask.cancel(false);
+        setHeartbeatInterval(-1);
         finalizeReferences();
         connection.getEventBus().unregisterListener(listener);
     }
@@ -226,6 +486,7 @@ public class RemoteObject<T> {
     }
 
     protected void finalizeReferences() {
+        crossoverObject = null;
         context.clearReferences();
         queuedInvocation.forEach((a, b) -> b.completeExceptionally(new IllegalStateException("remote connection closed")));
         queuedInvocation.clear();
@@ -243,7 +504,7 @@ public class RemoteObject<T> {
                     return met;
                 }
             } else {
-                if (met.getParameterCount() == args.length) {
+                if (met.getParameterCount() == args.length && met.getName().equals(method)) {
                     boolean match = true;
                     Class<?>[] param = met.getParameterTypes();
                     for (int i = 0; i < args.length; i++) {
@@ -254,7 +515,8 @@ public class RemoteObject<T> {
                             match = false;
                             break;
                         }
-                        if (object != null && !clazz.isInstance(object)) {
+                        // primitive parameters receive their wrapper, and never null
+                        if (clazz.isPrimitive() ? object == null || !isWrapper(clazz, object) : object != null && !clazz.isInstance(object)) {
                             match = false;
                             break;
                         }
@@ -268,6 +530,10 @@ public class RemoteObject<T> {
         return null;
     }
 
+    private static boolean isWrapper(Class<?> primitive, Object object) {
+        return MethodType.methodType(primitive).wrap().returnType().isInstance(object);
+    }
+
     protected Object unfilter(Object target) throws ClassNotFoundException {
         if (target instanceof ReferencedObject) {
             if (((ReferencedObject) target).isReceiverSide()) {
@@ -307,7 +573,7 @@ public class RemoteObject<T> {
         buffer.pushObject(RemoteContext.COMMAND_CLOSE_REFERENCE);
         buffer.pushObject(id);
         try {
-            connection.sendQuery(channel, buffer.toByteArray(), isQueueQuery());
+            send(encode(buffer));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -341,68 +607,111 @@ public class RemoteObject<T> {
 
     @SuppressWarnings("all")
     protected <K extends ObjectReference> K newObject(long id, List<Class<?>> clazz) {
-        clazz.add(ObjectReference.class);
-        final ReferenceHandler loader = new ReferenceHandler(id, this);
-        K generated = (K)
-                Proxy.newProxyInstance(
-                        getClass().getClassLoader(),
-                        clazz.toArray(new Class[0]),
-                        (proxy, method, args) -> {
-                            if (method.equals(finalizeMethod)) {
-                                closeCrossReference(loader.getId());
-                                return null;
-                            }
-                            if (closed) throw new IllegalStateException("remote object closed");
-                            if (method.equals(ObjectReference.METHOD_GETREFERENCEHANDLER)) {
-                                return loader;
-                            }
-                            InstanceBuffer buffer = new InstanceBuffer();
-                            buffer.pushObject(hashCode());
-                            buffer.pushObject(RemoteContext.COMMAND_INVOKE_METHOD);
-                            long queueId = nextQueueId();
-                            RemoteFuture future = new RemoteMethodInvocationFuture(loader, method);
-                            queuedInvocation.put(queueId, future);
-                            buffer.pushObject(queueId);
-                            Long methodId = loader.getCachedMethodLookup().get(method);
-                            buffer.pushObject(loader.getId());
-                            buffer.pushObject(methodId);
-
-                            // ALIASING
-                            String methodName = method.getName();
-                            Alias alias = method.getAnnotation(Alias.class);
-                            if (alias != null) {
-                                methodName = alias.value();
-                            }
-
-
-                            buffer.pushObject(methodName);
-                            buffer.pushObject(args);
-                            preventUnknownObject(method.getReturnType());
-                            if (methodId == null) {
-                                Class<?>[] param = method.getParameterTypes();
-                                String[] parameters = new String[method.getParameterCount()];
-                                for (int i = 0; i < parameters.length; i++) {
-                                    Class<?> clx = param[i];
-                                    if (clx != null) {
-                                        preventUnknownObject(clx);
-                                        parameters[i] = clx.getName();
-                                    }
-                                }
-                                buffer.pushObject(parameters);
-                            }
-                            connection.sendQuery(channel, buffer.toByteArray(RemoteObjectOutputStream::new), isQueueQuery())
-                                    .addListener(future);
-                            try {
-                                return futureTimeout < 0 ? future.get() : future.get(futureTimeout, TimeUnit.MILLISECONDS);
-                            } catch (Throwable t) {
-                                queuedInvocation.remove(queueId);
-                                throw t;
-                            }
-                        });
+        RemoteStub stub = RemoteStub.of(clazz);
+        ClassRegistry registry = getClassRegistry();
+        if (registeredStubs.get(stub) != registry) {
+            // the types of the stub methods are registered once per registry instead of on every invocation
+            stub.collectTypes(this::preventUnknownObject);
+            registeredStubs.put(stub, registry);
+        }
+        K generated = (K) stub.newInstance(this, new ReferenceHandler(id, this));
         getContext().putExistingReference(generated);
         return generated;
     }
 
+    /**
+     * Check if a method returning the type is invoked asynchronously
+     * @param type the return type
+     * @return true if the type is a {@link CompletableFuture} or a {@link QueryFuture} super type
+     */
+    protected static boolean isAsynchronous(Class<?> type) {
+        return type != Object.class && (type.isAssignableFrom(CompletableFuture.class) || type.isAssignableFrom(QueryCompletableFuture.class));
+    }
+
+    protected Object invokeRemote(ReferenceHandler loader, RemoteStub.StubMethod stubMethod, Object[] args) throws Throwable {
+        Method method = stubMethod.method;
+        Class<?> returnType = stubMethod.returnType;
+        boolean oneWay = stubMethod.oneWay;
+        QueryUtil.illegalState(oneWay && returnType != void.class, "one-way method must return void: " + method);
+        boolean async = stubMethod.asynchronous;
+        if (!oneWay && !async) checkBlocking();
+        InstanceBuffer buffer = new InstanceBuffer();
+        buffer.pushObject(hashCode());
+        buffer.pushObject(RemoteContext.COMMAND_INVOKE_METHOD);
+        long queueId = nextQueueId();
+        RemoteFuture future = new RemoteMethodInvocationFuture(loader, method);
+        // remotes without the feature respond anyway, the response is dropped as its id is unknown
+        boolean noResponse = oneWay && connection.getFeatures().hasOutbound(QueryContext.FEATURE_REMOTE_ONE_WAY);
+        if (!oneWay) queuedInvocation.put(queueId, future);
+        buffer.pushObject(queueId);
+        // remotes with method tables know the method by its signature, others by the id they cached
+        Long methodId = connection.getFeatures().hasOutbound(QueryContext.FEATURE_REMOTE_METHOD_TABLE) ?
+                Long.valueOf(stubMethod.id) : loader.getCachedMethodLookup().get(method);
+        buffer.pushObject(loader.getId());
+        buffer.pushObject(methodId);
+        buffer.pushObject(stubMethod.name);
+        buffer.pushObject(args);
+        if (methodId == null) {
+            buffer.pushObject(stubMethod.parameterNames.clone());
+        }
+        if (noResponse) {
+            buffer.pushObject(RemoteContext.INVOKE_FLAG_ONE_WAY);
+        }
+        QueryFuture<QueryConnection> sent = send(encode(buffer));
+        if (oneWay) return null;
+        sent.addListener(future);
+        if (async) return toAsynchronous(queueId, future, returnType);
+        // the response can't come before the batch holding the invocation is sent
+        batcher.flush();
+        try {
+            return futureTimeout < 0 ? future.get() : future.get(futureTimeout, TimeUnit.MILLISECONDS);
+        } catch (Throwable t) {
+            queuedInvocation.remove(queueId);
+            throw t;
+        }
+    }
+
+    private Object toAsynchronous(long queueId, RemoteFuture future, Class<?> returnType) {
+        CompletableFuture<Object> result = future.toCompletableFuture();
+        if (futureTimeout >= 0) {
+            ScheduledFuture<?> timeout = SCHEDULER.schedule(() -> {
+                if (queuedInvocation.remove(queueId) != null) {
+                    future.completeExceptionally(new TimeoutException("remote invocation timed out"));
+                }
+            }, futureTimeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, thrown) -> timeout.cancel(false));
+        }
+        CompletableFuture<Object> unwrapped = new CompletableFuture<>();
+        result.whenComplete((value, thrown) -> {
+            if (thrown == null) unwrapped.complete(value);
+            else unwrapped.completeExceptionally(unwrap(thrown));
+        });
+        if (returnType.isAssignableFrom(CompletableFuture.class)) return unwrapped;
+        QueryCompletableFuture<Object> queryFuture = new QueryCompletableFuture<>();
+        unwrapped.whenComplete((value, thrown) -> {
+            if (thrown == null) queryFuture.complete(value);
+            else queryFuture.completeExceptionally(thrown);
+        });
+        return queryFuture;
+    }
+
+    private static Throwable unwrap(Throwable thrown) {
+        // the remote delivers exceptions thrown by the method wrapped
+        if (thrown instanceof InvocationTargetException && thrown.getCause() != null) {
+            return thrown.getCause();
+        }
+        return thrown;
+    }
+
+    /**
+     * Blocking on the connection thread would prevent the response from being received
+     */
+    protected void checkBlocking() {
+        Channel channel = connection.getChannel();
+        QueryUtil.illegalState(channel != null && channel.eventLoop().inEventLoop(),
+                "blocking remote invocation on the connection thread, use an asynchronous or one-way method");
+    }
+
     class RemoteObjectOutputStream extends ObjectOutputStream {
 
         protected RemoteObjectOutputStream() throws IOException, SecurityException {
@@ -451,6 +760,41 @@ public class RemoteObject<T> {
 
     class RemoteListener implements QueryListener {
 
+        protected void respond(int hashCode, long queueId, long methodId, Object result, Throwable thrown) {
+            if (thrown != null) {
+                if (thrown instanceof CompletionException && thrown.getCause() != null) {
+                    thrown = thrown.getCause();
+                }
+                // same shape as an exception thrown by a blocking method
+                deliverException(hashCode, queueId, new InvocationTargetException(thrown));
+                return;
+            }
+            InstanceBuffer buffer = new InstanceBuffer();
+            buffer.pushObject(hashCode);
+            buffer.pushObject(RemoteContext.COMMAND_RESPONSE_RESULT);
+            buffer.pushObject(queueId);
+            buffer.pushObject(methodId);
+            buffer.pushObject(result);
+            try {
+                send(encode(buffer));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        protected void deliverException(int hashCode, Long queueId, Throwable thrown) {
+            InstanceBuffer buffer = new InstanceBuffer();
+            buffer.pushObject(hashCode);
+            buffer.pushObject(RemoteContext.COMMAND_DELIVERED_EXCEPTION);
+            buffer.pushObject(queueId);
+            buffer.pushObject(thrown);
+            try {
+                send(encode(buffer));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         @Override
         public void onConnectionStateChange(QueryConnection connection) {
             if (!connection.isConnected()) {
@@ -463,7 +807,7 @@ public class RemoteObject<T> {
         @Override
         public void onQueryReceived(QueryConnection connection, String channel, byte[] message) throws ClassNotFoundException, IOException {
             if (RemoteObject.this.channel.equals(channel)) {
-                InstanceBuffer buffer = new InstanceBuffer(message, RemoteObjectInputStream::new);
+                InstanceBuffer buffer = decode(message);
                 int hashCode = buffer.pullObject();
                 byte command = buffer.pullObject();
                 if (command == RemoteContext.COMMAND_INVOKE_METHOD) {
@@ -479,14 +823,24 @@ public class RemoteObject<T> {
                                 buff.pushObject(queueId);
                                 buff.pushObject(reference.getReferenceHandler().getId());
                                 buffer.copyTo(buff);
-                                refer.getConnection().sendQuery(channel, buff.toByteArray(RemoteObjectOutputStream::new));
+                                refer.getConnection().sendQuery(channel, refer.encode(buff));
                                 return;
                             }
                             Long methodId = buffer.pullObject();
                             String methodName = buffer.pullObject();
                             Object[] arguments = buffer.pullObject();
+                            MethodTable table = MethodTable.of(stored.getObject().getClass());
+                            MethodTable.Invoker invoker = null;
                             Method method;
-                            if (methodId == null) {
+                            if (methodId != null && connection.getFeatures().hasInbound(QueryContext.FEATURE_REMOTE_METHOD_TABLE)) {
+                                invoker = table.getInvoker(methodId);
+                                if (invoker == null) {
+                                    // the remote declares other parameter types than the implementation
+                                    method = findMethod(stored.getObject(), methodName, new Class<?>[arguments == null ? 0 : arguments.length], arguments);
+                                    if (method != null) invoker = table.bind(methodId, method);
+                                }
+                                method = invoker == null ? null : invoker.getMethod();
+                            } else if (methodId == null) {
                                 String[] paramName = buffer.pullObject();
                                 Class<?>[] parameters = new Class<?>[paramName.length];
                                 for (int i = 0; i < parameters.length; i++) {
@@ -501,37 +855,32 @@ public class RemoteObject<T> {
                             } else {
                                 method = stored.getCachedMethodLookup().get(methodId);
                             }
+                            boolean oneWay = buffer.available() > 0 && RemoteContext.INVOKE_FLAG_ONE_WAY.equals(buffer.pullObject());
                             if (method != null) {
                                 final Method finalMethod = method;
+                                final MethodTable.Invoker finalInvoker = invoker == null ? table.getInvoker(method) : invoker;
                                 final ReferencedObject finalStored = stored;
                                 submit(() -> {
                                     try {
-                                        Object result = finalMethod.invoke(finalStored.getObject(), arguments);
-                                        buffer.finalize();
-                                        buffer.pushObject(hashCode);
-                                        buffer.pushObject(RemoteContext.COMMAND_RESPONSE_RESULT);
-                                        buffer.pushObject(queueId);
-                                        if (methodId == null) {
-                                            buffer.pushObject(finalStored.cacheMethod(finalMethod));
+                                        Object result;
+                                        try {
+                                            result = finalInvoker.invoke(finalStored.getObject(), arguments);
+                                        } catch (Throwable t) {
+                                            throw new InvocationTargetException(t);
+                                        }
+                                        if (oneWay) return;
+                                        long responseMethodId = methodId == null ? finalStored.cacheMethod(finalMethod) : methodId;
+                                        if (result instanceof CompletionStage) {
+                                            ((CompletionStage<?>) result).whenComplete((value, thrown) ->
+                                                    respond(hashCode, queueId, responseMethodId, value, thrown));
+                                        } else if (result instanceof QueryFuture) {
+                                            ((QueryFuture<?>) result).addListener(future ->
+                                                    respond(hashCode, queueId, responseMethodId, future.getResult(), future.getCause()));
                                         } else {
-                                            buffer.pushObject(methodId);
+                                            respond(hashCode, queueId, responseMethodId, result, null);
                                         }
-                                        buffer.pushObject(filter(result));
-                                        connection.sendQuery(channel, buffer.toByteArray(RemoteObjectOutputStream::new), isQueueQuery());
-                                    } catch (IllegalAccessException e) {
-                                    } catch (IllegalArgumentException | IOException e) {
-                                        e.printStackTrace();
                                     } catch (InvocationTargetException e) {
-                                        buffer.finalize();
-                                        buffer.pushObject(hashCode);
-                                        buffer.pushObject(RemoteContext.COMMAND_DELIVERED_EXCEPTION);
-                                        buffer.pushObject(queueId);
-                                        buffer.pushObject(e);
-                                        try {
-                                            connection.sendQuery(channel, buffer.toByteArray(), isQueueQuery());
-                                        } catch (IOException e1) {
-                                            e1.printStackTrace();
-                                        }
+                                        deliverException(hashCode, oneWay ? null : queueId, e);
                                     }
                                 });
                             } else throw new NoSuchMethodException(methodName);
@@ -544,23 +893,49 @@ public class RemoteObject<T> {
                         buffer.pushObject(RemoteContext.COMMAND_DELIVERED_EXCEPTION);
                         buffer.pushObject(queueId);
                         buffer.pushObject(t);
-                        connection.sendQuery(channel, buffer.toByteArray(), isQueueQuery());
+                        send(encode(buffer));
                     }
                     return;
                 }
-                if (command == RemoteContext.COMMAND_CLOSE_REFERENCE && hashCode == RemoteObject.this.hashCode()) {
-                    long objectId = buffer.pullObject();
-                    context.closeReference(objectId);
+                if (command == RemoteContext.COMMAND_BATCH) {
+                    // responses made while handling the batch are sent back in one batch
+                    batcher.enter();
+                    try {
+                        while (buffer.available() > 0) {
+                            byte[] part = buffer.pullObject();
+                            try {
+                                onQueryReceived(connection, channel, part);
+                            } catch (Throwable t) {
+                                t.printStackTrace();
+                            }
+                        }
+                    } finally {
+                        batcher.exit();
+                    }
+                    return;
+                }
+                // the hash code belongs to the remote side, the channel already scopes the references
+                if (command == RemoteContext.COMMAND_CLOSE_REFERENCE) {
+                    while (buffer.available() > 0) {
+                        long objectId = buffer.pullObject();
+                        context.closeReference(objectId);
+                    }
+                    return;
+                }
+                if (command == RemoteContext.COMMAND_RENEW_LEASE) {
+                    while (buffer.available() > 0) {
+                        long objectId = buffer.pullObject();
+                        context.renewLease(objectId);
+                    }
                     return;
                 }
                 if (command == RemoteContext.COMMAND_RESPONSE_RESULT && hashCode == RemoteObject.this.hashCode()) {
                     long queueId = buffer.pullObject();
                     long methodId = buffer.pullObject();
                     Object object = buffer.pullObject();
+                    // the invocation may have timed out already, or been one-way
                     RemoteFuture future = queuedInvocation.remove(queueId);
-                    if (future == null) {
-                        throw new IllegalStateException("no such future");
-                    } else {
+                    if (future != null) {
                         if (future instanceof RemoteMethodInvocationFuture) {
                             RemoteMethodInvocationFuture rmif = (RemoteMethodInvocationFuture) future;
                             rmif.getHandler().getCachedMethodLookup().put(rmif.getMethod(), methodId);
@@ -577,7 +952,7 @@ public class RemoteObject<T> {
                     buffer.pushObject(RemoteContext.COMMAND_PONG);
                     buffer.pushObject(queueId);
                     buffer.pushObject(context.createReference(hintType, object).getId());
-                    connection.sendQuery(channel, buffer.toByteArray());
+                    connection.sendQuery(channel, encode(buffer));
                     return;
                 }
                 if (command == RemoteContext.COMMAND_PONG && hashCode == RemoteObject.this.hashCode()) {
@@ -591,9 +966,9 @@ public class RemoteObject<T> {
                         classes.add(clazz);
                         crossoverObject = newObject(objectId, classes);
                     }
+                    // the ping may have timed out already
                     RemoteFuture future = queuedInvocation.remove(queueId);
                     if (future != null) future.complete(null);
-                    else throw new IllegalStateException("no such future");
                     return;
                 }
                 if (command == RemoteContext.COMMAND_DELIVERED_EXCEPTION && hashCode == RemoteObject.this.hashCode()) {
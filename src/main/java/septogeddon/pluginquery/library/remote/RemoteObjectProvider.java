@@ -1,8 +1,9 @@
 package septogeddon.pluginquery.library.remote;
 
 import septogeddon.pluginquery.api.QueryConnection;
-import septogeddon.pluginquery.api.QueryListener;
+import septogeddon.pluginquery.api.QueryConnectionStateListener;
 import septogeddon.pluginquery.api.QueryMessenger;
+import septogeddon.pluginquery.utils.QueryUtil;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,6 +27,10 @@ public class RemoteObjectProvider<T> {
     private final QueryMessenger messenger;
     private final RemoteListener listener = new RemoteListener();
     private ClassRegistry registry = new ClassRegistry();
+    private RemoteCodec codec = new RemoteCodec();
+    private long batchWindow = -1;
+    private long leaseDuration = RemoteContext.DEFAULT_LEASE_DURATION;
+    private long heartbeatInterval = -1;
 
     /**
      * Initialize RemoteObjectProvider for specified channel and messenger
@@ -59,6 +64,111 @@ public class RemoteObjectProvider<T> {
         });
     }
 
+    /**
+     * Get the codec shared by the remote objects of this provider
+     * @return the codec
+     */
+    public RemoteCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Set the codec for this provider
+     * @param codec the codec
+     */
+    public void setCodec(RemoteCodec codec) {
+        this.codec = codec;
+        remoteObject.values().forEach(remote -> {
+            remote.setCodec(codec);
+        });
+    }
+
+    /**
+     * Get the batch window for this provider
+     * @return the batch window
+     * @see RemoteObject#getBatchWindow()
+     */
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Set the batch window for this provider
+     * @param batchWindow the milliseconds, 0 for the current connection thread tick, -1 to disable
+     * @see RemoteObject#setBatchWindow(long)
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+        remoteObject.values().forEach(remote -> {
+            remote.setBatchWindow(batchWindow);
+        });
+    }
+
+    /**
+     * Get the lease duration for this provider
+     * @return the milliseconds
+     * @see RemoteObject#getLeaseDuration()
+     */
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    /**
+     * Set the lease duration for this provider
+     * @param leaseDuration the milliseconds
+     * @see RemoteObject#setLeaseDuration(long)
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        QueryUtil.illegalArgument(leaseDuration <= 0, "lease duration must be positive");
+        this.leaseDuration = leaseDuration;
+        remoteObject.values().forEach(remote -> {
+            remote.setLeaseDuration(leaseDuration);
+        });
+    }
+
+    /**
+     * Get the heartbeat interval for this provider
+     * @return the milliseconds, -1 if disabled
+     * @see RemoteObject#getHeartbeatInterval()
+     */
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Set the heartbeat interval for this provider
+     * @param heartbeatInterval the milliseconds, -1 to disable
+     * @see RemoteObject#setHeartbeatInterval(long)
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+        remoteObject.values().forEach(remote -> {
+            remote.setHeartbeatInterval(heartbeatInterval);
+        });
+    }
+
+    /**
+     * Get the remote object of a connection
+     * @param connection the connection
+     * @return the remote object, or null if the connection has never been connected
+     */
+    public RemoteObject<T> getRemoteObject(QueryConnection connection) {
+        return remoteObject.get(connection);
+    }
+
+    /**
+     * Get the number of objects exported through this provider, across every connection
+     * @return the live exported reference count
+     * @see RemoteObject#getExportedReferenceCount()
+     */
+    public int getExportedReferenceCount() {
+        int count = 0;
+        for (RemoteObject<T> remote : remoteObject.values()) {
+            count += remote.getExportedReferenceCount();
+        }
+        return count;
+    }
+
     protected void prepare() {
         messenger.getEventBus().registerListener(listener);
     }
@@ -120,7 +230,7 @@ public class RemoteObjectProvider<T> {
         });
     }
 
-    class RemoteListener implements QueryListener {
+    class RemoteListener implements QueryConnectionStateListener {
 
         @Override
         public void onConnectionStateChange(QueryConnection connection) throws Throwable {
@@ -132,13 +242,15 @@ public class RemoteObjectProvider<T> {
                 remote.setExecutorService(service);
                 remote.setFutureTimeout(futureTimeout);
                 remote.setQueueQuery(queueQuery);
+                remote.setCodec(codec);
+                remote.setBatchWindow(batchWindow);
+                if (leaseDuration != remote.getLeaseDuration()) {
+                    remote.setLeaseDuration(leaseDuration);
+                }
+                remote.setHeartbeatInterval(heartbeatInterval);
             }
         }
 
-        @Override
-        public void onQueryReceived(QueryConnection connection, String channel, byte[] message) throws Throwable {
-        }
-
     }
 
 }
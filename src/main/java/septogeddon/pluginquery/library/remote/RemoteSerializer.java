@@ -0,0 +1,30 @@
+package septogeddon.pluginquery.library.remote;
+
+import septogeddon.pluginquery.utils.DataBuffer;
+
+import java.io.IOException;
+
+/**
+ * Fast serializer of a single type for {@link RemoteCodec}
+ *
+ * @param <T> the serialized type
+ */
+public interface RemoteSerializer<T> {
+
+    /**
+     * Write the value
+     * @param output the output
+     * @param value the value, never null
+     * @throws IOException if the value can't be written
+     */
+    void write(DataBuffer output, T value) throws IOException;
+
+    /**
+     * Read a value written by {@link #write(DataBuffer, Object)}
+     * @param input the input
+     * @return the value
+     * @throws IOException if the value can't be read
+     */
+    T read(DataBuffer input) throws IOException;
+
+}
@@ -0,0 +1,188 @@
+package septogeddon.pluginquery.library.remote;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Stub of the remote objects implementing a set of interfaces. The proxy class and the invocation details of every method
+ * are computed once and shared by all references implementing the same interfaces.
+ */
+public final class RemoteStub {
+
+    private static final ClassValue<Map<List<Class<?>>, RemoteStub>> STUBS = new ClassValue<Map<List<Class<?>>, RemoteStub>>() {
+        @Override
+        protected Map<List<Class<?>>, RemoteStub> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    /**
+     * Get the stub implementing the interfaces and {@link ObjectReference}
+     * @param interfaces the interfaces
+     * @return the stub
+     */
+    public static RemoteStub of(List<Class<?>> interfaces) {
+        List<Class<?>> key = new ArrayList<>(new LinkedHashSet<>(interfaces));
+        key.remove(ObjectReference.class);
+        key.add(ObjectReference.class);
+        // keyed by the first interface so the stub is unloaded with it
+        return STUBS.get(key.get(0)).computeIfAbsent(Collections.unmodifiableList(key), RemoteStub::new);
+    }
+
+    private final List<Class<?>> interfaces;
+    private final Constructor<?> constructor;
+    private final Map<Method, StubMethod> methods = new HashMap<>();
+
+    private RemoteStub(List<Class<?>> interfaces) {
+        this.interfaces = interfaces;
+        try {
+            // Proxy.getProxyClass is deprecated, the class of a throwaway instance is the same cached proxy class
+            constructor = Proxy.newProxyInstance(RemoteObject.class.getClassLoader(), interfaces.toArray(new Class<?>[0]),
+                    (proxy, method, args) -> null).getClass().getConstructor(InvocationHandler.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("proxy class without invocation handler constructor. Bug?", e);
+        }
+        for (Class<?> type : interfaces) {
+            for (Method method : type.getMethods()) {
+                methods.putIfAbsent(method, new StubMethod(method));
+            }
+        }
+        // the proxy dispatches these with the methods declared by Object
+        for (String name : Arrays.asList("hashCode", "equals", "toString")) {
+            try {
+                Method method = name.equals("equals") ? Object.class.getMethod(name, Object.class) : Object.class.getMethod(name);
+                methods.putIfAbsent(method, new StubMethod(method));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("cannot find " + name + " method on Object. Bug?", e);
+            }
+        }
+    }
+
+    /**
+     * Get the implemented interfaces
+     * @return unmodifiable list of interfaces, ending with {@link ObjectReference}
+     */
+    public List<Class<?>> getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * Pass every interface the stub methods take or return, once per class registry
+     * @param consumer the consumer
+     */
+    void collectTypes(Consumer<Class<?>> consumer) {
+        Set<Class<?>> types = new LinkedHashSet<>(interfaces);
+        for (StubMethod method : methods.values()) {
+            types.add(method.returnType);
+            types.addAll(Arrays.asList(method.method.getParameterTypes()));
+        }
+        types.forEach(consumer);
+    }
+
+    /**
+     * Create a reference
+     * @param owner the remote object owning the reference
+     * @param handler the reference handler
+     * @return the reference
+     */
+    ObjectReference newInstance(RemoteObject<?> owner, ReferenceHandler handler) {
+        try {
+            return (ObjectReference) constructor.newInstance(new Handler(this, owner, handler));
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("cannot instantiate stub of " + interfaces, e);
+        }
+    }
+
+    /**
+     * Invocation details of a stub method
+     */
+    public static final class StubMethod {
+
+        final Method method;
+        final String name;
+        final String[] parameterNames;
+        final long id;
+        final Class<?> returnType;
+        final boolean oneWay;
+        final boolean asynchronous;
+        final boolean referenceHandler;
+
+        StubMethod(Method method) {
+            this.method = method;
+            Alias alias = method.getAnnotation(Alias.class);
+            name = alias == null ? method.getName() : alias.value();
+            Class<?>[] parameters = method.getParameterTypes();
+            parameterNames = new String[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                parameterNames[i] = parameters[i].getName();
+            }
+            id = MethodTable.getId(method);
+            returnType = method.getReturnType();
+            oneWay = method.isAnnotationPresent(OneWay.class);
+            asynchronous = RemoteObject.isAsynchronous(returnType);
+            referenceHandler = method.equals(ObjectReference.METHOD_GETREFERENCEHANDLER);
+        }
+
+        /**
+         * Get the method
+         * @return the method
+         */
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * Get the method name the remote knows, renamed by {@link Alias}
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the id the remote knows the method by, once it negotiated {@link septogeddon.pluginquery.api.QueryContext#FEATURE_REMOTE_METHOD_TABLE}
+         * @return the id
+         */
+        public long getId() {
+            return id;
+        }
+
+    }
+
+    static final class Handler implements InvocationHandler {
+
+        private final RemoteStub stub;
+        private final RemoteObject<?> owner;
+        private final ReferenceHandler handler;
+
+        Handler(RemoteStub stub, RemoteObject<?> owner, ReferenceHandler handler) {
+            this.stub = stub;
+            this.owner = owner;
+            this.handler = handler;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (owner.isClosed()) throw new IllegalStateException("remote object closed");
+            StubMethod stubMethod = stub.methods.get(method);
+            if (stubMethod == null) stubMethod = new StubMethod(method);
+            if (stubMethod.referenceHandler) return handler;
+            return owner.invokeRemote(handler, stubMethod, args);
+        }
+
+    }
+
+}
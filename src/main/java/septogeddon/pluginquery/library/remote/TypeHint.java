@@ -28,6 +28,10 @@ public class TypeHint implements Externalizable {
         }
     }
 
+    TypeHint(List<String> interfaces) {
+        this.interfaces.addAll(interfaces);
+    }
+
     private static void collectRelatedClasses(Class<?> cl, List<Class<?>> cls) {
         if (cl == null || cls.contains(cl)) return;
         cls.add(cl);
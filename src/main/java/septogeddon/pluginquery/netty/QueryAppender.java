@@ -1,7 +1,6 @@
 package septogeddon.pluginquery.netty;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 
@@ -14,16 +13,16 @@ public class QueryAppender extends ByteToMessageDecoder {
     protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
         if (in.readableBytes() <= 0) return;
         in.markReaderIndex();
-        final byte[] buf = new byte[3];
+        int length = 0;
         int i = 0;
-        while (i < buf.length) {
+        while (i < 3) {
             if (!in.isReadable()) {
                 in.resetReaderIndex();
                 return;
             }
-            buf[i] = in.readByte();
-            if (buf[i] >= 0) {
-                final int length = readUnsignedShort(Unpooled.wrappedBuffer(buf));
+            byte b = in.readByte();
+            length |= (b & 0x7F) << i++ * 7;
+            if (b >= 0) {
                 if (length == 0) {
                     throw new IOException("invalid packet");
                 }
@@ -40,24 +39,9 @@ public class QueryAppender extends ByteToMessageDecoder {
                     out.add(dst);
                 }
                 return;
-            } else {
-                ++i;
             }
         }
         throw new IOException("packet too large");
     }
 
-    public int readUnsignedShort(final ByteBuf input) throws IOException {
-        int out = 0;
-        int bytes = 0;
-        byte in;
-        do {
-            in = input.readByte();
-            out |= (in & 0x7F) << bytes++ * 7;
-            if (bytes > 5) {
-                throw new IOException("invalid unsigned int");
-            }
-        } while ((in & 0x80) == 0x80);
-        return out;
-    }
 }
@@ -4,28 +4,80 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import septogeddon.pluginquery.QueryMessage;
+import septogeddon.pluginquery.api.QueryContext;
 import septogeddon.pluginquery.utils.Debug;
+import septogeddon.pluginquery.utils.QueryUtil;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Decode query messages, see {@link QueryEncoder} for the format. Channels referred by id
+ * resolve to the name cached when the id was defined.
+ */
 public class QueryDecoder extends ByteToMessageDecoder {
 
+    private final QueryProtocol protocol;
+    // only touched on the event loop
+    private String[] channels = new String[16];
+
+    public QueryDecoder() {
+        this(null);
+    }
+
+    /**
+     * @param protocol the protocol negotiating the channel ids, null to always expect channel names
+     */
+    public QueryDecoder(QueryProtocol protocol) {
+        this.protocol = protocol;
+    }
+
     @Override
     protected void decode(ChannelHandlerContext arg0, ByteBuf arg1, List<Object> arg2) throws Exception {
         if (arg1.readableBytes() <= 0) return;
         Debug.debug(() -> "Decoder: BEGIN");
-        int length = arg1.readByte();
-        byte[] buf = new byte[length];
-        arg1.readBytes(buf);
-        // ignoring charset
-        // channel name shouldn't be emoji wtf?
-        String channel = new String(buf);
-        Debug.debug(() -> "Decoder: IDENTIFIED: " + channel);
-        length = arg1.readInt();
+        String channel;
+        int length;
+        int correlation = 0;
+        if (protocol != null && protocol.hasInboundFeature(QueryContext.FEATURE_CHANNEL_IDS)) {
+            int header = QueryProtocol.readVarInt(arg1);
+            int id = header >>> 1;
+            if (header == QueryEncoder.CHANNEL_LITERAL || (header & 1) != 0) {
+                length = arg1.readUnsignedByte();
+                channel = arg1.toString(arg1.readerIndex(), length, StandardCharsets.UTF_8);
+                arg1.skipBytes(length);
+                if (header != QueryEncoder.CHANNEL_LITERAL) {
+                    QueryUtil.illegalArgument(id > QueryEncoder.MAX_CHANNEL_IDS, "invalid channel id " + id);
+                    if (id >= channels.length) {
+                        channels = Arrays.copyOf(channels, Math.min(QueryEncoder.MAX_CHANNEL_IDS + 1, Math.max(id + 1, channels.length * 2)));
+                    }
+                    channels[id] = channel;
+                }
+            } else {
+                channel = id < channels.length ? channels[id] : null;
+                QueryUtil.illegalArgument(channel == null, "undefined channel id " + id);
+            }
+            if (protocol.hasInboundFeature(QueryContext.FEATURE_REQUESTS)) {
+                correlation = QueryProtocol.readVarInt(arg1);
+            }
+            length = QueryProtocol.readVarInt(arg1);
+        } else {
+            length = arg1.readByte();
+            byte[] buf = new byte[length];
+            arg1.readBytes(buf);
+            // ignoring charset
+            // channel name shouldn't be emoji wtf?
+            channel = new String(buf);
+            length = arg1.readInt();
+        }
+        String identified = channel;
+        Debug.debug(() -> "Decoder: IDENTIFIED: " + identified);
         byte[] message = new byte[length];
         Debug.debug(() -> "Decoder: LENGTH: " + message.length);
         arg1.readBytes(message);
         QueryMessage query = new QueryMessage(channel, message);
+        query.setCorrelation(correlation);
         arg2.add(query);
         Debug.debug(() -> "Decoder: END");
     }
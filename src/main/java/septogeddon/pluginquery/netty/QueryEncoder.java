@@ -2,25 +2,165 @@ package septogeddon.pluginquery.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.MessageToByteEncoder;
 import septogeddon.pluginquery.QueryMessage;
+import septogeddon.pluginquery.api.QueryContext;
 import septogeddon.pluginquery.utils.Debug;
+import septogeddon.pluginquery.utils.QueryUtil;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encode query messages. Once {@link QueryContext#FEATURE_CHANNEL_IDS} has been negotiated, every message starts
+ * with a varint header: {@link #CHANNEL_LITERAL} followed by the channel name, {@code id << 1 | 1} followed by
+ * the channel name to define the id, or {@code id << 1} to refer to a defined channel. Once {@link QueryContext#FEATURE_REQUESTS}
+ * has been negotiated, the correlation header of {@link QueryRequests} follows as a varint. The payload length follows as a varint.
+ * An id is only referred to once a message defining it has been written, until then every message defines it again.
+ */
 public class QueryEncoder extends MessageToByteEncoder<QueryMessage> {
 
+    /**
+     * Header of a channel sent by name without defining an id
+     */
+    public static final int CHANNEL_LITERAL = 0;
+    /**
+     * Maximum number of channel ids defined per connection and direction, other channels are sent by name
+     */
+    public static final int MAX_CHANNEL_IDS = 1024;
+
+    private final QueryProtocol protocol;
+    // only touched on the event loop
+    private final Map<String, Integer> channelIds = new HashMap<>();
+    private final Map<String, Definition> definitions = new HashMap<>();
+    private int nextId = 1;
+    private ChannelPromise promise;
+
+    public QueryEncoder() {
+        this(null);
+    }
+
+    /**
+     * @param protocol the protocol negotiating the channel ids, null to always send channel names
+     */
+    public QueryEncoder(QueryProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        this.promise = promise == ctx.voidPromise() ? null : promise;
+        try {
+            super.write(ctx, msg, promise);
+        } finally {
+            this.promise = null;
+        }
+    }
+
     @Override
     protected void encode(ChannelHandlerContext arg0, QueryMessage arg1, ByteBuf arg2) throws Exception {
         Debug.debug(() -> "Encoder: BEGIN");
-        arg2.writeByte(arg1.getChannel().length());
-        arg2.writeBytes(arg1.getChannel().getBytes());
-        Debug.debug(() -> "Encoder: ENCODE: " + arg1.getChannel());
-        arg2.writeInt(arg1.getMessage().length);
-        arg2.writeBytes(arg1.getMessage());
+        if (arg1.getCorrelation() != 0) {
+            QueryUtil.illegalState(protocol == null || !protocol.hasOutboundFeature(QueryContext.FEATURE_REQUESTS), "remote does not support requests");
+        }
+        if (protocol != null && protocol.hasOutboundFeature(QueryContext.FEATURE_CHANNEL_IDS)) {
+            String channel = arg1.getChannel();
+            Integer id = channelIds.get(channel);
+            if (id != null) {
+                QueryProtocol.writeVarInt(arg2, id << 1);
+            } else {
+                byte[] name = name(channel);
+                Definition definition = definitions.get(channel);
+                if (definition == null && nextId <= MAX_CHANNEL_IDS) {
+                    definitions.put(channel, definition = new Definition(nextId++));
+                }
+                if (definition != null) {
+                    define(channel, definition);
+                    QueryProtocol.writeVarInt(arg2, definition.id << 1 | 1);
+                } else {
+                    QueryProtocol.writeVarInt(arg2, CHANNEL_LITERAL);
+                }
+                arg2.writeByte(name.length);
+                arg2.writeBytes(name);
+            }
+            Debug.debug(() -> "Encoder: ENCODE: " + arg1.getChannel());
+            if (protocol.hasOutboundFeature(QueryContext.FEATURE_REQUESTS)) {
+                QueryProtocol.writeVarInt(arg2, arg1.getCorrelation());
+            }
+            QueryProtocol.writeVarInt(arg2, arg1.getLength());
+            arg1.writePayload(arg2);
+        } else {
+            Debug.debug(() -> "Encoder: ENCODE: " + arg1.getChannel());
+            encode(arg1, arg2, 0);
+        }
         Debug.debug(() -> "Encoder: END");
     }
 
+    private void define(String channel, Definition definition) {
+        if (promise == null) {
+            commit(channel, definition);
+            return;
+        }
+        definition.pending++;
+        promise.addListener(future -> {
+            if (future.isSuccess()) {
+                commit(channel, definition);
+            } else if (--definition.pending == 0) {
+                // the remote never received the id, a later message defines a new one
+                definitions.remove(channel, definition);
+            }
+        });
+    }
+
+    private void commit(String channel, Definition definition) {
+        if (definitions.remove(channel, definition)) {
+            channelIds.put(channel, definition.id);
+        }
+    }
+
+    private static byte[] name(String channel) {
+        byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+        QueryUtil.illegalArgument(name.length > 0xFF, "channel name too long");
+        return name;
+    }
+
+    /**
+     * Encode a message without depending on the state of a connection, the channel is always sent by name
+     * @param message the message
+     * @param output the output
+     * @param features the outbound features negotiated with the remote
+     */
+    public static void encode(QueryMessage message, ByteBuf output, int features) {
+        if ((features & QueryContext.FEATURE_CHANNEL_IDS) != 0) {
+            byte[] name = name(message.getChannel());
+            QueryProtocol.writeVarInt(output, CHANNEL_LITERAL);
+            output.writeByte(name.length);
+            output.writeBytes(name);
+            if ((features & QueryContext.FEATURE_REQUESTS) != 0) {
+                QueryProtocol.writeVarInt(output, message.getCorrelation());
+            }
+            QueryProtocol.writeVarInt(output, message.getLength());
+        } else {
+            output.writeByte(message.getChannel().length());
+            output.writeBytes(message.getChannel().getBytes());
+            output.writeInt(message.getLength());
+        }
+        message.writePayload(output);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
     }
 
+    static class Definition {
+        final int id;
+        int pending;
+
+        Definition(int id) {
+            this.id = id;
+        }
+    }
+
 }
@@ -0,0 +1,35 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * A query already encoded, and processed by the connection pipeline up to a handler.
+ * Written to the channel in place of a {@link septogeddon.pluginquery.QueryMessage},
+ * the remaining handlers of the connection pipeline run before the frame is sent.
+ */
+public class QueryFrame extends DefaultByteBufHolder {
+
+    private final int features;
+    private final String after;
+
+    /**
+     * @param frame the encoded frame
+     * @param features the outbound features the frame has been encoded with
+     * @param after the last pipeline handler that processed the frame, null if only encoded
+     */
+    public QueryFrame(ByteBuf frame, int features, String after) {
+        super(frame);
+        this.features = features;
+        this.after = after;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    public String getAfter() {
+        return after;
+    }
+
+}
@@ -37,7 +37,8 @@ public class QueryHandshaker extends ChannelInboundHandlerAdapter {
                         // read UUID
                         long most = buf.readLong();
                         long least = buf.readLong();
-                        String uuid = new UUID(most, least).toString();
+                        UUID token = new UUID(most, least);
+                        String uuid = token.toString();
                         // read encrypted UUID
                         length = buf.readByte();
                         bytes = new byte[length];
@@ -45,7 +46,7 @@ public class QueryHandshaker extends ChannelInboundHandlerAdapter {
                         try {
                             // decrypt UUID
                             Debug.debug(() -> "Handshaker: CHECK TOKEN");
-                            bytes = protocol.getMessenger().getPipeline().dispatchReceiving(protocol.getConnection(), bytes);
+                            bytes = protocol.getConnection().getPipeline().dispatchReceiving(protocol.getConnection(), bytes);
                             QueryUtil.nonNull(bytes, "unique handshake token");
                             // match the decrypted UUID with the UUID
                             if (new String(bytes).equals(uuid)) {
@@ -56,6 +57,13 @@ public class QueryHandshaker extends ChannelInboundHandlerAdapter {
                                 pipe.forEach(entry -> pipe.remove(entry.getKey()));
                                 // initialize query channel
                                 PreparedQueryConnection.handshakenConnection(protocol, pipe);
+                                protocol.setSessionNonce(PreparedQueryConnection.nonce(token));
+                                // the feature request and queries sent right after the handshake
+                                if (buf.isReadable()) {
+                                    pipe.fireChannelRead(buf);
+                                } else {
+                                    buf.release();
+                                }
                                 return;
                             } else {
                                 throw new IllegalArgumentException("invalid encryption");
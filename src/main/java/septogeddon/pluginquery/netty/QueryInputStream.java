@@ -0,0 +1,152 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.buffer.ByteBuf;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryStreamListener;
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * Stream opened by the remote, see {@link QueryStreamListener}. Chunks are buffered until read, the remote is granted
+ * more credits as the bytes are consumed so at most {@link QueryContext#METAKEY_STREAM_WINDOW} bytes are buffered.
+ * Reading blocks, it must not happen on the event loop. Closing the stream before its end cancels it.
+ */
+public class QueryInputStream extends InputStream {
+
+    private final QueryStreams streams;
+    private final int id;
+    private final String channel;
+    private final int window;
+    private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<>();
+    private int buffered;
+    private int consumed;
+    private boolean finished;
+    private boolean closed;
+    private IOException failure;
+
+    QueryInputStream(QueryStreams streams, int id, String channel, int window) {
+        this.streams = streams;
+        this.id = id;
+        this.channel = channel;
+        this.window = window;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * Get the channel the stream has been opened on
+     * @return the channel
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    synchronized void offer(ByteBuf chunk) {
+        if (finished || closed) {
+            chunk.release();
+            return;
+        }
+        if (buffered + chunk.readableBytes() > window) {
+            chunk.release();
+            finish(new IOException("remote exceeded the stream window"));
+            streams.cancel(this, "stream window exceeded");
+            return;
+        }
+        chunks.add(chunk);
+        buffered += chunk.readableBytes();
+        notifyAll();
+    }
+
+    synchronized void finish(IOException cause) {
+        if (finished) return;
+        finished = true;
+        failure = cause;
+        notifyAll();
+    }
+
+    private boolean await() throws IOException {
+        while (chunks.isEmpty()) {
+            if (closed) throw new IOException("stream closed");
+            if (failure != null) throw failure;
+            if (finished) return false;
+            QueryUtil.illegalState(streams.inEventLoop(), "cannot wait for stream data on the event loop");
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for stream data");
+            }
+        }
+        return true;
+    }
+
+    private void consumed(ByteBuf chunk, int length) {
+        buffered -= length;
+        if (!chunk.isReadable()) {
+            chunks.poll().release();
+        }
+        consumed += length;
+        if (consumed >= window / 2 && !finished) {
+            streams.credit(this, consumed);
+            consumed = 0;
+        }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!await()) return -1;
+        ByteBuf chunk = chunks.peek();
+        int b = chunk.readUnsignedByte();
+        consumed(chunk, 1);
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) return 0;
+        if (!await()) return -1;
+        ByteBuf chunk = chunks.peek();
+        int n = Math.min(len, chunk.readableBytes());
+        chunk.readBytes(b, off, n);
+        consumed(chunk, n);
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffered;
+    }
+
+    /**
+     * Release the buffered chunks, cancelling the stream if the remote hasn't ended it yet
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        ByteBuf chunk;
+        while ((chunk = chunks.poll()) != null) {
+            chunk.release();
+        }
+        buffered = 0;
+        if (!finished) {
+            finished = true;
+            streams.cancel(this, "closed by the receiver");
+        }
+        notifyAll();
+    }
+
+}
@@ -5,6 +5,8 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import septogeddon.pluginquery.QueryMessage;
 import septogeddon.pluginquery.utils.Debug;
 
+import java.io.IOException;
+
 public class QueryManager extends SimpleChannelInboundHandler<QueryMessage> {
 
     private final QueryProtocol protocol;
@@ -16,12 +18,23 @@ public class QueryManager extends SimpleChannelInboundHandler<QueryMessage> {
     @Override
     protected void channelRead0(ChannelHandlerContext arg0, QueryMessage arg1) throws Exception {
         Debug.debug(() -> "Manager: RECEIVED: " + arg1.getChannel());
+        if (protocol.handleControl(arg1)) return;
+        if (protocol.getRequests().handle(arg1)) return;
+        if (protocol.getStreams().handle(arg1)) return;
         protocol.getConnection().getEventBus().dispatchMessage(protocol.getConnection(), arg1.getChannel(), arg1.getMessage());
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        protocol.onWritabilityChanged();
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
+        protocol.getStreams().abortAll(new IOException("connection closed"));
+        protocol.getRequests().failAll(new IOException("connection closed"));
         protocol.getConnection().disconnect();
     }
 
@@ -0,0 +1,204 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.buffer.ByteBuf;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Stream opened by {@link QueryConnection#openStream(String)}. Written bytes are sent in chunks of at most
+ * {@link QueryContext#METAKEY_STREAM_CHUNK_SIZE} bytes, writing blocks while the remote hasn't granted enough credits.
+ * The remote only receives the end of the stream once it is closed.
+ */
+public class QueryOutputStream extends OutputStream {
+
+    private final QueryStreams streams;
+    private final int id;
+    private final byte[] header;
+    private final int chunkSize;
+    // credits and failures are signaled by the event loop, they never wait for a writer holding the stream
+    private final Object creditLock = new Object();
+    private ByteBuf chunk;
+    private int credits;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    QueryOutputStream(QueryStreams streams, int id, byte[] header, int chunkSize) {
+        this.streams = streams;
+        this.id = id;
+        this.header = header;
+        this.chunkSize = chunkSize;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (failure != null) throw failure;
+        if (closed) throw new IOException("stream closed");
+    }
+
+    private ByteBuf chunk() {
+        if (chunk == null) {
+            // the header is written in front so a full chunk is sent as is
+            chunk = streams.alloc(header.length + chunkSize);
+            chunk.writeBytes(header);
+        }
+        return chunk;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        ensureOpen();
+        ByteBuf chunk = chunk();
+        chunk.writeByte(b);
+        if (chunk.readableBytes() - header.length >= chunkSize) flushChunk();
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) - b.length > 0)) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0) {
+            ByteBuf chunk = chunk();
+            int n = Math.min(len, chunkSize - (chunk.readableBytes() - header.length));
+            chunk.writeBytes(b, off, n);
+            off += n;
+            len -= n;
+            if (chunk.readableBytes() - header.length >= chunkSize) flushChunk();
+        }
+    }
+
+    /**
+     * Write the readable bytes of a buffer, the buffer isn't released
+     * @param buf the buffer
+     * @throws IOException if the stream failed or has been closed
+     */
+    public synchronized void write(ByteBuf buf) throws IOException {
+        ensureOpen();
+        while (buf.isReadable()) {
+            ByteBuf chunk = chunk();
+            int n = Math.min(buf.readableBytes(), chunkSize - (chunk.readableBytes() - header.length));
+            chunk.writeBytes(buf, n);
+            if (chunk.readableBytes() - header.length >= chunkSize) flushChunk();
+        }
+    }
+
+    /**
+     * Send the pending bytes, waiting for credits if needed
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        flushChunk();
+    }
+
+    private void flushChunk() throws IOException {
+        ByteBuf chunk = this.chunk;
+        if (chunk == null || chunk.readableBytes() == header.length) return;
+        this.chunk = null;
+        try {
+            while (true) {
+                int length = chunk.readableBytes() - header.length;
+                int granted = acquire(length);
+                if (granted == length) {
+                    streams.send(chunk, this);
+                    chunk = null;
+                    return;
+                }
+                // not enough credits for the whole chunk, send what the remote can take
+                ByteBuf piece = streams.alloc(header.length + granted);
+                piece.writeBytes(header);
+                piece.writeBytes(chunk, chunk.readerIndex() + header.length, granted);
+                streams.send(piece, this);
+                chunk.skipBytes(granted);
+                chunk.setBytes(chunk.readerIndex(), header);
+            }
+        } finally {
+            if (chunk != null) chunk.release();
+        }
+    }
+
+    private int acquire(int length) throws IOException {
+        synchronized (creditLock) {
+            while (credits <= 0 && failure == null) {
+                QueryUtil.illegalState(streams.inEventLoop(), "cannot wait for stream credits on the event loop");
+                try {
+                    creditLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for stream credits");
+                }
+            }
+            if (failure != null) throw failure;
+            int granted = Math.min(credits, length);
+            credits -= granted;
+            return granted;
+        }
+    }
+
+    void credit(int credits) {
+        synchronized (creditLock) {
+            this.credits += credits;
+            creditLock.notifyAll();
+        }
+    }
+
+    boolean fail(IOException cause) {
+        synchronized (creditLock) {
+            if (failure != null) return false;
+            failure = cause;
+            creditLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Abort the stream, the remote fails to read it
+     * @param reason the reason given to the remote
+     */
+    public void abort(String reason) {
+        if (closed) return;
+        // fail first to wake a writer waiting for credits, it holds the stream until then
+        if (fail(new IOException("stream aborted"))) {
+            streams.reset(this, reason);
+        }
+        synchronized (this) {
+            closed = true;
+            releaseChunk();
+        }
+    }
+
+    /**
+     * Send the pending bytes and end the stream
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        try {
+            if (failure == null) {
+                flushChunk();
+                streams.end(this);
+            }
+        } finally {
+            closed = true;
+            releaseChunk();
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void releaseChunk() {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+        }
+    }
+
+}
@@ -2,13 +2,13 @@ package septogeddon.pluginquery.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.MessageToMessageDecoder;
 import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryPipeline;
 
 import java.util.List;
 
-public class QueryPipelineInbound extends ByteToMessageDecoder {
+public class QueryPipelineInbound extends MessageToMessageDecoder<ByteBuf> {
 
     private final QueryPipeline pipeline;
     private final QueryConnection connection;
@@ -21,12 +21,9 @@ public class QueryPipelineInbound extends ByteToMessageDecoder {
     @Override
     protected void decode(ChannelHandlerContext arg0, ByteBuf arg1, List<Object> arg2) throws Exception {
         if (arg1.readableBytes() <= 0) return;
-        byte[] bytes = new byte[arg1.readableBytes()];
-        arg1.readBytes(bytes, 0, bytes.length);
-        bytes = pipeline.dispatchReceiving(connection, bytes);
-        ByteBuf buf = arg0.alloc().heapBuffer(bytes.length);
-        buf.writeBytes(bytes);
-        arg2.add(buf);
+        // the decoder releases the frame after decoding, the pipeline owns its own reference
+        ByteBuf buf = pipeline.dispatchReceiving(connection, arg1.retain());
+        if (buf != null) arg2.add(buf);
     }
 
 }
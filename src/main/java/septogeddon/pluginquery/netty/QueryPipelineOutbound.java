@@ -2,11 +2,14 @@ package septogeddon.pluginquery.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 import septogeddon.pluginquery.api.QueryConnection;
 import septogeddon.pluginquery.api.QueryPipeline;
 
-public class QueryPipelineOutbound extends MessageToByteEncoder<ByteBuf> {
+import java.io.IOException;
+import java.util.List;
+
+public class QueryPipelineOutbound extends MessageToMessageEncoder<Object> {
 
     private final QueryPipeline pipe;
     private final QueryConnection connection;
@@ -17,11 +20,23 @@ public class QueryPipelineOutbound extends MessageToByteEncoder<ByteBuf> {
     }
 
     @Override
-    protected void encode(ChannelHandlerContext arg0, ByteBuf input, ByteBuf output) throws Exception {
-        byte[] bytes = new byte[input.readableBytes()];
-        input.readBytes(bytes, 0, bytes.length);
-        bytes = pipe.dispatchSending(connection, bytes);
-        output.writeBytes(bytes, 0, bytes.length);
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+        return msg instanceof ByteBuf || msg instanceof QueryFrame;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext arg0, Object input, List<Object> output) throws Exception {
+        // the encoder releases the input after encoding, the pipeline owns its own reference
+        ByteBuf buf;
+        if (input instanceof QueryFrame) {
+            QueryFrame frame = (QueryFrame) input;
+            ByteBuf content = frame.content().retain();
+            buf = frame.getAfter() == null ? pipe.dispatchSending(connection, content) : pipe.dispatchSending(connection, content, frame.getAfter());
+        } else {
+            buf = pipe.dispatchSending(connection, ((ByteBuf) input).retain());
+        }
+        if (buf == null) throw new IOException("pipeline failed to handle the query");
+        output.add(buf);
     }
 
 }
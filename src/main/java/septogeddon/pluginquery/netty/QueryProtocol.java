@@ -1,10 +1,44 @@
 package septogeddon.pluginquery.netty;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.CorruptedFrameException;
+import septogeddon.pluginquery.QueryChannelHandler;
+import septogeddon.pluginquery.QueryMessage;
 import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryFeatures;
 import septogeddon.pluginquery.api.QueryMessenger;
+import septogeddon.pluginquery.channel.QueryEncryptor;
+import septogeddon.pluginquery.utils.Debug;
 
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Per-connection protocol state. Features are negotiated after the handshake: the client sends
+ * the features it requests as its first frame on {@link QueryContext#PROTOCOL_CHANNEL}, the server
+ * answers with a switch marker carrying the accepted features, and each side switches its outbound
+ * features right after sending its own marker and its inbound features upon receiving the remote
+ * marker. Older servers dispatch the request as an ordinary query and never answer it, older
+ * clients never send one.
+ */
 public class QueryProtocol {
 
+    /**
+     * Control command: switch to the features carried by the marker
+     */
+    public static final byte CONTROL_SWITCH = 0;
+    /**
+     * Control command: request the features carried by the marker
+     */
+    public static final byte CONTROL_REQUEST = 1;
+    /**
+     * Length of the salt carried by a switch marker when session encryption is negotiated
+     */
+    public static final int SALT_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private QueryManager manager;
     private QueryEncoder encoder;
     private QueryDecoder decoder;
@@ -14,6 +48,15 @@ public class QueryProtocol {
     private QuerySplitter splitter;
     private final QueryMessenger messenger;
     private final QueryConnection connection;
+    private final QueryStreams streams = new QueryStreams(this);
+    private final QueryRequests requests = new QueryRequests(this);
+    private final QueryFeatures features = new Features();
+    private volatile int inboundFeatures;
+    private volatile int outboundFeatures;
+    private boolean switched;
+    private byte[] sessionNonce;
+    private byte[] inboundSalt;
+    private byte[] outboundSalt;
 
     public QueryProtocol(QueryMessenger messenger, QueryConnection connection) {
         this.messenger = messenger;
@@ -28,6 +71,24 @@ public class QueryProtocol {
         return connection;
     }
 
+    /**
+     * Get the protocol of a connection of this library
+     * @param connection the connection
+     * @return the protocol, or null if the connection doesn't negotiate features
+     */
+    public static QueryProtocol of(QueryConnection connection) {
+        QueryFeatures features = connection.getFeatures();
+        return features instanceof Features ? ((Features) features).protocol() : null;
+    }
+
+    /**
+     * The negotiated features, as exposed by {@link QueryConnection#getFeatures()}
+     * @return the features view
+     */
+    public QueryFeatures getFeatures() {
+        return features;
+    }
+
     public void clear() {
         manager = null;
         encoder = null;
@@ -36,11 +97,193 @@ public class QueryProtocol {
         pipeout = null;
         appender = null;
         splitter = null;
+        inboundFeatures = 0;
+        outboundFeatures = 0;
+        switched = false;
+        inboundSalt = null;
+        outboundSalt = null;
     }
 
     public void onHandshaken() {
     }
 
+    /**
+     * Called on the event loop when the channel writability changed
+     */
+    public void onWritabilityChanged() {
+    }
+
+    /**
+     * The features this side requests, as configured on the messenger metadata
+     * @return the local features
+     */
+    public int getLocalFeatures() {
+        int features = getMessenger().getMetadata().getData(QueryContext.METAKEY_PROTOCOL_FEATURES, QueryContext.SUPPORTED_FEATURES) & QueryContext.SUPPORTED_FEATURES;
+        QueryChannelHandler encryptor = getConnection().getPipeline().get(QueryContext.HANDLER_ENCRYPTOR);
+        if (!(encryptor instanceof QueryEncryptor) || !((QueryEncryptor) encryptor).isSessionSupported()) {
+            // session keys are derived from the shared secret, which a bare Cipher doesn't expose
+            features &= ~QueryContext.FEATURE_SESSION_ENCRYPTION;
+        }
+        if ((features & QueryContext.FEATURE_CHANNEL_IDS) == 0) {
+            // the correlation header follows the channel id header
+            features &= ~QueryContext.FEATURE_REQUESTS;
+        }
+        return features;
+    }
+
+    /**
+     * The session nonce, the unique token of the handshake. Kept until the next handshake.
+     * @return the nonce, or null if the connection hasn't sent or received a handshake
+     */
+    public byte[] getSessionNonce() {
+        return sessionNonce;
+    }
+
+    public void setSessionNonce(byte[] sessionNonce) {
+        this.sessionNonce = sessionNonce;
+    }
+
+    /**
+     * The salt chosen by the remote for its outbound session key
+     * @return the salt, or null if session encryption isn't negotiated
+     */
+    public byte[] getInboundSalt() {
+        return inboundSalt;
+    }
+
+    /**
+     * The salt chosen by this side for its outbound session key
+     * @return the salt, or null if session encryption isn't negotiated
+     */
+    public byte[] getOutboundSalt() {
+        return outboundSalt;
+    }
+
+    /**
+     * Features used to read messages from the remote
+     * @return the inbound features
+     */
+    public int getInboundFeatures() {
+        return inboundFeatures;
+    }
+
+    /**
+     * Features used to write messages to the remote
+     * @return the outbound features
+     */
+    public int getOutboundFeatures() {
+        return outboundFeatures;
+    }
+
+    public boolean hasInboundFeature(int feature) {
+        return (inboundFeatures & feature) == feature;
+    }
+
+    public boolean hasOutboundFeature(int feature) {
+        return (outboundFeatures & feature) == feature;
+    }
+
+    /**
+     * Request the local features from the remote. Must be called on the event loop right after
+     * the query channel of the client has been initialized, before any query is written.
+     */
+    public void requestFeatures() {
+        int features = getLocalFeatures();
+        Channel channel = getConnection().getChannel();
+        if (features == 0 || channel == null) return;
+        byte[] payload = new byte[5];
+        payload[0] = CONTROL_REQUEST;
+        writeInt(payload, 1, features);
+        channel.writeAndFlush(new QueryMessage(QueryContext.PROTOCOL_CHANNEL, payload));
+        Debug.debug(() -> "Protocol: REQUEST: " + features);
+    }
+
+    /**
+     * Accept the features requested by the remote. Must be called on the event loop
+     * after the query channel has been initialized.
+     * @param requested the requested features
+     */
+    public void negotiate(int requested) {
+        switchOutbound(requested & getLocalFeatures());
+    }
+
+    /**
+     * Handle a protocol control message
+     * @param message the message
+     * @return true if the message was a control message and must not be dispatched
+     */
+    public boolean handleControl(QueryMessage message) {
+        if (!QueryContext.PROTOCOL_CHANNEL.equals(message.getChannel())) return false;
+        byte[] payload = message.getMessage();
+        if (payload.length >= 5 && payload[0] == CONTROL_SWITCH) {
+            int features = readInt(payload, 1) & getLocalFeatures();
+            Debug.debug(() -> "Protocol: INBOUND SWITCH: " + features);
+            if ((features & QueryContext.FEATURE_SESSION_ENCRYPTION) != 0) {
+                if (payload.length < 5 + SALT_LENGTH) {
+                    throw new IllegalArgumentException("missing session salt");
+                }
+                inboundSalt = Arrays.copyOfRange(payload, 5, 5 + SALT_LENGTH);
+            }
+            inboundFeatures = features;
+            switchOutbound(features);
+        } else if (payload.length >= 5 && payload[0] == CONTROL_REQUEST) {
+            negotiate(readInt(payload, 1));
+        }
+        return true;
+    }
+
+    protected void switchOutbound(int features) {
+        if (switched) return;
+        Channel channel = getConnection().getChannel();
+        if (channel == null) return;
+        switched = true;
+        byte[] payload;
+        if ((features & QueryContext.FEATURE_SESSION_ENCRYPTION) != 0) {
+            payload = new byte[5 + SALT_LENGTH];
+            byte[] salt = new byte[SALT_LENGTH];
+            RANDOM.nextBytes(salt);
+            System.arraycopy(salt, 0, payload, 5, SALT_LENGTH);
+            outboundSalt = salt;
+        } else {
+            payload = new byte[5];
+        }
+        payload[0] = CONTROL_SWITCH;
+        writeInt(payload, 1, features);
+        // the marker itself is still written with the previous features
+        channel.writeAndFlush(new QueryMessage(QueryContext.PROTOCOL_CHANNEL, payload));
+        Debug.debug(() -> "Protocol: OUTBOUND SWITCH: " + features);
+        outboundFeatures = features;
+    }
+
+    static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    static int readVarInt(ByteBuf buf) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new CorruptedFrameException("malformed varint");
+    }
+
+    static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
     public QueryAppender getAppender() {
         return appender == null ? appender = new QueryAppender() : appender;
     }
@@ -50,11 +293,19 @@ public class QueryProtocol {
     }
 
     public QueryPipelineOutbound getPipelineOutbound() {
-        return pipeout == null ? pipeout = new QueryPipelineOutbound(getMessenger().getPipeline(), getConnection()) : pipeout;
+        return pipeout == null ? pipeout = new QueryPipelineOutbound(getConnection().getPipeline(), getConnection()) : pipeout;
     }
 
     public QueryPipelineInbound getPipelineInbound() {
-        return pipein == null ? pipein = new QueryPipelineInbound(getMessenger().getPipeline(), getConnection()) : pipein;
+        return pipein == null ? pipein = new QueryPipelineInbound(getConnection().getPipeline(), getConnection()) : pipein;
+    }
+
+    public QueryStreams getStreams() {
+        return streams;
+    }
+
+    public QueryRequests getRequests() {
+        return requests;
     }
 
     public QueryManager getManager() {
@@ -62,11 +313,27 @@ public class QueryProtocol {
     }
 
     public QueryEncoder getEncoder() {
-        return encoder == null ? encoder = new QueryEncoder() : encoder;
+        return encoder == null ? encoder = new QueryEncoder(this) : encoder;
     }
 
     public QueryDecoder getDecoder() {
-        return decoder == null ? decoder = new QueryDecoder() : decoder;
+        return decoder == null ? decoder = new QueryDecoder(this) : decoder;
+    }
+
+    private class Features implements QueryFeatures {
+        @Override
+        public int getInbound() {
+            return inboundFeatures;
+        }
+
+        @Override
+        public int getOutbound() {
+            return outboundFeatures;
+        }
+
+        QueryProtocol protocol() {
+            return QueryProtocol.this;
+        }
     }
 
 }
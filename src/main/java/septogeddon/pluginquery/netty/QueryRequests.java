@@ -0,0 +1,187 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.channel.Channel;
+import septogeddon.pluginquery.QueryCompletableFuture;
+import septogeddon.pluginquery.QueryMessage;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryFuture;
+import septogeddon.pluginquery.utils.Debug;
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests of a connection. The correlation header of a query is {@code id << 2 | kind}, the response carries back
+ * the id of its request on the same channel. Pending requests time out on the {@link QueryTimeoutWheel} of the
+ * event loop, and fail altogether once the connection is closed.
+ */
+public class QueryRequests {
+
+    /**
+     * Correlation kind: request of the sending side
+     */
+    static final int REQUEST = 1;
+    /**
+     * Correlation kind: response to a request of the receiving side
+     */
+    static final int RESPONSE = 2;
+    /**
+     * Correlation kind: failure of a request of the receiving side: reason
+     */
+    static final int FAILURE = 3;
+    private static final int KIND_BITS = 2;
+    private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+    // the header stays a positive varint
+    private static final int MAX_ID = -1 >>> (KIND_BITS + 1);
+    private static final byte[] EMPTY = new byte[0];
+
+    private final QueryProtocol protocol;
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+    public QueryRequests(QueryProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Send a request, see {@link QueryConnection#request(String, byte[])}
+     * @param channel the channel
+     * @param message the message
+     * @return the future of the response
+     */
+    public QueryFuture<byte[]> request(String channel, byte[] message) {
+        return request(channel, message, getConnection().getMetadata().getData(QueryContext.METAKEY_REQUEST_TIMEOUT, QueryContext.DEFAULT_REQUEST_TIMEOUT));
+    }
+
+    /**
+     * Send a request, see {@link QueryConnection#request(String, byte[], long)}
+     * @param channel the channel
+     * @param message the message
+     * @param timeout the milliseconds to wait for the response, 0 or less to wait until the connection is closed
+     * @return the future of the response
+     */
+    public QueryFuture<byte[]> request(String channel, byte[] message, long timeout) {
+        QueryUtil.nonNull(channel, "channel");
+        QueryUtil.nonNull(message, "message");
+        QueryUtil.illegalState(!protocol.hasOutboundFeature(QueryContext.FEATURE_REQUESTS), "remote does not support requests");
+        Channel connection = getConnection().getChannel();
+        if (connection == null) {
+            // requests are never queued
+            QueryCompletableFuture<byte[]> future = new QueryCompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("connection is not connected"));
+            return future;
+        }
+        QueryMessage query = new QueryMessage(channel, message);
+        int id = ids.incrementAndGet() & MAX_ID;
+        query.setCorrelation(id << KIND_BITS | REQUEST);
+        Pending request = new Pending();
+        pending.put(id, request);
+        if (timeout > 0) {
+            request.timeout = QueryTimeoutWheel.of(connection.eventLoop()).schedule(() -> fail(id, new TimeoutException("request timed out")), timeout, TimeUnit.MILLISECONDS);
+        }
+        getConnection().sendQuery(query, false).addListener(f -> {
+            if (!f.isSuccess()) fail(id, f.getCause());
+        });
+        return request.future;
+    }
+
+    /**
+     * Get the number of requests waiting for their response
+     * @return the request count
+     */
+    public int getPendingRequests() {
+        return pending.size();
+    }
+
+    QueryConnection getConnection() {
+        return protocol.getConnection();
+    }
+
+    /**
+     * Handle a request or a response, on the event loop
+     * @param message the message
+     * @return true if the message was part of a request and must not be dispatched
+     */
+    public boolean handle(QueryMessage message) {
+        int correlation = message.getCorrelation();
+        if (correlation == 0) return false;
+        int id = correlation >>> KIND_BITS;
+        switch (correlation & KIND_MASK) {
+            case REQUEST:
+                respond(id, message.getChannel(), message.getMessage());
+                break;
+            case RESPONSE:
+                complete(id, message.getMessage());
+                break;
+            case FAILURE:
+                fail(id, new IOException("request failed on the remote: " + new String(message.getMessage(), StandardCharsets.UTF_8)));
+                break;
+            default:
+                throw new IllegalArgumentException("invalid correlation header " + correlation);
+        }
+        return true;
+    }
+
+    private void respond(int id, String channel, byte[] message) {
+        Debug.debug(() -> "Requests: RECEIVED: " + channel + " " + id);
+        CompletionStage<byte[]> response = getConnection().getEventBus().dispatchRequest(getConnection(), channel, message);
+        if (response == null) {
+            reply(id, channel, FAILURE, ("no request listener for " + channel).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        response.whenComplete((result, cause) -> {
+            if (cause == null) {
+                reply(id, channel, RESPONSE, result == null ? EMPTY : result);
+            } else {
+                if (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+                reply(id, channel, FAILURE, cause.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    private void reply(int id, String channel, int kind, byte[] message) {
+        QueryMessage reply = new QueryMessage(channel, message);
+        reply.setCorrelation(id << KIND_BITS | kind);
+        // the requester fails on its own once the connection is closed
+        getConnection().sendQuery(reply, false);
+    }
+
+    private void complete(int id, byte[] message) {
+        Pending request = pending.remove(id);
+        if (request == null) return;
+        if (request.timeout != null) request.timeout.cancel();
+        request.future.complete(message);
+    }
+
+    private void fail(int id, Throwable cause) {
+        Pending request = pending.remove(id);
+        if (request == null) return;
+        if (request.timeout != null) request.timeout.cancel();
+        request.future.completeExceptionally(cause);
+    }
+
+    /**
+     * Fail every pending request, once the connection is closed
+     * @param cause the cause
+     */
+    public void failAll(Throwable cause) {
+        for (Integer id : pending.keySet()) {
+            fail(id, cause);
+        }
+    }
+
+    static class Pending {
+        final QueryCompletableFuture<byte[]> future = new QueryCompletableFuture<>();
+        volatile QueryTimeoutWheel.Timeout timeout;
+    }
+
+}
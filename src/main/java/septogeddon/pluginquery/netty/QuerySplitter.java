@@ -2,17 +2,20 @@ package septogeddon.pluginquery.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 
-public class QuerySplitter extends MessageToByteEncoder<ByteBuf> {
+import java.util.List;
+
+public class QuerySplitter extends MessageToMessageEncoder<ByteBuf> {
 
     @Override
-    protected void encode(final ChannelHandlerContext ctx, final ByteBuf msg, final ByteBuf out) throws Exception {
+    protected void encode(final ChannelHandlerContext ctx, final ByteBuf msg, final List<Object> out) throws Exception {
         final int bodyLen = msg.readableBytes();
-        final int headerLen = byteLength(bodyLen);
-        out.ensureWritable(headerLen + bodyLen);
-        writeUnsignedShort(bodyLen, out);
-        out.writeBytes(msg);
+        final ByteBuf header = ctx.alloc().ioBuffer(byteLength(bodyLen));
+        writeUnsignedShort(bodyLen, header);
+        // write the header and the body separately, so the body doesn't get copied
+        out.add(header);
+        out.add(msg.retain());
     }
 
     private int byteLength(final int paramInt) {
@@ -0,0 +1,235 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import septogeddon.pluginquery.QueryMessage;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.utils.Debug;
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams of a connection, multiplexed on {@link QueryContext#STREAM_CHANNEL}. Every message starts with its type
+ * and the varint id the sending side gave to the stream. The receiving side grants credits in bytes, so a sender never
+ * has more bytes in flight than the window of the receiver.
+ */
+public class QueryStreams {
+
+    /**
+     * Sender opens a stream: channel
+     */
+    static final byte OPEN = 0;
+    /**
+     * Sender writes a chunk: bytes
+     */
+    static final byte DATA = 1;
+    /**
+     * Sender ends a stream
+     */
+    static final byte END = 2;
+    /**
+     * Sender aborts a stream: reason
+     */
+    static final byte RESET = 3;
+    /**
+     * Receiver grants credits: varint bytes
+     */
+    static final byte CREDIT = 4;
+    /**
+     * Receiver refuses or closes a stream: reason
+     */
+    static final byte CANCEL = 5;
+
+    private final QueryProtocol protocol;
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Map<Integer, QueryOutputStream> outbound = new ConcurrentHashMap<>();
+    private final Map<Integer, QueryInputStream> inbound = new ConcurrentHashMap<>();
+
+    public QueryStreams(QueryProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Open a stream, see {@link QueryConnection#openStream(String)}
+     * @param channel the channel
+     * @return the stream
+     */
+    public QueryOutputStream open(String channel) {
+        QueryUtil.nonNull(channel, "channel");
+        QueryUtil.illegalState(!protocol.hasOutboundFeature(QueryContext.FEATURE_STREAMS), "remote does not support streams");
+        int chunkSize = getConnection().getMetadata().getData(QueryContext.METAKEY_STREAM_CHUNK_SIZE, QueryContext.DEFAULT_STREAM_CHUNK_SIZE);
+        chunkSize = Math.max(1, Math.min(chunkSize, QueryContext.MAX_STREAM_CHUNK_SIZE));
+        int id = ids.incrementAndGet();
+        QueryOutputStream stream = new QueryOutputStream(this, id, header(DATA, id), chunkSize);
+        outbound.put(id, stream);
+        byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+        ByteBuf open = message(OPEN, id, 5 + name.length);
+        QueryProtocol.writeVarInt(open, name.length);
+        open.writeBytes(name);
+        send(open, stream);
+        return stream;
+    }
+
+    /**
+     * Get the number of streams opened by either side and not finished yet
+     * @return the stream count
+     */
+    public int getOpenStreams() {
+        return outbound.size() + inbound.size();
+    }
+
+    QueryConnection getConnection() {
+        return protocol.getConnection();
+    }
+
+    boolean inEventLoop() {
+        Channel channel = getConnection().getChannel();
+        return channel != null && channel.eventLoop().inEventLoop();
+    }
+
+    ByteBuf alloc(int capacity) {
+        Channel channel = getConnection().getChannel();
+        return (channel == null ? PooledByteBufAllocator.DEFAULT : channel.alloc()).heapBuffer(capacity);
+    }
+
+    private static byte[] header(byte type, int id) {
+        ByteBuf buf = Unpooled.buffer(6);
+        buf.writeByte(type);
+        QueryProtocol.writeVarInt(buf, id);
+        byte[] header = new byte[buf.readableBytes()];
+        buf.readBytes(header);
+        return header;
+    }
+
+    private ByteBuf message(byte type, int id, int capacity) {
+        ByteBuf buf = alloc(6 + capacity);
+        buf.writeByte(type);
+        QueryProtocol.writeVarInt(buf, id);
+        return buf;
+    }
+
+    private ByteBuf message(byte type, int id, String reason) {
+        byte[] bytes = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuf buf = message(type, id, 5 + bytes.length);
+        QueryProtocol.writeVarInt(buf, bytes.length);
+        buf.writeBytes(bytes);
+        return buf;
+    }
+
+    void send(ByteBuf message, QueryOutputStream owner) {
+        getConnection().sendQuery(QueryContext.STREAM_CHANNEL, message, false).addListener(f -> {
+            if (!f.isSuccess() && owner != null) {
+                outbound.remove(owner.getId(), owner);
+                owner.fail(new IOException("failed to send stream data", f.getCause()));
+            }
+        });
+    }
+
+    void end(QueryOutputStream stream) {
+        outbound.remove(stream.getId(), stream);
+        send(message(END, stream.getId(), 0), null);
+    }
+
+    void reset(QueryOutputStream stream, String reason) {
+        outbound.remove(stream.getId(), stream);
+        send(message(RESET, stream.getId(), reason), null);
+    }
+
+    void credit(QueryInputStream stream, int credits) {
+        ByteBuf buf = message(CREDIT, stream.getId(), 5);
+        QueryProtocol.writeVarInt(buf, credits);
+        send(buf, null);
+    }
+
+    void cancel(QueryInputStream stream, String reason) {
+        if (inbound.remove(stream.getId(), stream)) {
+            send(message(CANCEL, stream.getId(), reason), null);
+        }
+    }
+
+    private static String readString(ByteBuf in) {
+        int length = QueryProtocol.readVarInt(in);
+        String value = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    /**
+     * Handle a stream message, must be called on the event loop
+     * @param message the message
+     * @return true if the message belongs to a stream and must not be dispatched
+     */
+    public boolean handle(QueryMessage message) {
+        if (!QueryContext.STREAM_CHANNEL.equals(message.getChannel())) return false;
+        ByteBuf in = Unpooled.wrappedBuffer(message.getMessage());
+        byte type = in.readByte();
+        int id = QueryProtocol.readVarInt(in);
+        QueryInputStream input;
+        QueryOutputStream output;
+        switch (type) {
+            case OPEN:
+                opened(id, readString(in));
+                break;
+            case DATA:
+                input = inbound.get(id);
+                if (input != null) input.offer(in);
+                break;
+            case END:
+                input = inbound.remove(id);
+                if (input != null) input.finish(null);
+                break;
+            case RESET:
+                input = inbound.remove(id);
+                if (input != null) input.finish(new IOException("stream reset by the remote: " + readString(in)));
+                break;
+            case CREDIT:
+                output = outbound.get(id);
+                if (output != null) output.credit(QueryProtocol.readVarInt(in));
+                break;
+            case CANCEL:
+                output = outbound.remove(id);
+                if (output != null) output.fail(new IOException("stream cancelled by the remote: " + readString(in)));
+                break;
+            default:
+                Debug.debug(() -> "Streams: UNKNOWN MESSAGE: " + type);
+        }
+        return true;
+    }
+
+    private void opened(int id, String channel) {
+        int window = getConnection().getMetadata().getData(QueryContext.METAKEY_STREAM_WINDOW, QueryContext.DEFAULT_STREAM_WINDOW);
+        QueryInputStream stream = new QueryInputStream(this, id, channel, Math.max(window, 1));
+        QueryInputStream previous = inbound.put(id, stream);
+        if (previous != null) previous.finish(new IOException("stream id reused by the remote"));
+        if (!getConnection().getEventBus().dispatchStream(getConnection(), channel, stream)) {
+            stream.finish(new IOException("no stream listener"));
+            cancel(stream, "no stream listener for " + channel);
+        } else if (inbound.get(id) == stream) {
+            credit(stream, stream.getWindow());
+        }
+    }
+
+    /**
+     * Fail every stream, once the connection is closed
+     * @param cause the cause
+     */
+    public void abortAll(IOException cause) {
+        for (QueryOutputStream stream : outbound.values()) {
+            outbound.remove(stream.getId(), stream);
+            stream.fail(cause);
+        }
+        for (QueryInputStream stream : inbound.values()) {
+            inbound.remove(stream.getId(), stream);
+            stream.finish(cause);
+        }
+    }
+
+}
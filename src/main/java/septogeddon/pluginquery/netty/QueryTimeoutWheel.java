@@ -0,0 +1,198 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.util.concurrent.EventExecutor;
+import septogeddon.pluginquery.utils.QueryUtil;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timeouts of an event loop, hashed by deadline into the slots of a wheel. A single task advances the wheel every
+ * {@link #TICK_MILLIS} while timeouts are pending, instead of a scheduled task per timeout. Timeouts fire on the event loop.
+ */
+public final class QueryTimeoutWheel {
+
+    /**
+     * Milliseconds between two slots, the precision of the timeouts
+     */
+    public static final long TICK_MILLIS = 50;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int SLOTS = 512;
+    private static final Map<EventExecutor, QueryTimeoutWheel> WHEELS = new WeakHashMap<>();
+
+    private final EventExecutor executor;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Runnable tick = this::tick;
+    private final long origin = System.nanoTime();
+    // only touched on the event loop
+    private final Timeout[] slots = new Timeout[SLOTS];
+    private long ticked = -1;
+    private int size;
+
+    private QueryTimeoutWheel(EventExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Get the wheel of an event loop
+     * @param executor the event loop
+     * @return the wheel, shared by every connection of the event loop
+     */
+    public static QueryTimeoutWheel of(EventExecutor executor) {
+        QueryUtil.nonNull(executor, "executor");
+        synchronized (WHEELS) {
+            QueryTimeoutWheel wheel = WHEELS.get(executor);
+            if (wheel == null) {
+                WHEELS.put(executor, wheel = new QueryTimeoutWheel(executor));
+                executor.terminationFuture().addListener(f -> {
+                    synchronized (WHEELS) {
+                        WHEELS.remove(executor);
+                    }
+                });
+            }
+            return wheel;
+        }
+    }
+
+    /**
+     * Run the task on the event loop once the delay elapsed, unless cancelled before
+     * @param task the task
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the timeout
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        QueryUtil.nonNull(task, "task");
+        long deadline = System.nanoTime() - origin + unit.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(this, task, (deadline + TICK_NANOS - 1) / TICK_NANOS);
+        if (executor.inEventLoop()) {
+            link(timeout);
+        } else {
+            added.offer(timeout);
+        }
+        if (running.compareAndSet(false, true)) {
+            executor.execute(tick);
+        }
+        return timeout;
+    }
+
+    private void tick() {
+        long now = (System.nanoTime() - origin) / TICK_NANOS;
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            link(timeout);
+        }
+        // slots skipped while the wheel was idle are empty, a full round visits every slot
+        for (long tick = Math.max(ticked + 1, now - SLOTS + 1); tick <= now; tick++) {
+            // timeouts scheduled by the tasks of this slot go to the next one
+            ticked = tick;
+            expire((int) (tick & (SLOTS - 1)), now);
+        }
+        ticked = now;
+        if (size > 0) {
+            executor.schedule(this.tick, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        running.set(false);
+        // added after the queue has been drained
+        if (!added.isEmpty() && running.compareAndSet(false, true)) {
+            executor.execute(this.tick);
+        }
+    }
+
+    private void link(Timeout timeout) {
+        if (timeout.cancelled) return;
+        // a deadline already passed expires on the next tick instead of a round later
+        int slot = (int) (Math.max(timeout.deadline, ticked + 1) & (SLOTS - 1));
+        timeout.slot = slot;
+        timeout.next = slots[slot];
+        if (timeout.next != null) timeout.next.prev = timeout;
+        slots[slot] = timeout;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.slot < 0) return;
+        if (timeout.prev == null) {
+            slots[timeout.slot] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    private void expire(int slot, long now) {
+        // unlink the due timeouts first, their tasks may cancel other timeouts of the slot
+        Timeout due = null;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                unlink(timeout);
+            } else if (timeout.deadline <= now) {
+                // later rounds stay in the slot
+                unlink(timeout);
+                timeout.next = due;
+                due = timeout;
+            }
+            timeout = next;
+        }
+        while (due != null) {
+            timeout = due;
+            due = timeout.next;
+            timeout.next = null;
+            // cancelled by a task run before
+            if (timeout.cancelled) continue;
+            timeout.cancelled = true;
+            try {
+                timeout.task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    public static final class Timeout {
+        private final QueryTimeoutWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+        // only touched on the event loop
+        private Timeout prev;
+        private Timeout next;
+        private int slot = -1;
+
+        Timeout(QueryTimeoutWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout, removed from the wheel right away on the event loop, on its next visit otherwise
+         */
+        public void cancel() {
+            cancelled = true;
+            if (wheel.executor.inEventLoop()) {
+                wheel.unlink(this);
+            }
+        }
+
+        /**
+         * Check if the timeout has been cancelled or has fired
+         * @return true if the task won't run anymore
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+}
@@ -16,6 +16,7 @@ import septogeddon.pluginquery.netty.QueryPushback;
 import septogeddon.pluginquery.spigot.event.QueryMessageEvent;
 import septogeddon.pluginquery.utils.DataBuffer;
 import septogeddon.pluginquery.utils.EncryptionToolkit;
+import septogeddon.pluginquery.utils.PooledDataBuffer;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -119,6 +120,7 @@ public class SpigotPluginQuery extends JavaPlugin implements QueryMessageListene
         }
         messenger.getMetadata().setData(QueryContext.METAKEY_MAX_RECONNECT_TRY, null);
         messenger.getMetadata().setData(QueryContext.METAKEY_RECONNECT_DELAY, null);
+        messenger.getMetadata().setData(QueryContext.METAKEY_PROTOCOL_FEATURES, null);
         List<String> whitelist = getQueryConfig().getOption(QueryContext.IP_WHITELIST);
         if (whitelist != null && !whitelist.isEmpty()) {
             messenger.getPipeline().addLast(new QueryWhitelist(whitelist));
@@ -137,6 +139,11 @@ public class SpigotPluginQuery extends JavaPlugin implements QueryMessageListene
         }
         int maxReconnectTry = getQueryConfig().getOption(QueryContext.MAX_RECONNECT_TRY).intValue();
         messenger.getMetadata().setData(QueryContext.METAKEY_MAX_RECONNECT_TRY, maxReconnectTry);
+        int features = QueryContext.SUPPORTED_FEATURES;
+        if (!getQueryConfig().getOption(QueryContext.STREAMING_COMPRESSION)) {
+            features &= ~QueryContext.FEATURE_STREAMING_COMPRESSION;
+        }
+        messenger.getMetadata().setData(QueryContext.METAKEY_PROTOCOL_FEATURES, features);
         reloadKey();
     }
 
@@ -160,11 +167,11 @@ public class SpigotPluginQuery extends JavaPlugin implements QueryMessageListene
                 String configuredServerName = buffer.readUTF();
                 getLogger().log(Level.INFO, "BungeeCord version: " + bungeeCordVersion + " (" + connection.getAddress() + ")");
                 getLogger().log(Level.INFO, "Configured server name: " + configuredServerName);
-                buffer.clear();
-                buffer.writeUTF(QueryContext.COMMAND_VERSION_CHECK);
-                buffer.writeUTF(getServer().getVersion());
-                buffer.writeUTF(configuredServerName);
-                connection.sendQuery(channel, buffer.toByteArray());
+                PooledDataBuffer reply = new PooledDataBuffer();
+                reply.writeUTF(QueryContext.COMMAND_VERSION_CHECK);
+                reply.writeUTF(getServer().getVersion());
+                reply.writeUTF(configuredServerName);
+                connection.sendQuery(channel, reply.transfer());
             }
         } else {
             // custom QueryMessageEvent handling
@@ -193,13 +200,14 @@ public class SpigotPluginQuery extends JavaPlugin implements QueryMessageListene
         if (encryption != null) {
             getLogger().log(Level.INFO, "Using encryption algorithm: " + encryption.getKey().getAlgorithm());
             PluginQuery.getMessenger().getPipeline().addLast(
-                    new QueryDecryptor(encryption.getDecryptor()),
-                    new QueryEncryptor(encryption.getEncryptor()));
+                    new QueryDecryptor(encryption),
+                    new QueryEncryptor(encryption));
         } else {
             getLogger().log(Level.SEVERE, "Failed to register encryption!.");
         }
         QueryPipeline pipe = PluginQuery.getMessenger().getPipeline();
-        QueryDeflater deflater = new QueryDeflater();
+        QueryDeflater deflater = QueryCompressionCodecs.createDeflater(getQueryConfig().getOption(QueryContext.COMPRESSION_CODEC),
+                getQueryConfig().getOption(QueryContext.COMPRESSION_THRESHOLD).intValue(), msg -> getLogger().log(Level.WARNING, msg));
         QueryInflater inflater = new QueryInflater();
         if (!pipe.addBefore(QueryContext.HANDLER_ENCRYPTOR, deflater)) {
             pipe.addLast(deflater);
@@ -1,6 +1,7 @@
 package septogeddon.pluginquery.utils;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
@@ -15,7 +16,6 @@ public class DataBuffer implements DataInput, DataOutput {
     private final byte[] readBuffer = new byte[8];
     private int count;
     private int pos;
-    private final byte[] writeBuffer = new byte[8];
 
     /**
      * Create a buffer with 32 byte length of initial size
@@ -62,25 +62,28 @@ public class DataBuffer implements DataInput, DataOutput {
         return (minCapacity > MAX_ARRAY_SIZE) ? Integer.MAX_VALUE : MAX_ARRAY_SIZE;
     }
 
-    private final static String readUTF(DataBuffer in) {
-        int utflen = in.readUnsignedShort();
-        byte[] bytearr = new byte[utflen];
+    private synchronized String readUTF(int utflen) {
+        QueryUtil.illegalState(count - pos < utflen, "end of buffer");
+        byte[] bytearr = buf;
+        int start = pos;
+        int end = start + utflen;
+        int count = start;
+        while (count < end && bytearr[count] > 0) {
+            count++;
+        }
+        if (count == end) {
+            // ASCII only, decoded without an intermediate char array
+            pos = end;
+            return new String(bytearr, start, utflen, StandardCharsets.ISO_8859_1);
+        }
         char[] chararr = new char[utflen];
-        int c, char2, char3;
-        int count = 0;
         int chararr_count = 0;
-
-        in.readFully(bytearr, 0, utflen);
-
-        while (count < utflen) {
-            c = (int) bytearr[count] & 0xff;
-            if (c > 127)
-                break;
-            count++;
-            chararr[chararr_count++] = (char) c;
+        int c, char2, char3;
+        for (int i = start; i < count; i++) {
+            chararr[chararr_count++] = (char) bytearr[i];
         }
 
-        while (count < utflen) {
+        while (count < end) {
             c = (int) bytearr[count] & 0xff;
             switch (c >> 4) {
                 case 0:
@@ -97,57 +100,40 @@ public class DataBuffer implements DataInput, DataOutput {
                 case 12:
                 case 13:
                     count += 2;
-                    if (count > utflen)
+                    if (count > end)
                         throw new RuntimeException(new UTFDataFormatException("malformed input: partial character at end"));
                     char2 = bytearr[count - 1];
                     if ((char2 & 0xC0) != 0x80)
-                        throw new RuntimeException(new UTFDataFormatException("malformed input around byte " + count));
+                        throw new RuntimeException(new UTFDataFormatException("malformed input around byte " + (count - start)));
                     chararr[chararr_count++] = (char) (((c & 0x1F) << 6) | (char2 & 0x3F));
                     break;
                 case 14:
                     count += 3;
-                    if (count > utflen)
+                    if (count > end)
                         throw new RuntimeException(new UTFDataFormatException("malformed input: partial character at end"));
                     char2 = bytearr[count - 2];
                     char3 = bytearr[count - 1];
                     if (((char2 & 0xC0) != 0x80) || ((char3 & 0xC0) != 0x80))
                         throw new RuntimeException(
-                                new UTFDataFormatException("malformed input around byte " + (count - 1)));
+                                new UTFDataFormatException("malformed input around byte " + (count - start - 1)));
                     chararr[chararr_count++] = (char) (((c & 0x0F) << 12) | ((char2 & 0x3F) << 6) | ((char3 & 0x3F) << 0));
                     break;
                 default:
-                    throw new RuntimeException(new UTFDataFormatException("malformed input around byte " + count));
+                    throw new RuntimeException(new UTFDataFormatException("malformed input around byte " + (count - start)));
             }
         }
+        pos = end;
         return new String(chararr, 0, chararr_count);
     }
 
-    private static int writeUTF(String str, DataBuffer out) {
+    private synchronized void writeUTF(String str, int utflen) {
+        ensureCapacity(count + utflen);
+        byte[] bytearr = buf;
+        int count = this.count;
         int strlen = str.length();
-        int utflen = 0;
-        int c, count = 0;
-
-        for (int i = 0; i < strlen; i++) {
-            c = str.charAt(i);
-            if ((c >= 0x0001) && (c <= 0x007F)) {
-                utflen++;
-            } else if (c > 0x07FF) {
-                utflen += 3;
-            } else {
-                utflen += 2;
-            }
-        }
-
-        if (utflen > 65535)
-            throw new RuntimeException(new UTFDataFormatException("encoded string too long: " + utflen + " bytes"));
-
-        byte[] bytearr = new byte[utflen + 2];
-
-        bytearr[count++] = (byte) ((utflen >>> 8) & 0xFF);
-        bytearr[count++] = (byte) ((utflen >>> 0) & 0xFF);
-
+        int c;
         int i = 0;
-        for (i = 0; i < strlen; i++) {
+        for (; i < strlen; i++) {
             c = str.charAt(i);
             if (!((c >= 0x0001) && (c <= 0x007F)))
                 break;
@@ -168,8 +154,45 @@ public class DataBuffer implements DataInput, DataOutput {
                 bytearr[count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
             }
         }
-        out.write(bytearr);
-        return utflen + 2;
+        this.count = count;
+    }
+
+    private static int utfLength(String str) {
+        int strlen = str.length();
+        int utflen = strlen;
+        for (int i = 0; i < strlen; i++) {
+            int c = str.charAt(i);
+            if (c > 0x07FF) {
+                utflen += 2;
+            } else if (c > 0x007F || c == 0) {
+                utflen++;
+            }
+        }
+        return utflen;
+    }
+
+    /**
+     * Get the number of bytes of a String encoded in standard UTF-8, unpaired surrogates are encoded as '?'
+     * @param str the String
+     * @return the byte length
+     */
+    static int utf8Length(String str) {
+        int strlen = str.length();
+        int utflen = strlen;
+        for (int i = 0; i < strlen; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                utflen++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < strlen && Character.isLowSurrogate(str.charAt(i + 1))) {
+                // 4 bytes for 2 chars
+                utflen += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                utflen += 2;
+            }
+        }
+        return utflen;
     }
 
     /**
@@ -412,8 +435,8 @@ public class DataBuffer implements DataInput, DataOutput {
     /**
      * Read a String (UTF)
      */
-    public final String readUTF() {
-        return readUTF(this);
+    public final synchronized String readUTF() {
+        return readUTF(readUnsignedShort());
     }
 
     /**
@@ -498,9 +521,7 @@ public class DataBuffer implements DataInput, DataOutput {
      * Write a character
      */
     public final void writeChar(int v) {
-        write((v >>> 8) & 0xFF);
-        write((v >>> 0) & 0xFF);
-
+        writeShort(v);
     }
 
     /**
@@ -532,43 +553,335 @@ public class DataBuffer implements DataInput, DataOutput {
     /**
      * Write an integer
      */
-    public final void writeInt(int v) {
-        write((v >>> 24) & 0xFF);
-        write((v >>> 16) & 0xFF);
-        write((v >>> 8) & 0xFF);
-        write((v >>> 0) & 0xFF);
-
+    public final synchronized void writeInt(int v) {
+        ensureCapacity(count + 4);
+        putInt(count, v);
+        count += 4;
     }
 
     /**
      * Write a long
      */
-    public final void writeLong(long v) {
-        writeBuffer[0] = (byte) (v >>> 56);
-        writeBuffer[1] = (byte) (v >>> 48);
-        writeBuffer[2] = (byte) (v >>> 40);
-        writeBuffer[3] = (byte) (v >>> 32);
-        writeBuffer[4] = (byte) (v >>> 24);
-        writeBuffer[5] = (byte) (v >>> 16);
-        writeBuffer[6] = (byte) (v >>> 8);
-        writeBuffer[7] = (byte) (v >>> 0);
-        write(writeBuffer, 0, 8);
-
+    public final synchronized void writeLong(long v) {
+        ensureCapacity(count + 8);
+        putLong(count, v);
+        count += 8;
     }
 
     /**
      * Write a short
      */
-    public final void writeShort(int v) {
-        write((v >>> 8) & 0xFF);
-        write((v >>> 0) & 0xFF);
+    public final synchronized void writeShort(int v) {
+        ensureCapacity(count + 2);
+        buf[count] = (byte) (v >>> 8);
+        buf[count + 1] = (byte) v;
+        count += 2;
+    }
+
+    private void putInt(int index, int v) {
+        buf[index] = (byte) (v >>> 24);
+        buf[index + 1] = (byte) (v >>> 16);
+        buf[index + 2] = (byte) (v >>> 8);
+        buf[index + 3] = (byte) v;
+    }
+
+    private void putLong(int index, long v) {
+        putInt(index, (int) (v >>> 32));
+        putInt(index + 4, (int) v);
+    }
+
+    private int getInt(int index) {
+        return (buf[index] << 24) | ((buf[index + 1] & 0xFF) << 16) | ((buf[index + 2] & 0xFF) << 8) | (buf[index + 3] & 0xFF);
+    }
+
+    private long getLong(int index) {
+        return ((long) getInt(index) << 32) | (getInt(index + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Read an unsigned varint, 7 bits per byte with the highest bit set on all but the last byte
+     */
+    public final synchronized int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            QueryUtil.illegalState(pos >= count, "end of buffer");
+            byte b = buf[pos++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    /**
+     * Read an unsigned varlong, see {@link #readVarInt()}
+     */
+    public final synchronized long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            QueryUtil.illegalState(pos >= count, "end of buffer");
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalStateException("malformed varlong");
+    }
+
+    /**
+     * Write an unsigned varint, see {@link #readVarInt()}
+     */
+    public final synchronized void writeVarInt(int v) {
+        ensureCapacity(count + 5);
+        while ((v & ~0x7F) != 0) {
+            buf[count++] = (byte) (v & 0x7F | 0x80);
+            v >>>= 7;
+        }
+        buf[count++] = (byte) v;
+    }
+
+    /**
+     * Write an unsigned varlong, see {@link #readVarInt()}
+     */
+    public final synchronized void writeVarLong(long v) {
+        ensureCapacity(count + 10);
+        while ((v & ~0x7FL) != 0) {
+            buf[count++] = (byte) ((int) v & 0x7F | 0x80);
+            v >>>= 7;
+        }
+        buf[count++] = (byte) v;
+    }
+
+    /**
+     * Read a signed varint written by {@link #writeSignedVarInt(int)}
+     */
+    public final int readSignedVarInt() {
+        int v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Read a signed varlong written by {@link #writeSignedVarLong(long)}
+     */
+    public final long readSignedVarLong() {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Write a signed varint, zigzag encoded so values close to zero take a single byte whatever their sign
+     */
+    public final void writeSignedVarInt(int v) {
+        writeVarInt((v << 1) ^ (v >> 31));
+    }
+
+    /**
+     * Write a signed varlong, see {@link #writeSignedVarInt(int)}
+     */
+    public final void writeSignedVarLong(long v) {
+        writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    /**
+     * Read a String written by {@link #writeString(String)}
+     * @throws IOException if the length is negative or exceeds the buffer
+     */
+    public final synchronized String readString() throws IOException {
+        int length = readVarInt();
+        if (length < 0 || count - pos < length) throw new IOException("invalid string length " + length);
+        String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return value;
+    }
+
+    /**
+     * Write a String as its varint byte length followed by standard UTF-8. Unlike {@link #writeUTF(String)},
+     * the length isn't limited to 65535 bytes and the String is encoded straight into the buffer.
+     */
+    public final synchronized void writeString(String str) {
+        int strlen = str.length();
+        int utflen = utf8Length(str);
+        writeVarInt(utflen);
+        ensureCapacity(count + utflen);
+        byte[] bytearr = buf;
+        int count = this.count;
+        int i = 0;
+        for (; i < strlen; i++) {
+            char c = str.charAt(i);
+            if (c >= 0x80)
+                break;
+            bytearr[count++] = (byte) c;
+        }
+        for (; i < strlen; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                bytearr[count++] = (byte) c;
+            } else if (c < 0x800) {
+                bytearr[count++] = (byte) (0xC0 | (c >> 6));
+                bytearr[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < strlen && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                bytearr[count++] = (byte) (0xF0 | (cp >> 18));
+                bytearr[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytearr[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytearr[count++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytearr[count++] = '?';
+            } else {
+                bytearr[count++] = (byte) (0xE0 | (c >> 12));
+                bytearr[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytearr[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.count = count;
+    }
+
+    private int readArrayLength(int elementSize) {
+        int length = readVarInt();
+        QueryUtil.illegalState(length < 0 || (long) length * elementSize > count - pos, "end of buffer");
+        return length;
+    }
+
+    /**
+     * Read a byte array written by {@link #writeByteArray(byte[])}
+     */
+    public final synchronized byte[] readByteArray() {
+        byte[] array = new byte[readArrayLength(1)];
+        System.arraycopy(buf, pos, array, 0, array.length);
+        pos += array.length;
+        return array;
+    }
+
+    /**
+     * Read a short array written by {@link #writeShortArray(short[])}
+     */
+    public final synchronized short[] readShortArray() {
+        short[] array = new short[readArrayLength(2)];
+        for (int i = 0; i < array.length; i++, pos += 2) {
+            array[i] = (short) ((buf[pos] << 8) | (buf[pos + 1] & 0xFF));
+        }
+        return array;
+    }
+
+    /**
+     * Read an int array written by {@link #writeIntArray(int[])}
+     */
+    public final synchronized int[] readIntArray() {
+        int[] array = new int[readArrayLength(4)];
+        for (int i = 0; i < array.length; i++, pos += 4) {
+            array[i] = getInt(pos);
+        }
+        return array;
+    }
+
+    /**
+     * Read a long array written by {@link #writeLongArray(long[])}
+     */
+    public final synchronized long[] readLongArray() {
+        long[] array = new long[readArrayLength(8)];
+        for (int i = 0; i < array.length; i++, pos += 8) {
+            array[i] = getLong(pos);
+        }
+        return array;
+    }
+
+    /**
+     * Read a float array written by {@link #writeFloatArray(float[])}
+     */
+    public final synchronized float[] readFloatArray() {
+        float[] array = new float[readArrayLength(4)];
+        for (int i = 0; i < array.length; i++, pos += 4) {
+            array[i] = Float.intBitsToFloat(getInt(pos));
+        }
+        return array;
+    }
+
+    /**
+     * Read a double array written by {@link #writeDoubleArray(double[])}
+     */
+    public final synchronized double[] readDoubleArray() {
+        double[] array = new double[readArrayLength(8)];
+        for (int i = 0; i < array.length; i++, pos += 8) {
+            array[i] = Double.longBitsToDouble(getLong(pos));
+        }
+        return array;
+    }
+
+    /**
+     * Write a byte array prefixed by its varint length
+     */
+    public final synchronized void writeByteArray(byte[] array) {
+        writeVarInt(array.length);
+        write(array, 0, array.length);
+    }
+
+    /**
+     * Write a short array prefixed by its varint length, the buffer grows once for the whole array
+     */
+    public final synchronized void writeShortArray(short[] array) {
+        writeVarInt(array.length);
+        ensureCapacity(count + array.length * 2);
+        for (short v : array) {
+            buf[count++] = (byte) (v >>> 8);
+            buf[count++] = (byte) v;
+        }
+    }
+
+    /**
+     * Write an int array prefixed by its varint length, the buffer grows once for the whole array
+     */
+    public final synchronized void writeIntArray(int[] array) {
+        writeVarInt(array.length);
+        ensureCapacity(count + array.length * 4);
+        for (int v : array) {
+            putInt(count, v);
+            count += 4;
+        }
+    }
+
+    /**
+     * Write a long array prefixed by its varint length, the buffer grows once for the whole array
+     */
+    public final synchronized void writeLongArray(long[] array) {
+        writeVarInt(array.length);
+        ensureCapacity(count + array.length * 8);
+        for (long v : array) {
+            putLong(count, v);
+            count += 8;
+        }
+    }
+
+    /**
+     * Write a float array prefixed by its varint length, the buffer grows once for the whole array
+     */
+    public final synchronized void writeFloatArray(float[] array) {
+        writeVarInt(array.length);
+        ensureCapacity(count + array.length * 4);
+        for (float v : array) {
+            putInt(count, Float.floatToIntBits(v));
+            count += 4;
+        }
+    }
+
+    /**
+     * Write a double array prefixed by its varint length, the buffer grows once for the whole array
+     */
+    public final synchronized void writeDoubleArray(double[] array) {
+        writeVarInt(array.length);
+        ensureCapacity(count + array.length * 8);
+        for (double v : array) {
+            putLong(count, Double.doubleToLongBits(v));
+            count += 8;
+        }
     }
 
     /**
      * Write a String (UTF)
      */
-    public final void writeUTF(String str) {
-        writeUTF(str, this);
+    public final synchronized void writeUTF(String str) {
+        int utflen = utfLength(str);
+        if (utflen > 65535)
+            throw new RuntimeException(new UTFDataFormatException("encoded string too long: " + utflen + " bytes"));
+        writeShort(utflen);
+        writeUTF(str, utflen);
     }
 
 }
@@ -2,12 +2,15 @@ package septogeddon.pluginquery.utils;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
@@ -20,6 +23,12 @@ import java.util.Arrays;
  */
 public class EncryptionToolkit {
 
+    /**
+     * Algorithm used by session encryption
+     */
+    public static final String SESSION_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte[] SESSION_LABEL = "pluginquery session".getBytes(StandardCharsets.US_ASCII);
+
     private final Cipher encryptor;
     private final Cipher decryptor;
     private final Key key;
@@ -84,6 +93,36 @@ public class EncryptionToolkit {
         return buffer.toByteArray();
     }
 
+    /**
+     * Create a new Cipher using the key algorithm. Cipher instances are not thread-safe,
+     * use a separate instance for each connection.
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @return the initialized Cipher
+     * @throws GeneralSecurityException if the cipher can't be created
+     */
+    public Cipher newCipher(int mode) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(key.getAlgorithm());
+        cipher.init(mode, key);
+        return cipher;
+    }
+
+    /**
+     * Derive a session key for {@link #SESSION_TRANSFORMATION} from this key, so every session and direction
+     * gets its own key while the shared secret is only used for the handshake.
+     * @param nonce the session nonce, shared by both directions
+     * @param salt random bytes chosen by the sender of the direction
+     * @return the derived key
+     * @throws GeneralSecurityException if HmacSHA256 is unavailable
+     */
+    public SecretKey deriveSessionKey(byte[] nonce, byte[] salt) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        mac.update(SESSION_LABEL);
+        mac.update(nonce);
+        mac.update(salt);
+        return new SecretKeySpec(mac.doFinal(), "AES");
+    }
+
     /**
      * Encryption Cipher used to Encrypt byte array
      * @return
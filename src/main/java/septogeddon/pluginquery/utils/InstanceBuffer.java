@@ -42,6 +42,10 @@ public class InstanceBuffer {
         return (T) instances.remove(0);
     }
 
+    public Object[] toArray() {
+        return instances.toArray();
+    }
+
     public void copyTo(InstanceBuffer buffer) {
         for (int i = 0; i < instances.size(); i++) {
             buffer.pushObject(instances.get(i));
@@ -4,13 +4,30 @@ import java.io.*;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+/**
+ * Serialize objects field by field without Serializable. Every class is described once per stream,
+ * its objects then only hold the field values in the order of the description.
+ * Descriptions start with the {@link #FORMAT_VERSION} they are written in.
+ */
 public class ObjectBuffer extends DataBuffer implements ObjectInput, ObjectOutput {
 
     final static public int NULL_TYPE = 0, INTEGER_TYPE = 1, LONG_TYPE = 2, DOUBLE_TYPE = 3, FLOAT_TYPE = 4,
-            SHORT_TYPE = 5, CHAR_TYPE = 6, BYTE_TYPE = 7, BOOLEAN_TYPE = 8, ARRAY_TYPE = 9, OBJECT_TYPE = 10;
+            SHORT_TYPE = 5, CHAR_TYPE = 6, BYTE_TYPE = 7, BOOLEAN_TYPE = 8, ARRAY_TYPE = 9, OBJECT_TYPE = 10,
+            STRING_TYPE = 11, REFERENCE_TYPE = 12;
+    /**
+     * Version of the class description format, a stream in another version is rejected
+     */
+    final static public int FORMAT_VERSION = 1;
     private static sun.misc.Unsafe unsafe;
+    private static final ClassValue<ClassPlan> PLANS = new ClassValue<ClassPlan>() {
+        @Override
+        protected ClassPlan computeValue(Class<?> type) {
+            return new ClassPlan(type);
+        }
+    };
 
     static {
         try {
@@ -22,8 +39,12 @@ public class ObjectBuffer extends DataBuffer implements ObjectInput, ObjectOutpu
         }
     }
 
-    private final List<Object> hashed = new ArrayList<>();
-    private final Map<Integer, Object> hashToObject = new HashMap<>();
+    // objects by identity and classes written to this stream, and their handle
+    private final Map<Object, Integer> written = new IdentityHashMap<>();
+    private final Map<Class<?>, Integer> writtenClasses = new HashMap<>();
+    // objects and classes read from this stream, by handle
+    private final List<Object> read = new ArrayList<>();
+    private final List<StreamClass> readClasses = new ArrayList<>();
 
     public ObjectBuffer() {
     }
@@ -44,35 +65,14 @@ public class ObjectBuffer extends DataBuffer implements ObjectInput, ObjectOutpu
         this.flush();
     }
 
-    private List<Field> collectFields(List<Field> fields, Class<?> cl) {
-        if (cl != null) {
-            for (Field f : cl.getDeclaredFields()) {
-                if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers()))
-                    continue;
-                fields.add(f);
-            }
-            collectFields(fields, cl.getSuperclass());
-        }
-        return fields;
-    }
-
+    /**
+     * Forget the objects and classes of the stream, both sides must flush at the same point
+     */
     public void flush() {
-        hashed.clear();
-        hashToObject.clear();
-    }
-
-    private String hash(Field f) {
-        return f.getDeclaringClass().getName() + ":" + f.getName();
-    }
-
-    private Field hash(String s) throws NoSuchFieldException, SecurityException, ClassNotFoundException {
-        String[] split = s.split(":", 2);
-        if (split.length == 2) {
-            Field field = Class.forName(split[0]).getDeclaredField(split[1]);
-            field.setAccessible(true);
-            return field;
-        } else
-            throw new IllegalStateException("invalid field hash");
+        written.clear();
+        writtenClasses.clear();
+        read.clear();
+        readClasses.clear();
     }
 
     @SuppressWarnings("unchecked")
@@ -100,44 +100,34 @@ public class ObjectBuffer extends DataBuffer implements ObjectInput, ObjectOutpu
             return readByte();
         if (type == BOOLEAN_TYPE)
             return readBoolean();
-        if (type == ARRAY_TYPE) {
-            try {
-                Class<?> component = Class.forName(readBytes());
-                int length = readInt();
-                Object array = Array.newInstance(component.getComponentType(), length);
-                for (int i = 0; i < length; i++) {
-                    Object sub = readObject();
-                    Array.set(array, i, sub);
-                }
+        if (type == STRING_TYPE) {
+            byte[] bytes = new byte[readVarInt()];
+            readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        if (type == REFERENCE_TYPE)
+            return read.get(readVarInt());
+        try {
+            if (type == ARRAY_TYPE) {
+                Class<?> component = readClass().type.getComponentType();
+                Object array = Array.newInstance(component, readVarInt());
+                read.add(array);
+                readArray(array, component);
                 return array;
-            } catch (Throwable t) {
-                throw new RuntimeException(t);
             }
-        }
-        if (type == OBJECT_TYPE) {
-            int hash = readInt();
-            Object hashed = hashToObject.get(hash);
-            if (hashed != null)
-                return hashed;
-            String className = readBytes();
-            try {
-                Class<?> cl = Class.forName(className);
-                Object object = unsafe.allocateInstance(cl);
-                hashToObject.put(hash, object);
+            if (type == OBJECT_TYPE) {
+                StreamClass streamClass = readClass();
+                Object object = unsafe.allocateInstance(streamClass.type);
+                read.add(object);
                 if (object instanceof Externalizable) {
                     ((Externalizable) object).readExternal(this);
-                    return object;
-                }
-                int size = readInt();
-                for (int i = 0; i < size; i++) {
-                    Field field = hash(readBytes());
-                    Object sub = readObject();
-                    field.set(object, sub);
+                } else {
+                    streamClass.readFields(this, object);
                 }
                 return object;
-            } catch (Throwable t) {
-                throw new RuntimeException(t);
             }
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
         }
         throw new IllegalStateException("unknown type " + type);
     }
@@ -167,47 +157,281 @@ public class ObjectBuffer extends DataBuffer implements ObjectInput, ObjectOutpu
         } else if (obj instanceof Byte) {
             writeByte(BYTE_TYPE);
             writeByte((Byte) obj);
-        } else if (obj.getClass().isArray()) {
-            writeByte(ARRAY_TYPE);
-            writeBytes(obj.getClass().getName());
-            int length = Array.getLength(obj);
-            writeInt(length);
-            for (int i = 0; i < length; i++) {
-                writeObject(Array.get(obj, i));
-            }
+        } else if (obj instanceof Boolean) {
+            writeByte(BOOLEAN_TYPE);
+            writeBoolean((Boolean) obj);
+        } else if (obj instanceof String) {
+            writeByte(STRING_TYPE);
+            byte[] bytes = ((String) obj).getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            write(bytes);
         } else {
+            Integer handle = written.get(obj);
+            if (handle != null) {
+                writeByte(REFERENCE_TYPE);
+                writeVarInt(handle);
+                return;
+            }
+            written.put(obj, written.size());
+            Class<?> cl = obj.getClass();
+            if (cl.isArray()) {
+                writeByte(ARRAY_TYPE);
+                writeClass(cl);
+                writeVarInt(Array.getLength(obj));
+                writeArray(obj, cl.getComponentType());
+                return;
+            }
             writeByte(OBJECT_TYPE);
-            int hash = Objects.hashCode(obj);
-            writeInt(hash);
-            if (!hashed.contains(obj)) {
-                hashed.add(obj);
-                Class<?> cl = obj.getClass();
-                try {
-                    if (obj instanceof Externalizable) {
-                        ((Externalizable) obj).writeExternal(this);
-                        return;
-                    }
-                    // no longer supports Serializable!
-//					Method writer = find(obj.getClass(), "writeObject", ObjectOutputStream.class);
-//					if (writer != null) {
-//						writer.setAccessible(true);
-//						writer.invoke(obj, this.writeObjectStream());
-//						return;
-//					}
-                } catch (Throwable t) {
-                    throw new RuntimeException(t);
+            ClassPlan plan = writeClass(cl);
+            try {
+                if (obj instanceof Externalizable) {
+                    ((Externalizable) obj).writeExternal(this);
+                    return;
+                }
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+            plan.writeFields(this, obj);
+        }
+    }
+
+    private ClassPlan writeClass(Class<?> cl) {
+        ClassPlan plan = cl.isArray() ? null : PLANS.get(cl);
+        Integer id = writtenClasses.get(cl);
+        if (id != null) {
+            writeVarInt(id);
+            return plan;
+        }
+        writtenClasses.put(cl, writtenClasses.size());
+        writeVarInt(writtenClasses.size() - 1);
+        writeByte(FORMAT_VERSION);
+        writeUTF(cl.getName());
+        if (plan != null) {
+            writeBoolean(plan.externalizable);
+            if (!plan.externalizable) {
+                writeVarInt(plan.fields.length);
+                for (FieldPlan field : plan.fields) {
+                    writeUTF(field.name);
+                    writeVarInt(field.depth);
+                    writeByte(field.tag);
+                }
+            }
+        }
+        return plan;
+    }
+
+    private StreamClass readClass() throws ClassNotFoundException {
+        int id = readVarInt();
+        if (id < readClasses.size()) return readClasses.get(id);
+        int version = readByte();
+        QueryUtil.illegalState(version != FORMAT_VERSION, "unsupported format version " + version);
+        Class<?> cl = Class.forName(readUTF());
+        StreamClass streamClass = new StreamClass(cl);
+        if (!cl.isArray() && !readBoolean()) {
+            ClassPlan plan = PLANS.get(cl);
+            int size = readVarInt();
+            streamClass.tags = new int[size];
+            streamClass.fields = new FieldPlan[size];
+            for (int i = 0; i < size; i++) {
+                String name = readUTF();
+                int depth = readVarInt();
+                streamClass.tags[i] = readByte();
+                // fields missing on this side are read and dropped
+                streamClass.fields[i] = plan.find(name, depth, streamClass.tags[i]);
+            }
+        }
+        readClasses.add(streamClass);
+        return streamClass;
+    }
+
+    private void writeArray(Object array, Class<?> component) {
+        if (component == int.class) {
+            for (int value : (int[]) array) writeInt(value);
+        } else if (component == long.class) {
+            for (long value : (long[]) array) writeLong(value);
+        } else if (component == double.class) {
+            for (double value : (double[]) array) writeDouble(value);
+        } else if (component == float.class) {
+            for (float value : (float[]) array) writeFloat(value);
+        } else if (component == short.class) {
+            for (short value : (short[]) array) writeShort(value);
+        } else if (component == char.class) {
+            for (char value : (char[]) array) writeChar(value);
+        } else if (component == byte.class) {
+            write((byte[]) array);
+        } else if (component == boolean.class) {
+            for (boolean value : (boolean[]) array) writeBoolean(value);
+        } else {
+            for (Object value : (Object[]) array) writeObject(value);
+        }
+    }
+
+    private void readArray(Object array, Class<?> component) {
+        if (component == int.class) {
+            int[] values = (int[]) array;
+            for (int i = 0; i < values.length; i++) values[i] = readInt();
+        } else if (component == long.class) {
+            long[] values = (long[]) array;
+            for (int i = 0; i < values.length; i++) values[i] = readLong();
+        } else if (component == double.class) {
+            double[] values = (double[]) array;
+            for (int i = 0; i < values.length; i++) values[i] = readDouble();
+        } else if (component == float.class) {
+            float[] values = (float[]) array;
+            for (int i = 0; i < values.length; i++) values[i] = readFloat();
+        } else if (component == short.class) {
+            short[] values = (short[]) array;
+            for (int i = 0; i < values.length; i++) values[i] = readShort();
+        } else if (component == char.class) {
+            char[] values = (char[]) array;
+            for (int i = 0; i < values.length; i++) values[i] = readChar();
+        } else if (component == byte.class) {
+            readFully((byte[]) array);
+        } else if (component == boolean.class) {
+            boolean[] values = (boolean[]) array;
+            for (int i = 0; i < values.length; i++) values[i] = readBoolean();
+        } else {
+            Object[] values = (Object[]) array;
+            for (int i = 0; i < values.length; i++) values[i] = readObject();
+        }
+    }
+
+    private static int tagOf(Class<?> type) {
+        if (type == int.class) return INTEGER_TYPE;
+        if (type == long.class) return LONG_TYPE;
+        if (type == double.class) return DOUBLE_TYPE;
+        if (type == float.class) return FLOAT_TYPE;
+        if (type == short.class) return SHORT_TYPE;
+        if (type == char.class) return CHAR_TYPE;
+        if (type == byte.class) return BYTE_TYPE;
+        if (type == boolean.class) return BOOLEAN_TYPE;
+        return OBJECT_TYPE;
+    }
+
+    /**
+     * Serialized fields of a class, computed once per class
+     */
+    static final class ClassPlan {
+        final boolean externalizable;
+        final FieldPlan[] fields;
+
+        ClassPlan(Class<?> type) {
+            externalizable = Externalizable.class.isAssignableFrom(type);
+            List<FieldPlan> fields = new ArrayList<>();
+            int depth = 0;
+            for (Class<?> cl = externalizable ? null : type; cl != null; cl = cl.getSuperclass(), depth++) {
+                for (Field f : cl.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers()))
+                        continue;
+                    fields.add(new FieldPlan(f, depth));
                 }
-                List<Field> fields = collectFields(new ArrayList<>(), cl);
-                writeBytes(obj.getClass().getName());
-                writeInt(fields.size());
-                for (Field f : fields) {
-                    f.setAccessible(true);
-                    writeBytes(hash(f));
-                    try {
-                        Object o = f.get(obj);
-                        writeObject(o);
-                    } catch (Throwable t) {
-                        throw new RuntimeException(t);
+            }
+            this.fields = fields.toArray(new FieldPlan[0]);
+        }
+
+        FieldPlan find(String name, int depth, int tag) {
+            for (FieldPlan field : fields) {
+                if (field.depth == depth && field.tag == tag && field.name.equals(name)) return field;
+            }
+            return null;
+        }
+
+        void writeFields(ObjectBuffer buffer, Object object) {
+            for (FieldPlan field : fields) {
+                long offset = field.offset;
+                switch (field.tag) {
+                    case INTEGER_TYPE: buffer.writeInt(unsafe.getInt(object, offset)); break;
+                    case LONG_TYPE: buffer.writeLong(unsafe.getLong(object, offset)); break;
+                    case DOUBLE_TYPE: buffer.writeDouble(unsafe.getDouble(object, offset)); break;
+                    case FLOAT_TYPE: buffer.writeFloat(unsafe.getFloat(object, offset)); break;
+                    case SHORT_TYPE: buffer.writeShort(unsafe.getShort(object, offset)); break;
+                    case CHAR_TYPE: buffer.writeChar(unsafe.getChar(object, offset)); break;
+                    case BYTE_TYPE: buffer.writeByte(unsafe.getByte(object, offset)); break;
+                    case BOOLEAN_TYPE: buffer.writeBoolean(unsafe.getBoolean(object, offset)); break;
+                    default: buffer.writeObject(unsafe.getObject(object, offset));
+                }
+            }
+        }
+    }
+
+    static final class FieldPlan {
+        final String name;
+        final int depth;
+        final int tag;
+        final Class<?> type;
+        final long offset;
+
+        FieldPlan(Field field, int depth) {
+            this.name = field.getName();
+            this.depth = depth;
+            this.type = field.getType();
+            this.tag = tagOf(type);
+            this.offset = unsafe.objectFieldOffset(field);
+        }
+    }
+
+    /**
+     * Class as described by the stream, with the local field of every described field
+     */
+    static final class StreamClass {
+        final Class<?> type;
+        int[] tags;
+        FieldPlan[] fields;
+
+        StreamClass(Class<?> type) {
+            this.type = type;
+        }
+
+        void readFields(ObjectBuffer buffer, Object object) {
+            for (int i = 0; i < tags.length; i++) {
+                FieldPlan field = fields[i];
+                switch (tags[i]) {
+                    case INTEGER_TYPE: {
+                        int value = buffer.readInt();
+                        if (field != null) unsafe.putInt(object, field.offset, value);
+                        break;
+                    }
+                    case LONG_TYPE: {
+                        long value = buffer.readLong();
+                        if (field != null) unsafe.putLong(object, field.offset, value);
+                        break;
+                    }
+                    case DOUBLE_TYPE: {
+                        double value = buffer.readDouble();
+                        if (field != null) unsafe.putDouble(object, field.offset, value);
+                        break;
+                    }
+                    case FLOAT_TYPE: {
+                        float value = buffer.readFloat();
+                        if (field != null) unsafe.putFloat(object, field.offset, value);
+                        break;
+                    }
+                    case SHORT_TYPE: {
+                        short value = buffer.readShort();
+                        if (field != null) unsafe.putShort(object, field.offset, value);
+                        break;
+                    }
+                    case CHAR_TYPE: {
+                        char value = buffer.readChar();
+                        if (field != null) unsafe.putChar(object, field.offset, value);
+                        break;
+                    }
+                    case BYTE_TYPE: {
+                        byte value = buffer.readByte();
+                        if (field != null) unsafe.putByte(object, field.offset, value);
+                        break;
+                    }
+                    case BOOLEAN_TYPE: {
+                        boolean value = buffer.readBoolean();
+                        if (field != null) unsafe.putBoolean(object, field.offset, value);
+                        break;
+                    }
+                    default: {
+                        Object value = buffer.readObject();
+                        // a field whose type changed on this side is dropped rather than corrupted
+                        if (field != null && (value == null || field.type.isInstance(value))) {
+                            unsafe.putObject(object, field.offset, value);
+                        }
                     }
                 }
             }
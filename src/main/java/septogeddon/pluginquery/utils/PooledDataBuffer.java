@@ -0,0 +1,560 @@
+package septogeddon.pluginquery.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import septogeddon.pluginquery.api.QueryConnection;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link DataBuffer} counterpart backed by a pooled {@link ByteBuf}, with the same wire format.
+ * Not thread-safe. The buffer must be either handed to a connection with {@link #transfer()} or released with {@link #recycle()}.
+ * <pre>
+ * PooledDataBuffer buffer = new PooledDataBuffer();
+ * buffer.writeUTF("hello");
+ * connection.sendQuery(channel, buffer.transfer());
+ * </pre>
+ */
+public class PooledDataBuffer implements DataInput, DataOutput, AutoCloseable {
+
+    private ByteBuf buf;
+
+    /**
+     * Create a buffer from the default pooled allocator
+     */
+    public PooledDataBuffer() {
+        this(PooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * Create a buffer from the allocator, such as the allocator of a channel
+     * @param allocator the allocator
+     */
+    public PooledDataBuffer(ByteBufAllocator allocator) {
+        this(allocator.heapBuffer());
+    }
+
+    /**
+     * Wrap a buffer, the buffer is owned by this object from now on
+     * @param buf the buffer
+     */
+    public PooledDataBuffer(ByteBuf buf) {
+        QueryUtil.nonNull(buf, "buf");
+        this.buf = buf;
+    }
+
+    private ByteBuf buf() {
+        QueryUtil.illegalState(buf == null, "buffer already transferred or recycled");
+        return buf;
+    }
+
+    /**
+     * Get the underlying buffer without giving up the ownership
+     * @return the buffer
+     */
+    public ByteBuf content() {
+        return buf();
+    }
+
+    /**
+     * Give up the ownership of the underlying buffer, for example to {@link QueryConnection#sendQuery(String, ByteBuf)}.
+     * This object can't be used afterwards.
+     * @return the buffer
+     */
+    public ByteBuf transfer() {
+        ByteBuf transferred = buf();
+        buf = null;
+        return transferred;
+    }
+
+    /**
+     * Release the underlying buffer back to its pool, does nothing if it has been transferred already
+     */
+    public void recycle() {
+        if (buf != null) {
+            buf.release();
+            buf = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        recycle();
+    }
+
+    /**
+     * Copy the readable bytes
+     * @return the bytes
+     */
+    public byte[] toByteArray() {
+        ByteBuf buf = buf();
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        return bytes;
+    }
+
+    /**
+     * Get the number of readable bytes
+     * @return the readable bytes
+     */
+    public int available() {
+        return buf().readableBytes();
+    }
+
+    /**
+     * Discard the content, keeping the allocated memory
+     */
+    public void clear() {
+        buf().clear();
+    }
+
+    public int read() {
+        ByteBuf buf = buf();
+        return buf.isReadable() ? buf.readUnsignedByte() : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+        ByteBuf buf = buf();
+        if (!buf.isReadable()) return -1;
+        len = Math.min(len, buf.readableBytes());
+        buf.readBytes(b, off, len);
+        return len;
+    }
+
+    @Override
+    public void readFully(byte[] b) {
+        buf().readBytes(b);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) {
+        buf().readBytes(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        ByteBuf buf = buf();
+        n = Math.min(n, buf.readableBytes());
+        buf.skipBytes(n);
+        return n;
+    }
+
+    @Override
+    public boolean readBoolean() {
+        return buf().readBoolean();
+    }
+
+    @Override
+    public byte readByte() {
+        return buf().readByte();
+    }
+
+    @Override
+    public int readUnsignedByte() {
+        return buf().readUnsignedByte();
+    }
+
+    @Override
+    public short readShort() {
+        return buf().readShort();
+    }
+
+    @Override
+    public int readUnsignedShort() {
+        return buf().readUnsignedShort();
+    }
+
+    @Override
+    public char readChar() {
+        return buf().readChar();
+    }
+
+    @Override
+    public int readInt() {
+        return buf().readInt();
+    }
+
+    @Override
+    public long readLong() {
+        return buf().readLong();
+    }
+
+    @Override
+    public float readFloat() {
+        return buf().readFloat();
+    }
+
+    @Override
+    public double readDouble() {
+        return buf().readDouble();
+    }
+
+    /**
+     * Not supported
+     */
+    @Deprecated
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String readUTF() {
+        try {
+            return DataInputStream.readUTF(this);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read a String written by {@link #writeBytes(String)}
+     * @return the string
+     */
+    public String readBytes() {
+        ByteBuf buf = buf();
+        int length = buf.readInt();
+        String value = buf.toString(buf.readerIndex(), length, Charset.defaultCharset());
+        buf.skipBytes(length);
+        return value;
+    }
+
+    /**
+     * Read a String written by {@link #writeChars(String)}
+     * @return the string
+     */
+    public String readChars() {
+        ByteBuf buf = buf();
+        char[] chars = new char[buf.readInt()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = buf.readChar();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Read an unsigned varint
+     * @return the value
+     */
+    public int readVarInt() {
+        ByteBuf buf = buf();
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    /**
+     * Read an unsigned varlong
+     * @return the value
+     */
+    public long readVarLong() {
+        ByteBuf buf = buf();
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buf.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalStateException("malformed varlong");
+    }
+
+    @Override
+    public void write(int b) {
+        buf().writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b) {
+        buf().writeBytes(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        buf().writeBytes(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        buf().writeBoolean(v);
+    }
+
+    @Override
+    public void writeByte(int v) {
+        buf().writeByte(v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        buf().writeShort(v);
+    }
+
+    @Override
+    public void writeChar(int v) {
+        buf().writeChar(v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        buf().writeInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) {
+        buf().writeLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        buf().writeFloat(v);
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        buf().writeDouble(v);
+    }
+
+    /**
+     * Write a String (non Charset), same format as {@link DataBuffer#writeBytes(String)}
+     */
+    @Override
+    public void writeBytes(String s) {
+        ByteBuf buf = buf();
+        buf.writeInt(s.length());
+        buf.writeBytes(s.getBytes());
+    }
+
+    /**
+     * Write a String (Charset), same format as {@link DataBuffer#writeChars(String)}
+     */
+    @Override
+    public void writeChars(String s) {
+        ByteBuf buf = buf();
+        int len = s.length();
+        buf.writeInt(len);
+        for (int i = 0; i < len; i++) {
+            buf.writeChar(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) {
+        ByteBuf buf = buf();
+        int start = buf.writerIndex();
+        buf.writeShort(0);
+        int len = s.length();
+        buf.ensureWritable(len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf.writeByte(c);
+            } else if (c > 0x07FF) {
+                buf.writeByte(0xE0 | ((c >> 12) & 0x0F));
+                buf.writeByte(0x80 | ((c >> 6) & 0x3F));
+                buf.writeByte(0x80 | (c & 0x3F));
+            } else {
+                buf.writeByte(0xC0 | ((c >> 6) & 0x1F));
+                buf.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+        int utflen = buf.writerIndex() - start - 2;
+        if (utflen > 65535) {
+            buf.writerIndex(start);
+            throw new RuntimeException(new UTFDataFormatException("encoded string too long: " + utflen + " bytes"));
+        }
+        buf.setShort(start, utflen);
+    }
+
+    /**
+     * Write an unsigned varint
+     * @param v the value
+     */
+    public void writeVarInt(int v) {
+        ByteBuf buf = buf();
+        while ((v & ~0x7F) != 0) {
+            buf.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf.writeByte(v);
+    }
+
+    /**
+     * Write an unsigned varlong
+     * @param v the value
+     */
+    public void writeVarLong(long v) {
+        ByteBuf buf = buf();
+        while ((v & ~0x7FL) != 0) {
+            buf.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf.writeByte((int) v);
+    }
+
+    /**
+     * Read a signed varint, see {@link DataBuffer#writeSignedVarInt(int)}
+     * @return the value
+     */
+    public int readSignedVarInt() {
+        int v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Read a signed varlong, see {@link DataBuffer#writeSignedVarLong(long)}
+     * @return the value
+     */
+    public long readSignedVarLong() {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Write a signed varint, see {@link DataBuffer#writeSignedVarInt(int)}
+     * @param v the value
+     */
+    public void writeSignedVarInt(int v) {
+        writeVarInt((v << 1) ^ (v >> 31));
+    }
+
+    /**
+     * Write a signed varlong, see {@link DataBuffer#writeSignedVarLong(long)}
+     * @param v the value
+     */
+    public void writeSignedVarLong(long v) {
+        writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    /**
+     * Read a String, see {@link DataBuffer#writeString(String)}
+     * @return the String
+     */
+    public String readString() {
+        int length = readVarInt();
+        ByteBuf buf = buf();
+        String value = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8);
+        buf.skipBytes(length);
+        return value;
+    }
+
+    /**
+     * Write a String, see {@link DataBuffer#writeString(String)}
+     * @param s the String
+     */
+    public void writeString(String s) {
+        int strlen = s.length();
+        int utflen = DataBuffer.utf8Length(s);
+        writeVarInt(utflen);
+        ByteBuf buf = buf();
+        buf.ensureWritable(utflen);
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.writeByte(c);
+            } else if (c < 0x800) {
+                buf.writeByte(0xC0 | (c >> 6));
+                buf.writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < strlen && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.writeByte(0xF0 | (cp >> 18));
+                buf.writeByte(0x80 | ((cp >> 12) & 0x3F));
+                buf.writeByte(0x80 | ((cp >> 6) & 0x3F));
+                buf.writeByte(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf.writeByte('?');
+            } else {
+                buf.writeByte(0xE0 | (c >> 12));
+                buf.writeByte(0x80 | ((c >> 6) & 0x3F));
+                buf.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private int readArrayLength(int elementSize) {
+        int length = readVarInt();
+        QueryUtil.illegalState(length < 0 || (long) length * elementSize > buf().readableBytes(), "end of buffer");
+        return length;
+    }
+
+    /**
+     * Read a byte array, see {@link DataBuffer#writeByteArray(byte[])}
+     * @return the array
+     */
+    public byte[] readByteArray() {
+        byte[] array = new byte[readArrayLength(1)];
+        buf().readBytes(array);
+        return array;
+    }
+
+    /**
+     * Read an int array, see {@link DataBuffer#writeIntArray(int[])}
+     * @return the array
+     */
+    public int[] readIntArray() {
+        int[] array = new int[readArrayLength(4)];
+        ByteBuf buf = buf();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = buf.readInt();
+        }
+        return array;
+    }
+
+    /**
+     * Read a long array, see {@link DataBuffer#writeLongArray(long[])}
+     * @return the array
+     */
+    public long[] readLongArray() {
+        long[] array = new long[readArrayLength(8)];
+        ByteBuf buf = buf();
+        for (int i = 0; i < array.length; i++) {
+            array[i] = buf.readLong();
+        }
+        return array;
+    }
+
+    /**
+     * Write a byte array, see {@link DataBuffer#writeByteArray(byte[])}
+     * @param array the array
+     */
+    public void writeByteArray(byte[] array) {
+        writeVarInt(array.length);
+        buf().writeBytes(array);
+    }
+
+    /**
+     * Write an int array, see {@link DataBuffer#writeIntArray(int[])}
+     * @param array the array
+     */
+    public void writeIntArray(int[] array) {
+        writeVarInt(array.length);
+        ByteBuf buf = buf();
+        buf.ensureWritable(array.length * 4);
+        for (int v : array) {
+            buf.writeInt(v);
+        }
+    }
+
+    /**
+     * Write a long array, see {@link DataBuffer#writeLongArray(long[])}
+     * @param array the array
+     */
+    public void writeLongArray(long[] array) {
+        writeVarInt(array.length);
+        ByteBuf buf = buf();
+        buf.ensureWritable(array.length * 8);
+        for (long v : array) {
+            buf.writeLong(v);
+        }
+    }
+
+}
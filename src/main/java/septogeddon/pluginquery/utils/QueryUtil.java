@@ -1,5 +1,7 @@
 package septogeddon.pluginquery.utils;
 
+import io.netty.buffer.ByteBuf;
+
 import java.io.*;
 import java.util.Collection;
 import java.util.List;
@@ -115,4 +117,19 @@ public class QueryUtil {
         return read(new FileInputStream(file));
     }
 
+    /**
+     * Copy the readable bytes of a buffer and release it
+     * @param buf the buffer
+     * @return the bytes
+     */
+    public static byte[] copyAndRelease(ByteBuf buf) {
+        try {
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.getBytes(buf.readerIndex(), bytes);
+            return bytes;
+        } finally {
+            buf.release();
+        }
+    }
+
 }
@@ -20,6 +20,7 @@ import septogeddon.pluginquery.api.*;
 import septogeddon.pluginquery.channel.*;
 import septogeddon.pluginquery.utils.DataBuffer;
 import septogeddon.pluginquery.utils.EncryptionToolkit;
+import septogeddon.pluginquery.utils.PooledDataBuffer;
 import septogeddon.pluginquery.velocity.event.QueryMessageEvent;
 
 import javax.crypto.NoSuchPaddingException;
@@ -166,6 +167,7 @@ public class VelocityPluginQuery implements QueryListener {
         encryption = null;
         messenger.getMetadata().setData(QueryContext.METAKEY_MAX_RECONNECT_TRY, null);
         messenger.getMetadata().setData(QueryContext.METAKEY_RECONNECT_DELAY, null);
+        messenger.getMetadata().setData(QueryContext.METAKEY_PROTOCOL_FEATURES, null);
         List<String> whitelist = getQueryConfig().getOption(QueryContext.IP_WHITELIST);
         if (whitelist != null && !whitelist.isEmpty()) {
             messenger.getPipeline().addLast(new QueryWhitelist(whitelist));
@@ -184,6 +186,11 @@ public class VelocityPluginQuery implements QueryListener {
         }
         int maxReconnectTry = getQueryConfig().getOption(QueryContext.MAX_RECONNECT_TRY).intValue();
         messenger.getMetadata().setData(QueryContext.METAKEY_MAX_RECONNECT_TRY, maxReconnectTry);
+        int features = QueryContext.SUPPORTED_FEATURES;
+        if (!getQueryConfig().getOption(QueryContext.STREAMING_COMPRESSION)) {
+            features &= ~QueryContext.FEATURE_STREAMING_COMPRESSION;
+        }
+        messenger.getMetadata().setData(QueryContext.METAKEY_PROTOCOL_FEATURES, features);
         File secret = new File(getDataFolder(), "secret.key");
         if (secret.exists()) {
             try {
@@ -203,11 +210,12 @@ public class VelocityPluginQuery implements QueryListener {
         if (encryption != null) {
             getLogger().info("Using encryption algorithm: " + encryption.getKey().getAlgorithm());
             PluginQuery.getMessenger().getPipeline().addLast(
-                    new QueryDecryptor(encryption.getDecryptor()),
-                    new QueryEncryptor(encryption.getEncryptor()));
+                    new QueryDecryptor(encryption),
+                    new QueryEncryptor(encryption));
         }
         QueryPipeline pipe = PluginQuery.getMessenger().getPipeline();
-        QueryDeflater deflater = new QueryDeflater();
+        QueryDeflater deflater = QueryCompressionCodecs.createDeflater(getQueryConfig().getOption(QueryContext.COMPRESSION_CODEC),
+                getQueryConfig().getOption(QueryContext.COMPRESSION_THRESHOLD).intValue(), getLogger()::warn);
         QueryInflater inflater = new QueryInflater();
         if (!pipe.addBefore(QueryContext.HANDLER_ENCRYPTOR, deflater)) {
             pipe.addLast(deflater);
@@ -255,12 +263,12 @@ public class VelocityPluginQuery implements QueryListener {
             connection.getMetadata().setData(RECONNECT_TRY_TIMES, null);
             RegisteredServer server = connection.getMetadata().getData(REGISTERED_SERVER);
             if (server != null) {
-                DataBuffer buffer = new DataBuffer();
+                PooledDataBuffer buffer = new PooledDataBuffer();
                 buffer.writeUTF(QueryContext.COMMAND_VERSION_CHECK);
                 ProxyVersion version = getServer().getVersion();
                 buffer.writeUTF(version.getName() + " " + version.getVendor() + " " + version.getVersion());
                 buffer.writeUTF(server.getServerInfo().getName());
-                connection.sendQuery(QueryContext.PLUGIN_MESSAGING_CHANNEL, buffer.toByteArray());
+                connection.sendQuery(QueryContext.PLUGIN_MESSAGING_CHANNEL, buffer.transfer());
             }
         }
     }
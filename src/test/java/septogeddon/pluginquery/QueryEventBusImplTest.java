@@ -0,0 +1,106 @@
+package septogeddon.pluginquery;
+
+import org.junit.Test;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryConnectionStateListener;
+import septogeddon.pluginquery.api.QueryListener;
+import septogeddon.pluginquery.api.QueryMessageListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryEventBusImplTest {
+
+    private final QueryEventBusImpl eventBus = new QueryEventBusImpl();
+    private final List<String> received = new ArrayList<>();
+
+    @Test
+    public void listenerRegisteredTwiceReceivesOnce() {
+        QueryMessageListener listener = (connection, channel, message) -> received.add(channel);
+        eventBus.registerListener(listener);
+        eventBus.registerListener("plugin:a", listener);
+        eventBus.registerPrefixListener("plugin:", listener);
+        eventBus.registerPrefixListener("plugin", listener);
+        eventBus.dispatchMessage(null, "plugin:a", new byte[0]);
+        eventBus.dispatchMessage(null, "other", new byte[0]);
+        assertEquals(Arrays.asList("plugin:a", "other"), received);
+    }
+
+    @Test
+    public void channelListenersOnly() {
+        eventBus.registerListener("plugin:a", (QueryMessageListener) (connection, channel, message) -> received.add("exact " + channel));
+        eventBus.registerPrefixListener("plugin:", (QueryMessageListener) (connection, channel, message) -> received.add("prefix " + channel));
+        eventBus.dispatchMessage(null, "plugin:a", new byte[0]);
+        eventBus.dispatchMessage(null, "plugin:b", new byte[0]);
+        eventBus.dispatchMessage(null, "plugin", new byte[0]);
+        assertEquals(Arrays.asList("exact plugin:a", "prefix plugin:a", "prefix plugin:b"), received);
+    }
+
+    @Test
+    public void stateListenerOverridingMessages() {
+        eventBus.registerListener(new QueryConnectionStateListener() {
+            @Override
+            public void onConnectionStateChange(QueryConnection connection) {
+                received.add("state");
+            }
+
+            @Override
+            public void onQueryReceived(QueryConnection connection, String channel, byte[] message) {
+                received.add(channel);
+            }
+        });
+        eventBus.dispatchMessage(null, "channel", new byte[0]);
+        eventBus.dispatchConnectionState(null);
+        assertEquals(Arrays.asList("channel", "state"), received);
+    }
+
+    @Test
+    public void everyListenerReceivesEverything() {
+        eventBus.registerListener(new QueryListener() {
+            @Override
+            public void onConnectionStateChange(QueryConnection connection) {
+                received.add("state");
+            }
+
+            @Override
+            public void onQueryReceived(QueryConnection connection, String channel, byte[] message) {
+                received.add(channel);
+            }
+        });
+        eventBus.registerListener((QueryMessageListener) (connection, channel, message) -> received.add("message " + channel));
+        eventBus.dispatchConnectionState(null);
+        assertEquals(Arrays.asList("state"), received);
+        received.clear();
+        eventBus.dispatchMessage(null, "channel", new byte[0]);
+        received.sort(null);
+        assertEquals(Arrays.asList("channel", "message channel"), received);
+    }
+
+    @Test
+    public void unregisteredListener() {
+        QueryMessageListener listener = (connection, channel, message) -> received.add(channel);
+        eventBus.registerListener("plugin:a", listener);
+        eventBus.registerPrefixListener("plugin:", listener);
+        eventBus.unregisterListener(listener);
+        eventBus.dispatchMessage(null, "plugin:a", new byte[0]);
+        assertEquals(0, received.size());
+    }
+
+    @Test
+    public void registrationChangesAfterDispatch() {
+        QueryMessageListener exact = (connection, channel, message) -> received.add("exact");
+        QueryMessageListener prefix = (connection, channel, message) -> received.add("prefix");
+        eventBus.dispatchMessage(null, "plugin:a", new byte[0]);
+        eventBus.registerListener("plugin:a", exact);
+        eventBus.dispatchMessage(null, "plugin:a", new byte[0]);
+        eventBus.registerPrefixListener("plugin:", prefix);
+        eventBus.dispatchMessage(null, "plugin:a", new byte[0]);
+        eventBus.unregisterListener(exact);
+        eventBus.dispatchMessage(null, "plugin:a", new byte[0]);
+        assertEquals(Arrays.asList("exact", "exact", "prefix", "prefix"), received);
+    }
+
+}
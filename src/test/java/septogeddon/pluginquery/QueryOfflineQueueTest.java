@@ -0,0 +1,139 @@
+package septogeddon.pluginquery;
+
+import org.junit.Test;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryMetadata;
+import septogeddon.pluginquery.api.QueryOverflowPolicy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryOfflineQueueTest {
+
+    private final QueryMetadata metadata = new QueryMetadataImpl();
+    private final List<Integer> dropped = new ArrayList<>();
+    private final QueryOfflineQueue<Integer> queue = new QueryOfflineQueue<>(metadata, dropped::add);
+
+    private void configure(int capacity, QueryOverflowPolicy policy) {
+        metadata.setData(QueryContext.METAKEY_QUEUE_CAPACITY, capacity);
+        metadata.setData(QueryContext.METAKEY_QUEUE_POLICY, policy);
+        metadata.setData(QueryContext.METAKEY_QUEUE_TIMEOUT, 50L);
+    }
+
+    private List<Integer> drain() {
+        List<Integer> drained = new ArrayList<>();
+        Integer element;
+        while ((element = queue.poll()) != null) drained.add(element);
+        return drained;
+    }
+
+    @Test
+    public void dropOldest() {
+        configure(2, QueryOverflowPolicy.DROP_OLDEST);
+        assertTrue(queue.offer(1, false));
+        assertTrue(queue.offer(2, false));
+        assertTrue(queue.offer(3, false));
+        assertEquals(2, queue.getDepth());
+        assertEquals(1, queue.getDropped());
+        assertEquals(Arrays.asList(1), dropped);
+        assertEquals(Arrays.asList(2, 3), drain());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void reject() {
+        configure(2, QueryOverflowPolicy.REJECT);
+        assertTrue(queue.offer(1, true));
+        assertTrue(queue.offer(2, true));
+        assertFalse(queue.offer(3, true));
+        assertEquals(1, queue.getDropped());
+        assertTrue(dropped.isEmpty());
+        assertEquals(Arrays.asList(1, 2), drain());
+    }
+
+    @Test
+    public void blockTimesOut() {
+        configure(1, QueryOverflowPolicy.BLOCK);
+        assertTrue(queue.offer(1, true));
+        long start = System.nanoTime();
+        assertFalse(queue.offer(2, true));
+        assertTrue(System.nanoTime() - start >= 40_000_000L);
+        // a caller that can't block is rejected right away
+        assertFalse(queue.offer(3, false));
+        assertEquals(2, queue.getDropped());
+    }
+
+    @Test
+    public void blockUntilDrained() throws Exception {
+        configure(1, QueryOverflowPolicy.BLOCK);
+        metadata.setData(QueryContext.METAKEY_QUEUE_TIMEOUT, 5000L);
+        assertTrue(queue.offer(1, true));
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+            }
+            queue.poll();
+        });
+        consumer.start();
+        assertTrue(queue.offer(2, true));
+        consumer.join();
+        assertEquals(Arrays.asList(2), drain());
+    }
+
+    @Test
+    public void zeroCapacity() {
+        configure(0, QueryOverflowPolicy.DROP_OLDEST);
+        assertFalse(queue.offer(1, false));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        configure(4, QueryOverflowPolicy.REJECT);
+        queue.offer(1, false);
+        queue.offer(2, false);
+        queue.clear();
+        assertEquals(0, queue.getDepth());
+        assertEquals(Arrays.asList(1, 2), dropped);
+    }
+
+    @Test
+    public void concurrentDropOldestStaysBounded() throws Exception {
+        configure(8, QueryOverflowPolicy.DROP_OLDEST);
+        QueryOfflineQueue<Integer> queue = new QueryOfflineQueue<>(metadata, element -> {
+        });
+        int threads = 4;
+        int offers = 20000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger rejected = new AtomicInteger();
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            producers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ignored) {
+                }
+                for (int i = 0; i < offers; i++) {
+                    if (!queue.offer(i, false)) rejected.incrementAndGet();
+                    if (queue.getDepth() > 8) rejected.incrementAndGet();
+                }
+            });
+            producers[t].start();
+        }
+        start.countDown();
+        for (Thread producer : producers) producer.join(30000);
+        assertEquals(0, rejected.get());
+        assertEquals(8, queue.getDepth());
+        assertEquals(threads * offers - 8, queue.getDropped());
+    }
+
+}
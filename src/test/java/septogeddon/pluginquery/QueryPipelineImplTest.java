@@ -0,0 +1,115 @@
+package septogeddon.pluginquery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryPipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class QueryPipelineImplTest {
+
+    private static List<String> names(QueryPipeline pipeline) {
+        List<String> names = new ArrayList<>();
+        for (QueryChannelHandler handler : pipeline.getPipes()) {
+            names.add(handler.getName());
+        }
+        return names;
+    }
+
+    private static QueryChannelHandler handler(String name) {
+        return new QueryChannelHandler(name) {
+        };
+    }
+
+    @Test
+    public void insertionOrder() {
+        QueryPipelineImpl pipeline = new QueryPipelineImpl();
+        pipeline.addLast(handler("b"));
+        pipeline.addFirst(handler("a"));
+        pipeline.addLast(handler("d"));
+        pipeline.addBefore("d", handler("c"));
+        pipeline.addAfter("d", handler("e"));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), names(pipeline));
+    }
+
+    @Test
+    public void missingAnchorKeepsPipeline() {
+        QueryPipelineImpl pipeline = new QueryPipelineImpl();
+        QueryChannelHandler original = handler("a");
+        pipeline.addLast(original);
+        pipeline.addLast(handler("b"));
+        assertFalse(pipeline.addBefore("missing", handler("a")));
+        assertFalse(pipeline.addAfter("missing", handler("a")));
+        assertEquals(Arrays.asList("a", "b"), names(pipeline));
+        assertSame(original, pipeline.get("a"));
+    }
+
+    @Test
+    public void replacementIsPublishedOnce() throws Exception {
+        QueryPipelineImpl pipeline = new QueryPipelineImpl();
+        AtomicReference<List<String>> seen = new AtomicReference<>();
+        AtomicReference<Boolean> unlocked = new AtomicReference<>();
+        pipeline.addLast(handler("a"));
+        pipeline.addLast(new QueryChannelHandler("b") {
+            @Override
+            public void onRemoved(QueryPipeline removedFrom) throws Exception {
+                seen.set(names(removedFrom));
+                // the pipeline lock must be released before the callbacks
+                Thread other = new Thread(() -> unlocked.set(removedFrom.addLast(handler("c"))));
+                other.start();
+                other.join(5000);
+            }
+        });
+        QueryChannelHandler replacement = handler("b");
+        assertTrue(pipeline.addFirst(replacement));
+        assertEquals(Arrays.asList("b", "a"), seen.get());
+        assertEquals(Boolean.TRUE, unlocked.get());
+        assertEquals(Arrays.asList("b", "a", "c"), names(pipeline));
+        assertSame(replacement, pipeline.get("b"));
+    }
+
+    private static QueryChannelHandler appendBytes(String name) {
+        return new QueryChannelHandler(name) {
+            @Override
+            public byte[] onSending(QueryConnection connection, byte[] bytes) throws Exception {
+                return super.onSending(connection, (new String(bytes, StandardCharsets.UTF_8) + name).getBytes(StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    private static QueryChannelHandler appendBuffer(String name) {
+        return new QueryChannelHandler(name) {
+            @Override
+            public ByteBuf onSending(QueryConnection connection, ByteBuf buf) throws Exception {
+                return super.onSending(connection, Unpooled.wrappedBuffer(buf, Unpooled.copiedBuffer(name, StandardCharsets.UTF_8)));
+            }
+        };
+    }
+
+    @Test
+    public void sendingStepsThroughHandlers() {
+        QueryPipelineImpl pipeline = new QueryPipelineImpl();
+        pipeline.addLast(appendBytes("a"), handler("idle"), appendBuffer("b"), appendBytes("c"));
+        assertEquals(">abc", new String(pipeline.dispatchSending(null, ">".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+        ByteBuf buf = pipeline.dispatchSending(null, Unpooled.copiedBuffer(">", StandardCharsets.UTF_8));
+        assertEquals(">abc", buf.toString(StandardCharsets.UTF_8));
+        buf.release();
+        // already processed up to the handler
+        buf = pipeline.dispatchSending(null, Unpooled.copiedBuffer(">", StandardCharsets.UTF_8), "idle");
+        assertEquals(">bc", buf.toString(StandardCharsets.UTF_8));
+        buf.release();
+        assertFalse(pipeline.get("idle").isSendingHandler());
+    }
+
+}
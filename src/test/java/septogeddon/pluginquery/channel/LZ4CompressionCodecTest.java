@@ -0,0 +1,99 @@
+package septogeddon.pluginquery.channel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LZ4CompressionCodecTest {
+
+    private final QueryCompressionCodec codec = QueryCompressionCodecs.LZ4;
+    private final QueryCompressionCodec.Compressor compressor = codec.newCompressor();
+    private final QueryCompressionCodec.Decompressor decompressor = codec.newDecompressor();
+
+    private byte[] roundTrip(byte[] data) throws Exception {
+        ByteBuf compressed = Unpooled.buffer();
+        ByteBuf output = Unpooled.buffer();
+        try {
+            compressor.compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(data), compressed, false);
+            assertTrue(compressed.readableBytes() <= LZ4CompressionCodec.maxCompressedLength(data.length) + 5);
+            decompressor.decompress(ByteBufAllocator.DEFAULT, compressed, output, false, data.length);
+            byte[] result = new byte[output.readableBytes()];
+            output.readBytes(result);
+            assertArrayEquals(data, result);
+            return result;
+        } finally {
+            compressed.release();
+            output.release();
+        }
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        roundTrip(new byte[0]);
+    }
+
+    @Test
+    public void shortInput() throws Exception {
+        roundTrip(new byte[]{1, 2, 3, 4, 5});
+    }
+
+    @Test
+    public void incompressibleInput() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        roundTrip(data);
+    }
+
+    @Test
+    public void compressibleInput() throws Exception {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 7);
+        ByteBuf compressed = Unpooled.buffer();
+        compressor.compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(data), compressed, false);
+        assertTrue(compressed.readableBytes() < data.length / 10);
+        compressed.release();
+        roundTrip(data);
+    }
+
+    @Test
+    public void inputBeyondMatchWindow() throws Exception {
+        // repeats further apart than the 64 KiB window of a block can't be matched
+        Random random = new Random(2);
+        byte[] chunk = new byte[70000];
+        random.nextBytes(chunk);
+        byte[] data = new byte[chunk.length * 3 + 1234];
+        for (int i = 0; i < data.length; i++) data[i] = chunk[i % chunk.length];
+        roundTrip(data);
+    }
+
+    @Test
+    public void reusedCompressor() throws Exception {
+        Random random = new Random(3);
+        for (int i = 0; i < 20; i++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            for (int j = 0; j < data.length; j++) data[j] = (byte) random.nextInt(4);
+            roundTrip(data);
+        }
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void inflatedSizeLimit() throws Exception {
+        ByteBuf compressed = Unpooled.buffer();
+        ByteBuf output = Unpooled.buffer();
+        try {
+            compressor.compress(ByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(new byte[1000]), compressed, false);
+            decompressor.decompress(ByteBufAllocator.DEFAULT, compressed, output, false, 999);
+        } finally {
+            compressed.release();
+            output.release();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package septogeddon.pluginquery.channel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class QuerySessionCipherTest {
+
+    private final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+
+    @Test
+    public void roundTrip() throws Exception {
+        QuerySessionCipher encryptor = new QuerySessionCipher(Cipher.ENCRYPT_MODE, key);
+        QuerySessionCipher decryptor = new QuerySessionCipher(Cipher.DECRYPT_MODE, key);
+        for (int i = 0; i < 3; i++) {
+            ByteBuf encrypted = encryptor.encrypt(ByteBufAllocator.DEFAULT, Unpooled.copiedBuffer("frame " + i, StandardCharsets.UTF_8));
+            ByteBuf plain = decryptor.decrypt(ByteBufAllocator.DEFAULT, encrypted);
+            assertEquals("frame " + i, plain.toString(StandardCharsets.UTF_8));
+            plain.release();
+        }
+    }
+
+    @Test
+    public void sharedFrameIsNotModified() throws Exception {
+        QuerySessionCipher encryptor = new QuerySessionCipher(Cipher.ENCRYPT_MODE, key);
+        ByteBuf frame = Unpooled.buffer(64).writeBytes("shared frame".getBytes(StandardCharsets.UTF_8));
+        // the last holder of a duplicate sees a reference count of 1 although others still read the frame
+        ByteBuf encrypted = encryptor.encrypt(ByteBufAllocator.DEFAULT, Unpooled.unreleasableBuffer(frame.duplicate()));
+        assertNotSame(frame, encrypted);
+        assertEquals(1, frame.refCnt());
+        assertEquals("shared frame", frame.toString(StandardCharsets.UTF_8));
+        assertEquals(frame.readableBytes() + QuerySessionCipher.TAG_LENGTH, encrypted.readableBytes());
+        encrypted.release();
+        frame.release();
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void tamperedFrame() throws Exception {
+        QuerySessionCipher encryptor = new QuerySessionCipher(Cipher.ENCRYPT_MODE, key);
+        QuerySessionCipher decryptor = new QuerySessionCipher(Cipher.DECRYPT_MODE, key);
+        ByteBuf encrypted = encryptor.encrypt(ByteBufAllocator.DEFAULT, Unpooled.copiedBuffer("frame", StandardCharsets.UTF_8));
+        encrypted.setByte(0, encrypted.getByte(0) ^ 1);
+        decryptor.decrypt(ByteBufAllocator.DEFAULT, encrypted);
+    }
+
+}
@@ -0,0 +1,123 @@
+package septogeddon.pluginquery.library.remote;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MethodTableTest {
+
+    public interface Service {
+        String echo(String value);
+
+        String echo(Object value);
+
+        @Alias("renamed")
+        int count();
+
+        Number number();
+    }
+
+    public static class Impl implements Service {
+        @Override
+        public String echo(String value) {
+            return "string:" + value;
+        }
+
+        @Override
+        public String echo(Object value) {
+            return "object:" + value;
+        }
+
+        @Override
+        public int count() {
+            return 3;
+        }
+
+        @Override
+        public Integer number() {
+            return 42;
+        }
+
+        public static String hello(String name) {
+            return "hello " + name;
+        }
+    }
+
+    static class Hidden implements Runnable {
+        boolean ran;
+
+        @Override
+        public void run() {
+            ran = true;
+        }
+    }
+
+    @Test
+    public void idsDependOnTheSignatureOnly() throws Exception {
+        Method echo = Service.class.getMethod("echo", String.class);
+        // both sides compute the same id without exchanging it
+        assertEquals(MethodTable.hash("echo", new Class<?>[]{String.class}), MethodTable.getId(echo));
+        assertEquals(MethodTable.getId(echo), MethodTable.getId(Impl.class.getMethod("echo", String.class)));
+        assertNotEquals(MethodTable.getId(echo), MethodTable.getId(Service.class.getMethod("echo", Object.class)));
+        assertEquals(MethodTable.of(Service.class).getIds().get(echo), (Long) MethodTable.getId(echo));
+    }
+
+    @Test
+    public void aliasRenamesTheId() throws Exception {
+        assertEquals(MethodTable.hash("renamed", new Class<?>[0]), MethodTable.getId(Service.class.getMethod("count")));
+    }
+
+    @Test
+    public void invokeById() throws Throwable {
+        MethodTable table = MethodTable.of(Impl.class);
+        Impl target = new Impl();
+        assertEquals("string:a", table.getInvoker(MethodTable.hash("echo", new Class<?>[]{String.class})).invoke(target, new Object[]{"a"}));
+        assertEquals("object:a", table.getInvoker(MethodTable.hash("echo", new Class<?>[]{Object.class})).invoke(target, new Object[]{"a"}));
+        assertEquals(3, table.getInvoker(MethodTable.hash("count", new Class<?>[0])).invoke(target, null));
+        assertNull(table.getInvoker(MethodTable.hash("missing", new Class<?>[0])));
+    }
+
+    @Test
+    public void covariantOverrideIsInvoked() throws Throwable {
+        MethodTable.Invoker invoker = MethodTable.of(Impl.class).getInvoker(MethodTable.hash("number", new Class<?>[0]));
+        // the bridge method returning Number has the same id as the override
+        assertEquals(Integer.class, invoker.getMethod().getReturnType());
+        assertEquals(42, invoker.invoke(new Impl(), null));
+    }
+
+    @Test
+    public void nonPublicClassThroughPublicInterface() throws Throwable {
+        // Hidden isn't public, its methods are invoked through Runnable
+        MethodTable.Invoker invoker = MethodTable.of(Hidden.class).getInvoker(MethodTable.hash("run", new Class<?>[0]));
+        assertEquals(Runnable.class, invoker.getMethod().getDeclaringClass());
+        Hidden target = new Hidden();
+        invoker.invoke(target, null);
+        assertTrue(target.ran);
+    }
+
+    @Test
+    public void bindKeepsExistingIds() throws Exception {
+        MethodTable table = MethodTable.of(Impl.class);
+        Method echo = Impl.class.getMethod("echo", Object.class);
+        long foreign = MethodTable.hash("echo", new Class<?>[]{CharSequence.class});
+        MethodTable.Invoker bound = table.bind(foreign, echo);
+        assertSame(bound, table.getInvoker(foreign));
+        long existing = MethodTable.hash("echo", new Class<?>[]{String.class});
+        MethodTable.Invoker before = table.getInvoker(existing);
+        table.bind(existing, echo);
+        assertSame(before, table.getInvoker(existing));
+    }
+
+    @Test
+    public void staticMethod() throws Throwable {
+        MethodTable.Invoker invoker = MethodTable.of(MethodTableTest.class).getInvoker(Impl.class.getMethod("hello", String.class));
+        assertEquals("hello c", invoker.invoke(null, new Object[]{"c"}));
+    }
+
+}
@@ -0,0 +1,82 @@
+package septogeddon.pluginquery.library.remote;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReferenceContextTest {
+
+    private static ObjectReference proxy(long id) {
+        ReferenceHandler handler = new ReferenceHandler(id, null);
+        return () -> handler;
+    }
+
+    private static void importCollectable(ReferenceContext context, long id) {
+        context.putExistingReference(proxy(id));
+    }
+
+    private static void awaitCollected(ReferenceContext context) throws InterruptedException {
+        for (int i = 0; i < 100 && context.getExistingReferenceCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, context.getExistingReferenceCount());
+    }
+
+    @Test
+    public void collectedProxyIsReleased() throws Exception {
+        ReferenceContext context = new ReferenceContext();
+        importCollectable(context, 5);
+        awaitCollected(context);
+        assertEquals(Collections.singletonList(5L), context.pollReleasedReferences());
+        assertTrue(context.pollReleasedReferences().isEmpty());
+    }
+
+    @Test
+    public void reimportedReferenceIsNotReleased() throws Exception {
+        ReferenceContext context = new ReferenceContext();
+        importCollectable(context, 5);
+        awaitCollected(context);
+        // the remote sends the reference again before the release went out
+        ObjectReference again = proxy(5);
+        context.putExistingReference(again);
+        assertTrue(context.pollReleasedReferences().isEmpty());
+        assertSame(again, context.getExistingReference(5));
+        assertEquals(Collections.singletonList(5L), context.getExistingReferenceIds());
+    }
+
+    @Test
+    public void leaseExpiry() {
+        ReferenceContext context = new ReferenceContext();
+        context.setLeaseDuration(1000);
+        Object object = new Object();
+        long now = System.currentTimeMillis();
+        ReferencedObject reference = context.createReference(new TypeHint(Object.class), object);
+        assertEquals(0, context.expireLeases(now));
+        assertEquals(1, context.expireLeases(now + 2000));
+        assertEquals(0, context.getReferencedCount());
+        assertFalse(context.renewLease(reference.getId()));
+        // exporting the object again creates a new reference
+        assertNotEquals(reference.getId(), context.createReference(new TypeHint(Object.class), object).getId());
+    }
+
+    @Test
+    public void renewedLeaseIsKept() throws Exception {
+        ReferenceContext context = new ReferenceContext();
+        context.setLeaseDuration(50);
+        ReferencedObject reference = context.createReference(new TypeHint(Object.class), new Object());
+        Thread.sleep(100);
+        assertTrue(context.renewLease(reference.getId()));
+        assertEquals(0, context.expireLeases(System.currentTimeMillis()));
+        assertSame(reference, context.getReferenced(reference.getId()));
+        context.closeReference(reference.getId());
+        assertEquals(0, context.getReferencedCount());
+    }
+
+}
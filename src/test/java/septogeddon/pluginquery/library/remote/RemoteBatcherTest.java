@@ -0,0 +1,165 @@
+package septogeddon.pluginquery.library.remote;
+
+import org.junit.After;
+import org.junit.Test;
+import septogeddon.pluginquery.QueryCompletableFuture;
+import septogeddon.pluginquery.QueryEventBusImpl;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryContext;
+import septogeddon.pluginquery.api.QueryEventBus;
+import septogeddon.pluginquery.api.QueryFeatures;
+import septogeddon.pluginquery.api.QueryFuture;
+import septogeddon.pluginquery.utils.InstanceBuffer;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteBatcherTest {
+
+    private final List<byte[]> sent = new ArrayList<>();
+    private final List<QueryCompletableFuture<QueryConnection>> sending = new ArrayList<>();
+    private int features = QueryContext.FEATURE_REMOTE_BATCH | QueryContext.FEATURE_COMPACT_REMOTE;
+    private final QueryConnection connection = connection();
+    private final RemoteObject<Runnable> owner = new RemoteObject<>("batch", connection, Runnable.class, new ClassRegistry());
+
+    private QueryConnection connection() {
+        QueryEventBus events = new QueryEventBusImpl();
+        QueryFeatures negotiated = new QueryFeatures() {
+            @Override
+            public int getInbound() {
+                return features;
+            }
+
+            @Override
+            public int getOutbound() {
+                return features;
+            }
+        };
+        // only what the remote object uses, without a channel
+        return (QueryConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{QueryConnection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getFeatures":
+                    return negotiated;
+                case "getEventBus":
+                    return events;
+                case "isConnected":
+                    return true;
+                case "sendQuery":
+                    sent.add((byte[]) args[1]);
+                    QueryCompletableFuture<QueryConnection> future = new QueryCompletableFuture<>();
+                    sending.add(future);
+                    return future;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return null;
+            }
+        });
+    }
+
+    @After
+    public void close() {
+        owner.close();
+    }
+
+    private byte[] message(int value) throws Exception {
+        InstanceBuffer buffer = new InstanceBuffer();
+        buffer.pushObject(value);
+        return owner.encode(buffer);
+    }
+
+    @Test
+    public void scopeSendsOneBatch() throws Exception {
+        byte[][] messages = {message(1), message(2), message(3)};
+        List<QueryFuture<QueryConnection>> futures = new ArrayList<>();
+        owner.batch(() -> {
+            for (byte[] message : messages) futures.add(owner.send(message));
+            assertTrue(sent.isEmpty());
+        });
+        assertEquals(1, sent.size());
+        InstanceBuffer batch = owner.decode(sent.get(0));
+        assertEquals(owner.hashCode(), (int) batch.pullObject());
+        assertEquals(RemoteContext.COMMAND_BATCH, batch.pullObject());
+        for (byte[] message : messages) assertArrayEquals(message, batch.pullObject());
+        assertFalse(futures.get(0).isDone());
+        // every held message completes with the batch
+        sending.get(0).complete(connection);
+        for (QueryFuture<QueryConnection> future : futures) assertTrue(future.isSuccess());
+    }
+
+    @Test
+    public void nestedScopesFlushOnce() throws Exception {
+        byte[] first = message(1);
+        owner.batch(() -> {
+            owner.send(first);
+            owner.batch(() -> owner.send(first));
+            assertTrue(sent.isEmpty());
+        });
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void singleMessageSentAsIs() throws Exception {
+        byte[] message = message(1);
+        owner.batch(() -> owner.send(message));
+        assertEquals(1, sent.size());
+        assertArrayEquals(message, sent.get(0));
+    }
+
+    @Test
+    public void failedBatchFailsEveryMessage() throws Exception {
+        List<QueryFuture<QueryConnection>> futures = new ArrayList<>();
+        byte[] message = message(1);
+        owner.batch(() -> {
+            futures.add(owner.send(message));
+            futures.add(owner.send(message));
+        });
+        sending.get(0).completeExceptionally(new IllegalStateException("not writable"));
+        for (QueryFuture<QueryConnection> future : futures) {
+            assertFalse(future.isSuccess());
+            assertTrue(future.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void fullBatchIsFlushed() throws Exception {
+        byte[] large = new byte[RemoteBatcher.MAX_BATCH_BYTES / 2 + 1];
+        owner.batch(() -> {
+            owner.send(large);
+            owner.send(large);
+            // flushed before the scope ends
+            assertEquals(1, sent.size());
+        });
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void sentDirectlyWithoutScopeOrFeature() throws Exception {
+        byte[] message = message(1);
+        owner.send(message);
+        assertEquals(1, sent.size());
+        features = QueryContext.FEATURE_COMPACT_REMOTE;
+        owner.batch(() -> {
+            owner.send(message);
+            owner.send(message);
+        });
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void windowFlushesWithoutChannel() throws Exception {
+        owner.setBatchWindow(0);
+        owner.send(message(1));
+        // no event loop to wait for
+        assertEquals(1, sent.size());
+    }
+
+}
@@ -0,0 +1,146 @@
+package septogeddon.pluginquery.library.remote;
+
+import org.junit.After;
+import org.junit.Test;
+import septogeddon.pluginquery.QueryMessengerImpl;
+import septogeddon.pluginquery.utils.DataBuffer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RemoteCodecTest {
+
+    private final RemoteCodec codec = new RemoteCodec();
+    private final RemoteObject<Runnable> owner = new RemoteObject<>("codec",
+            new QueryMessengerImpl().newConnection(new InetSocketAddress("127.0.0.1", 1)), Runnable.class, new ClassRegistry());
+
+    @After
+    public void close() {
+        owner.close();
+    }
+
+    private Object[] roundTrip(Object... values) throws Exception {
+        return codec.decode(codec.encode(values, owner), owner);
+    }
+
+    @Test
+    public void builtins() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        Object[] values = {null, true, (byte) -3, (short) -300, 'x', Integer.MIN_VALUE, -1, Long.MAX_VALUE, 1.5f, -2.25,
+                "ünïcode", uuid, new byte[]{1, -1}, new boolean[]{true, false}, new short[]{Short.MIN_VALUE},
+                new char[]{'a'}, new int[]{0, -1, Integer.MAX_VALUE}, new long[]{Long.MIN_VALUE}, new float[]{1f},
+                new double[]{-0.5}};
+        assertArrayEquals(values, roundTrip(values));
+        TypeHint hint = (TypeHint) roundTrip(new TypeHint(Integer.class))[0];
+        assertEquals(new TypeHint(Integer.class).getRelatedClasses(), hint.getRelatedClasses());
+    }
+
+    @Test
+    public void arrayKeepsComponentType() throws Exception {
+        Object[] result = roundTrip((Object) new String[]{"a", null, "b"}, new Number[]{1, 2L}, new Object[][]{{"x"}});
+        assertEquals(String[].class, result[0].getClass());
+        assertArrayEquals(new String[]{"a", null, "b"}, (Object[]) result[0]);
+        assertEquals(Number[].class, result[1].getClass());
+        assertArrayEquals(new Number[]{1, 2L}, (Object[]) result[1]);
+        assertEquals(Object[][].class, result[2].getClass());
+    }
+
+    @Test
+    public void arrayOfSerializedElements() throws Exception {
+        Object[] result = roundTrip((Object) new Point[]{new Point(1, 2)});
+        assertEquals(Point[].class, result[0].getClass());
+        assertEquals(Arrays.asList(new Point(1, 2)), Arrays.asList((Object[]) result[0]));
+    }
+
+    private byte[] array(List<String> component, Object... elements) throws Exception {
+        DataBuffer output = new DataBuffer(64);
+        output.writeByte(RemoteCodec.MAGIC);
+        output.writeVarInt(1);
+        output.writeVarInt(RemoteCodec.TAG_ARRAY);
+        // skip the magic, the count and the tag of the hint
+        byte[] hint = codec.encode(new Object[]{new TypeHint(component)}, owner);
+        output.write(Arrays.copyOfRange(hint, 3, hint.length));
+        // skip the magic and the count
+        byte[] values = codec.encode(elements, owner);
+        output.writeVarInt(elements.length);
+        output.write(Arrays.copyOfRange(values, 2, values.length));
+        return output.toByteArray();
+    }
+
+    @Test
+    public void arrayFallsBackToAvailableComponent() throws Exception {
+        // the implementation class of the sender is unknown here
+        Object[] result = codec.decode(array(Arrays.asList("missing.Impl", CharSequence.class.getName()), "a", "b"), owner);
+        assertEquals(CharSequence[].class, result[0].getClass());
+        assertArrayEquals(new Object[]{"a", "b"}, (Object[]) result[0]);
+        // an element the component doesn't hold, like a reference proxy
+        result = codec.decode(array(Arrays.asList(String.class.getName(), CharSequence.class.getName()), "a", 1), owner);
+        assertEquals(Object[].class, result[0].getClass());
+        assertArrayEquals(new Object[]{"a", 1}, (Object[]) result[0]);
+    }
+
+    @Test
+    public void customSerializer() throws Exception {
+        codec.registerSerializer(RemoteCodec.FIRST_CUSTOM_TAG, Point.class, new RemoteSerializer<Point>() {
+            @Override
+            public void write(DataBuffer output, Point value) {
+                output.writeSignedVarInt(value.x);
+                output.writeSignedVarInt(value.y);
+            }
+
+            @Override
+            public Point read(DataBuffer input) {
+                return new Point(input.readSignedVarInt(), input.readSignedVarInt());
+            }
+        });
+        byte[] message = codec.encode(new Object[]{new Point(-1, 3)}, owner);
+        assertEquals(5, message.length);
+        assertEquals(new Point(-1, 3), codec.decode(message, owner)[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidLength() throws Exception {
+        codec.decode(new byte[]{RemoteCodec.MAGIC, 1, RemoteCodec.TAG_ARRAY, 0, 100}, owner);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedMessage() throws Exception {
+        byte[] message = codec.encode(new Object[]{Long.MAX_VALUE}, owner);
+        codec.decode(Arrays.copyOf(message, message.length - 1), owner);
+    }
+
+    @Test
+    public void emptyMessage() throws Exception {
+        Object[] values = roundTrip();
+        assertEquals(0, values.length);
+        assertSame(Object[].class, values.getClass());
+    }
+
+    static class Point implements Serializable {
+        final int x, y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+import septogeddon.pluginquery.QueryMessage;
+import septogeddon.pluginquery.api.QueryContext;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryEncoderTest {
+
+    private static QueryProtocol protocol(int features) {
+        return new QueryProtocol(null, null) {
+            @Override
+            public boolean hasOutboundFeature(int feature) {
+                return (features & feature) == feature;
+            }
+
+            @Override
+            public boolean hasInboundFeature(int feature) {
+                return (features & feature) == feature;
+            }
+        };
+    }
+
+    private static int header(EmbeddedChannel channel) {
+        ByteBuf frame = (ByteBuf) channel.readOutbound();
+        try {
+            return QueryProtocol.readVarInt(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void channelIdDefinedOnce() {
+        EmbeddedChannel channel = new EmbeddedChannel(new QueryEncoder(protocol(QueryContext.FEATURE_CHANNEL_IDS)));
+        channel.writeOutbound(new QueryMessage("test:a", new byte[]{1}));
+        channel.writeOutbound(new QueryMessage("test:a", new byte[]{2}));
+        channel.writeOutbound(new QueryMessage("test:b", new byte[]{3}));
+        assertEquals(1 << 1 | 1, header(channel));
+        assertEquals(1 << 1, header(channel));
+        assertEquals(2 << 1 | 1, header(channel));
+        channel.finish();
+    }
+
+    @Test
+    public void channelIdDroppedWhenWriteFails() {
+        FailFirstWrite failure = new FailFirstWrite();
+        EmbeddedChannel channel = new EmbeddedChannel(failure, new QueryEncoder(protocol(QueryContext.FEATURE_CHANNEL_IDS)));
+        ChannelPromise failed = channel.newPromise();
+        channel.writeAndFlush(new QueryMessage("test:a", new byte[]{1}), failed);
+        assertFalse(failed.isSuccess());
+        // the remote never learnt the id, it must be defined again
+        channel.writeOutbound(new QueryMessage("test:a", new byte[]{2}));
+        channel.writeOutbound(new QueryMessage("test:a", new byte[]{3}));
+        int defined = header(channel);
+        assertTrue((defined & 1) != 0);
+        assertEquals(defined & ~1, header(channel));
+        channel.finish();
+    }
+
+    @Test
+    public void roundTrip() {
+        int features = QueryContext.FEATURE_CHANNEL_IDS | QueryContext.FEATURE_REQUESTS;
+        EmbeddedChannel encoder = new EmbeddedChannel(new QueryEncoder(protocol(features)));
+        EmbeddedChannel decoder = new EmbeddedChannel(new QueryDecoder(protocol(features)));
+        for (int i = 0; i < 3; i++) {
+            QueryMessage message = new QueryMessage(i == 2 ? "test:other" : "test:channel", ("message " + i).getBytes(StandardCharsets.UTF_8));
+            message.setCorrelation(i << 2 | 1);
+            encoder.writeOutbound(message);
+            decoder.writeInbound((Object) encoder.readOutbound());
+            QueryMessage decoded = (QueryMessage) decoder.readInbound();
+            assertEquals(i == 2 ? "test:other" : "test:channel", decoded.getChannel());
+            assertEquals("message " + i, new String(decoded.getMessage(), StandardCharsets.UTF_8));
+            assertEquals(i << 2 | 1, decoded.getCorrelation());
+            decoded.release();
+        }
+        encoder.finish();
+        decoder.finish();
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void malformedVarInt() {
+        QueryProtocol.readVarInt(Unpooled.wrappedBuffer(new byte[]{-1, -1, -1, -1, -1, 1}));
+    }
+
+    static class FailFirstWrite extends ChannelOutboundHandlerAdapter {
+        private boolean failed;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (!failed) {
+                failed = true;
+                ReferenceCountUtil.release(msg);
+                promise.setFailure(new IOException("write failed"));
+                return;
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+
+}
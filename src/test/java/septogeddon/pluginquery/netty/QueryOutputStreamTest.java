@@ -0,0 +1,132 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryOutputStreamTest {
+
+    private static final byte[] HEADER = {QueryStreams.DATA, 1};
+
+    /**
+     * Streams recording the sent messages, a send may block like a connection waiting to be writable
+     */
+    static class RecordingStreams extends QueryStreams {
+        final List<byte[]> sent = new CopyOnWriteArrayList<>();
+        volatile CountDownLatch writable;
+        final CountDownLatch sending = new CountDownLatch(1);
+
+        RecordingStreams() {
+            super(null);
+        }
+
+        @Override
+        boolean inEventLoop() {
+            return false;
+        }
+
+        @Override
+        ByteBuf alloc(int capacity) {
+            return Unpooled.buffer(capacity);
+        }
+
+        @Override
+        void send(ByteBuf message, QueryOutputStream owner) {
+            byte[] bytes = new byte[message.readableBytes()];
+            message.readBytes(bytes);
+            message.release();
+            sent.add(bytes);
+            CountDownLatch writable = this.writable;
+            if (writable != null) {
+                sending.countDown();
+                try {
+                    writable.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static Thread write(QueryOutputStream stream, byte[] bytes, AtomicReference<Throwable> failure) {
+        Thread writer = new Thread(() -> {
+            try {
+                stream.write(bytes);
+                stream.flush();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    @Test
+    public void creditWhileSendIsBlocked() throws Exception {
+        RecordingStreams streams = new RecordingStreams();
+        streams.writable = new CountDownLatch(1);
+        QueryOutputStream stream = new QueryOutputStream(streams, 1, HEADER, 4);
+        stream.credit(4);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = write(stream, new byte[8], failure);
+        assertTrue(streams.sending.await(5, TimeUnit.SECONDS));
+        // the event loop grants credits while the writer holds the stream in a blocked send
+        Thread eventLoop = new Thread(() -> stream.credit(4));
+        eventLoop.start();
+        eventLoop.join(5000);
+        assertFalse("credit blocked by the writer", eventLoop.isAlive());
+        streams.writable.countDown();
+        writer.join(5000);
+        assertNull(failure.get());
+        assertEquals(2, streams.sent.size());
+        assertEquals(HEADER.length + 4, streams.sent.get(1).length);
+    }
+
+    @Test
+    public void chunkSplitByCredits() throws Exception {
+        RecordingStreams streams = new RecordingStreams();
+        QueryOutputStream stream = new QueryOutputStream(streams, 1, HEADER, 4);
+        stream.credit(3);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = write(stream, new byte[]{1, 2, 3, 4}, failure);
+        for (int i = 0; i < 500 && streams.sent.isEmpty(); i++) Thread.sleep(10);
+        assertEquals(1, streams.sent.size());
+        stream.credit(1);
+        writer.join(5000);
+        assertNull(failure.get());
+        assertEquals(2, streams.sent.size());
+        assertEquals(HEADER.length + 3, streams.sent.get(0).length);
+        byte[] last = streams.sent.get(1);
+        assertEquals(HEADER.length + 1, last.length);
+        assertEquals(HEADER[0], last[0]);
+        assertEquals(4, last[last.length - 1]);
+    }
+
+    @Test
+    public void abortWakesWaitingWriter() throws Exception {
+        RecordingStreams streams = new RecordingStreams();
+        QueryOutputStream stream = new QueryOutputStream(streams, 1, HEADER, 4);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = write(stream, new byte[4], failure);
+        Thread.sleep(100);
+        stream.abort("test");
+        writer.join(5000);
+        assertTrue(failure.get() instanceof IOException);
+        // only the reset has been sent
+        assertEquals(1, streams.sent.size());
+        assertEquals(QueryStreams.RESET, streams.sent.get(0)[0]);
+    }
+
+}
@@ -0,0 +1,34 @@
+package septogeddon.pluginquery.netty;
+
+import org.junit.Test;
+import septogeddon.pluginquery.QueryMessengerImpl;
+import septogeddon.pluginquery.api.QueryConnection;
+import septogeddon.pluginquery.api.QueryFuture;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryRequestsTest {
+
+    @Test
+    public void requestWithoutChannelFails() {
+        QueryConnection connection = new QueryMessengerImpl().newConnection(new InetSocketAddress("127.0.0.1", 1));
+        assertNull(connection.getChannel());
+        QueryProtocol protocol = new QueryProtocol(null, connection) {
+            @Override
+            public boolean hasOutboundFeature(int feature) {
+                return true;
+            }
+        };
+        QueryFuture<byte[]> future = protocol.getRequests().request("test:request", new byte[]{1}, 1000);
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccess());
+        assertTrue(future.getCause() instanceof IllegalStateException);
+        assertEquals(0, protocol.getRequests().getPendingRequests());
+    }
+
+}
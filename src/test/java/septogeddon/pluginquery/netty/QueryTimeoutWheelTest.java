@@ -0,0 +1,120 @@
+package septogeddon.pluginquery.netty;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class QueryTimeoutWheelTest {
+
+    private final NioEventLoopGroup group = new NioEventLoopGroup(1);
+    private final EventLoop loop = group.next();
+    private final QueryTimeoutWheel wheel = QueryTimeoutWheel.of(loop);
+
+    @After
+    public void shutdown() {
+        group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void sharedByEventLoop() {
+        assertSame(wheel, QueryTimeoutWheel.of(loop));
+    }
+
+    @Test
+    public void expiresAfterDelay() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicBoolean onLoop = new AtomicBoolean();
+        long start = System.nanoTime();
+        AtomicLong elapsed = new AtomicLong();
+        QueryTimeoutWheel.Timeout timeout = wheel.schedule(() -> {
+            elapsed.set(System.nanoTime() - start);
+            onLoop.set(loop.inEventLoop());
+            fired.countDown();
+        }, 200, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(elapsed.get()) >= 200);
+        assertTrue(onLoop.get());
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    public void expiresInOrder() throws Exception {
+        int count = 20;
+        CountDownLatch fired = new CountDownLatch(count);
+        long[] firedAt = new long[count];
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            wheel.schedule(() -> {
+                firedAt[index] = System.nanoTime();
+                fired.countDown();
+            }, (count - i) * (QueryTimeoutWheel.TICK_MILLIS + 10), TimeUnit.MILLISECONDS);
+        }
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < count; i++) {
+            // deadlines a tick apart or more never fire out of order
+            assertTrue(firedAt[i] <= firedAt[i - 1]);
+        }
+    }
+
+    @Test
+    public void cancelledDoesNotFire() throws Exception {
+        AtomicBoolean fired = new AtomicBoolean();
+        QueryTimeoutWheel.Timeout timeout = wheel.schedule(() -> fired.set(true), 100, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+        // cancelled on the event loop, unlinked right away
+        QueryTimeoutWheel.Timeout onLoop = loop.submit(() -> {
+            QueryTimeoutWheel.Timeout scheduled = wheel.schedule(() -> fired.set(true), 100, TimeUnit.MILLISECONDS);
+            scheduled.cancel();
+            return scheduled;
+        }).get();
+        assertTrue(onLoop.isCancelled());
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 300, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(fired.get());
+    }
+
+    @Test
+    public void pastDeadlineFiresOnNextTick() throws Exception {
+        CountDownLatch fired = new CountDownLatch(2);
+        wheel.schedule(fired::countDown, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(fired::countDown, -5, TimeUnit.SECONDS);
+        assertTrue(fired.await(QueryTimeoutWheel.TICK_MILLIS * 4, TimeUnit.MILLISECONDS));
+        assertEquals(0, fired.getCount());
+    }
+
+    @Test
+    public void taskCancelsTimeoutOfSameSlot() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        QueryTimeoutWheel.Timeout[] timeouts = new QueryTimeoutWheel.Timeout[4];
+        loop.submit(() -> {
+            // deadlines already passed share the first slot, each timeout cancels the other one of its pair
+            for (int i = 0; i < timeouts.length; i++) {
+                int other = i ^ 1;
+                timeouts[i] = wheel.schedule(() -> {
+                    fired.incrementAndGet();
+                    timeouts[other].cancel();
+                }, -1, TimeUnit.SECONDS);
+            }
+        }).get();
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, QueryTimeoutWheel.TICK_MILLIS * 2, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(2, fired.get());
+        for (QueryTimeoutWheel.Timeout timeout : timeouts) assertTrue(timeout.isCancelled());
+    }
+
+}
@@ -0,0 +1,111 @@
+package septogeddon.pluginquery.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DataBufferTest {
+
+    @Test
+    public void varInts() {
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        int[] sizes = {1, 1, 1, 2, 2, 3, 5, 5, 5};
+        for (int i = 0; i < values.length; i++) {
+            DataBuffer buffer = new DataBuffer(8);
+            buffer.writeVarInt(values[i]);
+            assertEquals(sizes[i], buffer.available());
+            assertEquals(values[i], buffer.readVarInt());
+        }
+        long[] longs = {0, 127, 128, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        for (long value : longs) {
+            DataBuffer buffer = new DataBuffer(8);
+            buffer.writeVarLong(value);
+            assertEquals(value, buffer.readVarLong());
+        }
+    }
+
+    @Test
+    public void signedVarInts() {
+        DataBuffer buffer = new DataBuffer(8);
+        buffer.writeSignedVarInt(-1);
+        buffer.writeSignedVarInt(63);
+        buffer.writeSignedVarInt(-64);
+        // values close to zero take a single byte whatever their sign
+        assertEquals(3, buffer.available());
+        buffer.writeSignedVarInt(Integer.MIN_VALUE);
+        buffer.writeSignedVarLong(Long.MIN_VALUE);
+        buffer.writeSignedVarLong(-2);
+        assertEquals(-1, buffer.readSignedVarInt());
+        assertEquals(63, buffer.readSignedVarInt());
+        assertEquals(-64, buffer.readSignedVarInt());
+        assertEquals(Integer.MIN_VALUE, buffer.readSignedVarInt());
+        assertEquals(Long.MIN_VALUE, buffer.readSignedVarLong());
+        assertEquals(-2, buffer.readSignedVarLong());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void malformedVarInt() {
+        new DataBuffer(new byte[]{-1, -1, -1, -1, -1, 1}).readVarInt();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void truncatedVarInt() {
+        new DataBuffer(new byte[]{-1}).readVarInt();
+    }
+
+    @Test
+    public void strings() throws IOException {
+        String[] values = {"", "ascii", "ünïcode", "中文", "😀 emoji", "nul\0char"};
+        DataBuffer buffer = new DataBuffer(8);
+        for (String value : values) buffer.writeString(value);
+        for (String value : values) assertEquals(value, buffer.readString());
+        // standard UTF-8, unlike writeUTF
+        buffer.writeString("😀");
+        byte[] bytes = new byte[buffer.readVarInt()];
+        buffer.readFully(bytes);
+        assertArrayEquals("😀".getBytes(StandardCharsets.UTF_8), bytes);
+        buffer.writeString("unpaired \ud83d");
+        assertEquals("unpaired ?", buffer.readString());
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeStringLength() throws IOException {
+        DataBuffer buffer = new DataBuffer(8);
+        buffer.writeVarInt(-1);
+        buffer.readString();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedString() throws IOException {
+        DataBuffer buffer = new DataBuffer(8);
+        buffer.writeVarInt(10);
+        buffer.write(new byte[4]);
+        buffer.readString();
+    }
+
+    @Test
+    public void concurrentUTF() throws Exception {
+        DataBuffer buffer = new DataBuffer(16);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            String value = "writer " + t + " é中";
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) buffer.writeUTF(value);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        // the length of every String stays next to its content
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < threads.length * 1000; i++) seen.add(buffer.readUTF());
+        assertEquals(threads.length, seen.size());
+        assertEquals(0, buffer.available());
+    }
+
+}
@@ -0,0 +1,132 @@
+package septogeddon.pluginquery.utils;
+
+import org.junit.Test;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObjectBufferTest {
+
+    private static Object[] roundTrip(Object... values) {
+        ObjectBuffer output = new ObjectBuffer();
+        for (Object value : values) output.writeObject(value);
+        ObjectBuffer input = new ObjectBuffer(output.toByteArray());
+        Object[] result = new Object[values.length];
+        for (int i = 0; i < result.length; i++) result[i] = input.readObject();
+        return result;
+    }
+
+    @Test
+    public void primitivesAndStrings() {
+        Object[] values = {null, 1, -2L, 3.5, 4.5f, (short) 5, 'c', (byte) 6, true, "ünïcode"};
+        assertArrayEquals(values, roundTrip(values));
+    }
+
+    @Test
+    public void fieldsAndHierarchy() {
+        Child child = new Child();
+        child.number = 7;
+        child.name = "child";
+        child.values = new int[]{1, 2};
+        child.hidden = "transient";
+        child.parentName = "parent";
+        child.self = child;
+        Child result = (Child) roundTrip(child)[0];
+        assertEquals(7, result.number);
+        assertEquals("child", result.name);
+        assertArrayEquals(new int[]{1, 2}, result.values);
+        assertNull(result.hidden);
+        assertEquals("parent", result.parentName);
+        assertSame(result, result.self);
+    }
+
+    @Test
+    public void classIsDescribedOnce() {
+        ObjectBuffer output = new ObjectBuffer();
+        output.writeObject(new Parent());
+        int first = output.toByteArray().length;
+        output.writeObject(new Parent());
+        // the second object only holds the class id and the field values
+        assertTrue(output.toByteArray().length - first < first / 2);
+        Object[] result = roundTrip(new Parent(), new Parent(), new Parent[]{new Parent()});
+        assertEquals(Parent.class, result[1].getClass());
+        assertEquals(Parent[].class, result[2].getClass());
+    }
+
+    @Test
+    public void externalizable() {
+        External result = (External) roundTrip(new External(42))[0];
+        assertEquals(42, result.value);
+    }
+
+    @Test
+    public void sharedArrays() {
+        String[] shared = {"a", "b"};
+        Object[][] result = (Object[][]) roundTrip((Object) new Object[][]{shared, shared})[0];
+        assertSame(result[0], result[1]);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(result[0]));
+    }
+
+    @Test
+    public void unsupportedFormatVersion() {
+        ObjectBuffer output = new ObjectBuffer();
+        output.writeObject(new Parent());
+        byte[] bytes = output.toByteArray();
+        // the type, the class id, then the version of the description
+        assertEquals(ObjectBuffer.FORMAT_VERSION, bytes[2]);
+        bytes[2] = ObjectBuffer.FORMAT_VERSION + 1;
+        try {
+            new ObjectBuffer(bytes).readObject();
+            fail();
+        } catch (RuntimeException e) {
+            Throwable cause = e instanceof IllegalStateException ? e : e.getCause();
+            assertTrue(cause instanceof IllegalStateException);
+            assertTrue(cause.getMessage().contains("format version"));
+        }
+    }
+
+    static class Parent {
+        String parentName = "default";
+        long stamp = 123;
+    }
+
+    static class Child extends Parent {
+        int number;
+        String name;
+        int[] values;
+        transient String hidden;
+        Child self;
+    }
+
+    public static class External implements Externalizable {
+        int value;
+
+        public External() {
+        }
+
+        External(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            value = in.readInt();
+        }
+    }
+
+}